@@ -8,6 +8,9 @@
 package btree;
 
 import java.io.*;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.stream.*;
 
 import diskmgr.*;
 import bufmgr.*;
@@ -22,15 +25,39 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private final static int MAGIC0 = 1989;
 
-	private final static String lineSep = System.getProperty("line.separator");
+	/*
+	 * Header page slots past the ones BTreeHeaderPage uses (1-3). Like those,
+	 * each value is kept in the length field of the slot. PAGESIZE_SLOT holds
+	 * the log2 of the page size, with MAGIC0 in its offset field to tell it
+	 * from whatever files made before it have there.
+	 */
+	private final static int KEYTYPE_SLOT = 4;
+	private final static int FLAGS_SLOT = 5;
+	private final static int PAGESIZE_SLOT = 6;
+
+	/* what _insert does when the key is already in the leaf */
+	private final static int INSERT = 0; // insert another entry
+	private final static int INSERT_UNIQUE = 1; // refuse, the index is unique
+	private final static int INSERT_IF_ABSENT = 2; // leave the entry alone
+	private final static int UPSERT = 3; // replace the RID of the entry
+
+	/* set by _insert: the key was found in the leaf and not inserted */
+	private boolean keyFound;
 
-	private static FileOutputStream fos;
-	private static DataOutputStream trace;
+	/* the message buffers kept for the index pages, if any; told of splits */
+	BufferedBTree buffered;
+
+	/* Bloom filters of the leaves' keys, if turned on */
+	private LeafBloomFilters bloom;
+
+	/* hints to the leaves of hot keys, if turned on */
+	private AdaptiveHashIndex hashIndex;
 
 	/**
 	 * It causes a structured trace to be written to a file. This output is used
 	 * to drive a visualization tool that shows the inner workings of the b-tree
-	 * during its operations.
+	 * during its operations. The trace is binary and written by a background
+	 * thread (see BTreeTrace); TraceDecoder turns it into text.
 	 *
 	 * @param filename
 	 *            input parameter. The trace file name
@@ -38,9 +65,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 *                error from the lower layer
 	 */
 	public static void traceFilename(String filename) throws IOException {
-
-		fos = new FileOutputStream(filename);
-		trace = new DataOutputStream(fos);
+		BTreeTrace.start(filename);
 	}
 
 	/**
@@ -50,17 +75,13 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 *                error from the lower layer
 	 */
 	public static void destroyTrace() throws IOException {
-		if (trace != null)
-			trace.close();
-		if (fos != null)
-			fos.close();
-		fos = null;
-		trace = null;
+		BTreeTrace.stop();
 	}
 
 	private BTreeHeaderPage headerPage;
 	private PageId headerPageId;
 	private String dbname;
+	private final Database database;
 
 	/**
 	 * Access method to data member.
@@ -72,6 +93,42 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		return headerPage;
 	}
 
+	/**
+	 * @return the database the index is in; null if it was opened in the one
+	 *         SystemDefs holds
+	 */
+	public Database getDatabase() {
+		return database;
+	}
+
+	/*
+	 * the root page number; INVALID_PAGE if the tree is empty
+	 */
+	int rootPid() throws IOException {
+		return headerPage.get_rootId().pid;
+	}
+
+	/*
+	 * the decoded view of a page of the index, pinned only while it is read
+	 */
+	DecodedPageCache.View view(int pid) throws IOException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		Database.Binding saved = Database.enter(database);
+		try {
+			PageId pageno = new PageId(pid);
+			Page page = pinPage(pageno);
+			try {
+				return DecodedPageCache.get(pageno, page,
+						headerPage.get_keyType());
+			} finally {
+				unpinPage(pageno);
+			}
+		} finally {
+			Database.exit(saved);
+		}
+	}
+
 	private PageId get_file_entry(String filename) throws GetFileEntryException {
 		try {
 			return SystemDefs.JavabaseDB.get_file_entry(filename);
@@ -112,6 +169,11 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	}
 
 	private void freePage(PageId pageno) throws FreePageException {
+		DecodedPageCache.invalidate(pageno);
+		if (bloom != null)
+			bloom.remove(pageno.pid);
+		if (hashIndex != null)
+			hashIndex.removePage(pageno.pid);
 		try {
 			SystemDefs.JavabaseBM.freePage(pageno);
 		} catch (Exception e) {
@@ -133,6 +195,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private void unpinPage(PageId pageno, boolean dirty)
 			throws UnpinPageException {
+		if (dirty)
+			DecodedPageCache.invalidate(pageno);
 		try {
 			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
 		} catch (Exception e) {
@@ -156,10 +220,38 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 */
 	public BTreeFile(String filename) throws GetFileEntryException,
 			PinPageException, ConstructPageException {
+		this(null, filename);
+	}
 
-		headerPageId = get_file_entry(filename);
+	/**
+	 * BTreeFile class an index file with given filename should already exist
+	 * in the database; this opens it.
+	 *
+	 * @param database
+	 *            the database of the index; null for the one SystemDefs
+	 *            holds. Input parameter.
+	 * @param filename
+	 *            the B+ tree file name. Input parameter.
+	 * @exception GetFileEntryException
+	 *                can not ger the file from DB
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 * @exception ConstructPageException
+	 *                BT page constructor failed
+	 */
+	public BTreeFile(Database database, String filename)
+			throws GetFileEntryException, PinPageException,
+			ConstructPageException {
+		this.database = database;
+		Database.Binding saved = Database.enter(database);
+		try {
+			headerPageId = get_file_entry(filename);
 
-		headerPage = new BTreeHeaderPage(headerPageId);
+			headerPage = new BTreeHeaderPage(headerPageId);
+			checkPageSize();
+		} finally {
+			Database.exit(saved);
+		}
 		dbname = new String(filename);
 		/*
 		 * 
@@ -177,7 +269,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @param keytype
 	 *            the type of key. Input parameter.
 	 * @param keysize
-	 *            the maximum size of a key. Input parameter.
+	 *            the maximum size of a key, the exact width for
+	 *            KeyType.attrFixedBytes. Input parameter.
 	 * @param delete_fashion
 	 *            full delete or naive delete. Input parameter. It is either
 	 *            DeleteFashion.NAIVE_DELETE or DeleteFashion.FULL_DELETE.
@@ -193,27 +286,223 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	public BTreeFile(String filename, int keytype, int keysize,
 			int delete_fashion) throws GetFileEntryException,
 			ConstructPageException, IOException, AddFileEntryException {
+		this(filename, keytype, keysize, delete_fashion, 0);
+	}
 
-		headerPageId = get_file_entry(filename);
-		if (headerPageId == null) // file not exist
-		{
-			headerPage = new BTreeHeaderPage();
-			headerPageId = headerPage.getPageId();
-			add_file_entry(filename, headerPageId);
-			headerPage.set_magic0(MAGIC0);
-			headerPage.set_rootId(new PageId(INVALID_PAGE));
-			headerPage.set_keyType((short) keytype);
-			headerPage.set_maxKeySize(keysize);
-			headerPage.set_deleteFashion(delete_fashion);
-			headerPage.setType(NodeType.BTHEAD);
-		} else {
-			headerPage = new BTreeHeaderPage(headerPageId);
+	/**
+	 * if index file exists, open it; else create it with the given options.
+	 *
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key, the exact width for
+	 *            KeyType.attrFixedBytes. Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter. It is either
+	 *            DeleteFashion.NAIVE_DELETE or DeleteFashion.FULL_DELETE.
+	 * @param flags
+	 *            IndexFlags or-ed together; ignored if the file exists. Input
+	 *            parameter.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public BTreeFile(String filename, int keytype, int keysize,
+			int delete_fashion, int flags) throws GetFileEntryException,
+			ConstructPageException, IOException, AddFileEntryException {
+		this(null, filename, keytype, keysize, delete_fashion, flags);
+	}
+
+	/**
+	 * if index file exists in the database, open it; else create it there
+	 * with the given options.
+	 *
+	 * @param database
+	 *            the database of the index; null for the one SystemDefs
+	 *            holds. Input parameter.
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key, the exact width for
+	 *            KeyType.attrFixedBytes. Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter. It is either
+	 *            DeleteFashion.NAIVE_DELETE or DeleteFashion.FULL_DELETE.
+	 * @param flags
+	 *            IndexFlags or-ed together; ignored if the file exists. Input
+	 *            parameter.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public BTreeFile(Database database, String filename, int keytype,
+			int keysize, int delete_fashion, int flags)
+			throws GetFileEntryException, ConstructPageException, IOException,
+			AddFileEntryException {
+		this.database = database;
+		Database.Binding saved = Database.enter(database);
+		try {
+			headerPageId = get_file_entry(filename);
+			if (headerPageId == null) // file not exist
+			{
+				headerPage = new BTreeHeaderPage();
+				headerPageId = headerPage.getPageId();
+				add_file_entry(filename, headerPageId);
+				headerPage.set_magic0(MAGIC0);
+				headerPage.set_rootId(new PageId(INVALID_PAGE));
+				headerPage.set_keyType((short) NormalizedKey
+						.storedType(keytype));
+				headerPage.setSlot(KEYTYPE_SLOT, keytype, 0);
+				headerPage.set_maxKeySize(keysize);
+				headerPage.set_deleteFashion(delete_fashion);
+				headerPage.setSlot(FLAGS_SLOT, flags, 0);
+				headerPage.setSlot(PAGESIZE_SLOT, Integer
+						.numberOfTrailingZeros(MINIBASE_PAGESIZE), MAGIC0);
+				headerPage.setType(NodeType.BTHEAD);
+			} else {
+				headerPage = new BTreeHeaderPage(headerPageId);
+				checkPageSize();
+			}
+		} finally {
+			Database.exit(saved);
 		}
 
 		dbname = new String(filename);
 
 	}
 
+	/**
+	 * The key type the index was created with. This differs from the key type
+	 * in the header page for key types that are stored as normalized
+	 * StringKeys: KeyType.attrComposite, attrLong and attrFixedBytes.
+	 *
+	 * @return the key type of the index
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public int getKeyType() throws IOException {
+		int keyType = headerPage.getSlotLength(KEYTYPE_SLOT);
+		if (NormalizedKey.isNormalized(keyType))
+			return keyType;
+		// files created before the slot was written
+		return headerPage.get_keyType();
+	}
+
+	/**
+	 * The page size the index was created with. Only indexes created with the
+	 * page size of this build, MINIBASE_PAGESIZE, can be opened; files made
+	 * before the page size was recorded are taken to have it.
+	 *
+	 * @return the page size in bytes
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public int getPageSize() throws IOException {
+		if (headerPage.getSlotOffset(PAGESIZE_SLOT) != MAGIC0)
+			return MINIBASE_PAGESIZE;
+		return 1 << headerPage.getSlotLength(PAGESIZE_SLOT);
+	}
+
+	/*
+	 * refuse an index written with pages of another size; its slot
+	 * arithmetic would read garbage. Unpins the header page if so.
+	 */
+	private void checkPageSize() throws ConstructPageException {
+		int pageSize;
+		try {
+			pageSize = getPageSize();
+		} catch (IOException e) {
+			throw new ConstructPageException(e, "");
+		}
+		if (pageSize == MINIBASE_PAGESIZE)
+			return;
+		try {
+			SystemDefs.JavabaseBM.unpinPage(headerPageId, false);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		throw new ConstructPageException(null, "index has " + pageSize
+				+ "-byte pages, this build uses " + MINIBASE_PAGESIZE);
+	}
+
+	/**
+	 * @return the IndexFlags the index was created with; 0 for files made
+	 *         before the flags were recorded
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public int getFlags() throws IOException {
+		// past the slot directory of an older header is whatever was there
+		if (headerPage.getSlotOffset(PAGESIZE_SLOT) != MAGIC0
+				&& headerPage.getSlotCnt() <= FLAGS_SLOT)
+			return 0;
+		return headerPage.getSlotLength(FLAGS_SLOT);
+	}
+
+	/**
+	 * Map a key returned by a scan of this index back to the key class it was
+	 * inserted with. Keys of integer and string indexes are returned as they
+	 * are.
+	 *
+	 * @param key
+	 *            a key read from this index. Input parameter.
+	 * @return the key as the caller's key class
+	 * @exception KeyNotMatchException
+	 *                key does not belong to this index
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public KeyClass decodeKey(KeyClass key) throws KeyNotMatchException,
+			IOException {
+		if (key == null)
+			return null;
+		int keyType = getKeyType();
+		if (!NormalizedKey.isNormalized(keyType))
+			return key;
+		if (!(key instanceof StringKey))
+			throw new KeyNotMatchException(null, "not a stored key");
+
+		switch (keyType) {
+		case KeyType.attrLong:
+			return LongKey.fromStringKey((StringKey) key);
+		case KeyType.attrFixedBytes:
+			return new FixedBytesKey(NormalizedKey
+					.fromStringKey((StringKey) key));
+		default:
+			return new CompositeKey(NormalizedKey
+					.fromStringKey((StringKey) key));
+		}
+	}
+
+	/*
+	 * The key as stored in the pages. A normalized key used as the inclusive
+	 * high end of a range is extended so that it also covers every key it is a
+	 * prefix of.
+	 */
+	static KeyClass storedKey(KeyClass key, boolean upperBound) {
+		if (key instanceof CompositeKey)
+			return ((CompositeKey) key).toStringKey(upperBound);
+		if (key instanceof LongKey)
+			return ((LongKey) key).toStringKey(upperBound);
+		if (key instanceof FixedBytesKey)
+			return ((FixedBytesKey) key).toStringKey(upperBound);
+		return key;
+	}
+
 	/**
 	 * Close the B+ tree file. Unpin header page.
 	 *
@@ -229,6 +518,17 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	public void close() throws PageUnpinnedException,
 			InvalidFrameNumberException, HashEntryNotFoundException,
 			ReplacerException {
+		Database.Binding saved = Database.enter(database);
+		try {
+			_close();
+		} finally {
+			Database.exit(saved);
+		}
+	}
+
+	private void _close() throws PageUnpinnedException,
+			InvalidFrameNumberException, HashEntryNotFoundException,
+			ReplacerException {
 		if (headerPage != null) {
 			SystemDefs.JavabaseBM.unpinPage(headerPageId, true);
 			headerPage = null;
@@ -256,6 +556,17 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	public void destroyFile() throws IOException, IteratorException,
 			UnpinPageException, FreePageException, DeleteFileEntryException,
 			ConstructPageException, PinPageException {
+		Database.Binding saved = Database.enter(database);
+		try {
+			_destroy();
+		} finally {
+			Database.exit(saved);
+		}
+	}
+
+	private void _destroy() throws IOException, IteratorException,
+			UnpinPageException, FreePageException, DeleteFileEntryException,
+			ConstructPageException, PinPageException {
 		if (headerPage != null) {
 			PageId pgId = headerPage.get_rootId();
 			if (pgId.pid != INVALID_PAGE)
@@ -286,8 +597,22 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				childId = ((IndexData) (entry.data)).getData();
 				_destroyFile(childId);
 			}
+			_destroyFile(indexPage.getPrevPage()); // the leftmost child
+			unpinPage(pageno);
+			freePage(pageno);
 		} else { // BTLeafPage
 
+			if ((getFlags() & IndexFlags.POSTING_LISTS) != 0) {
+				BTLeafPage leafPage = new BTLeafPage(page,
+						headerPage.get_keyType());
+				RID rid = new RID();
+				for (KeyDataEntry entry = leafPage.getFirst(rid); entry != null; entry = leafPage
+						.getNext(rid)) {
+					RID data = ((LeafData) entry.data).getData();
+					if (PostingList.isPosting(data))
+						PostingList.free(data.pageNo);
+				}
+			}
 			unpinPage(pageno);
 			freePage(pageno);
 		}
@@ -304,6 +629,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 		old_data = headerPage.get_rootId();
 		header.set_rootId(newRoot);
+		BTreeTrace.event(BTreeTrace.NEW_ROOT, newRoot.pid, old_data.pid);
 
 		// clock in dirty bit to bm so our dtor needn't have to worry about it
 		unpinPage(headerPageId, true /* = DIRTY */);
@@ -349,7 +675,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @exception LeafDeleteException
 	 *                error when delete in leaf page
 	 * @exception InsertException
-	 *                error when insert in index page
+	 *                error when insert in index page, or key already in a
+	 *                unique index
 	 */
 	public void insert(KeyClass key, RID rid) throws KeyTooLongException,
 			KeyNotMatchException, LeafInsertRecException,
@@ -360,83 +687,687 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			IOException
 
 	{	
-		if (headerPage.get_rootId().pid == INVALID_PAGE)   						//if tree is empty create first page
-		{
-			BTLeafPage newLeafPage = new BTLeafPage(headerPage.get_keyType()); 	// Craeting new leaf page
-			PageId newLeafPageId = newLeafPage.getCurPage();
-			
-			newLeafPage.setNextPage(new PageId(INVALID_PAGE));					//set next and prev page pointers of leaf page
-			newLeafPage.setPrevPage(new PageId(INVALID_PAGE));
-			
-			newLeafPage.insertRecord(key, rid);									//insert records at the page and returns rid
-			
-			unpinPage(newLeafPageId);											//dirty page, unpinning it
-			updateHeader(newLeafPageId);
-		}
-		else  																	// tree is not empty, calling _insert() to insert [key, rid] pair(using Alt. 2)
-		{
-			KeyDataEntry newRootDataEntry;
-			newRootDataEntry= _insert(key, rid, headerPage.get_rootId());  		// return , in case split is populated till root
-			//System.out.println(newRootDataEntry);  -- two times (debugging-tag)
-			if (newRootDataEntry != null)   									//split happened at root
-			{
-				BTIndexPage newRootIndexPage;
-				PageId newPageId;
- 
-				newRootIndexPage = new BTIndexPage(headerPage.get_keyType());  // creating Index page
-				newPageId=newRootIndexPage.getCurPage();
-				newRootIndexPage.insertKey(newRootDataEntry.key, 
-							((IndexData)newRootDataEntry.data).getData() );
-				newRootIndexPage.setPrevPage(headerPage.get_rootId());
-	  
-				unpinPage(newPageId, true); 
-	  
-				updateHeader(newPageId);
-			}
+		if ((getFlags() & IndexFlags.UNIQUE) != 0) {
+			if (insertEntry(key, rid, INSERT_UNIQUE))
+				throw new InsertException(null, "duplicate key " + key);
+		} else {
+			insertEntry(key, rid, INSERT);
 		}
 	}
 
-	private KeyDataEntry _insert(KeyClass key, RID rid, PageId currentPageId)
-			throws PinPageException, IOException, ConstructPageException,
-			LeafDeleteException, ConstructPageException, DeleteRecException,
-			IndexSearchException, UnpinPageException, LeafInsertRecException,
-			ConvertException, IteratorException, IndexInsertRecException,
-			KeyNotMatchException, NodeNotMatchException, InsertException
+	/**
+	 * insert record with the given key and rid unless the key is already in
+	 * the index. The check is made on the leaf reached by the insert's own
+	 * descent, so it costs no extra page pins. It is exact on an index created
+	 * with IndexFlags.UNIQUE; on other indexes a key whose duplicates have
+	 * spilled onto a neighbouring leaf may be missed.
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @return true if inserted, false if the key was already there
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when insert in index page
+	 */
+	public boolean insertIfAbsent(KeyClass key, RID rid)
+			throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, ConvertException, DeleteRecException,
+			IndexSearchException, IteratorException, LeafDeleteException,
+			InsertException, IOException {
+		return !insertEntry(key, rid, INSERT_IF_ABSENT);
+	}
 
-	{
-		Page emptyPage;      																				//creating empty page and pinning it
-		emptyPage = pinPage(currentPageId);
-		
-		BTSortedPage currentPage = new BTSortedPage(emptyPage, headerPage.get_keyType());
-		KeyDataEntry newDataEntry;
-		
-		if (currentPage.getType() == NodeType.INDEX)														//checking whether page is INDEX or LEAF
-		{
-			//System.out.println(currentPage);    -- (debugging-tag)
-			BTIndexPage currentIdxPage =  new BTIndexPage(emptyPage, headerPage.get_keyType());
-			PageId IdxPageId = currentPageId;
-			PageId nextPageId;
-			nextPageId = currentIdxPage.getPageNoByKey(key);
-			unpinPage(IdxPageId);																			//dirty page, unpinning it
-			
-			newDataEntry = _insert(key, rid, nextPageId);   												//recursive call of _insert
-			if (newDataEntry == null)
-				return null;
-			
-			currentIdxPage = new BTIndexPage(pinPage(currentPageId),headerPage.get_keyType());
-			
-			if (currentIdxPage.available_space() >= BT.getKeyDataLength(newDataEntry.key,NodeType.INDEX))
-			{
-				//System.out.println(currentIdxPage)  -- (debugging-tag)
-					currentIdxPage.insertKey(newDataEntry.key,((IndexData)newDataEntry.data).getData());  	//insert data on current leaf node
-					unpinPage(IdxPageId);
-					return null;
-			}
-			BTIndexPage nextIndexPage = new BTIndexPage(headerPage.get_keyType());;
-			PageId newIndexPageId;
-			newIndexPageId = nextIndexPage.getCurPage();
-			
-			KeyDataEntry thisDataEntry;
+	/**
+	 * insert record with the given key and rid, or if the key is already in
+	 * the index, replace the rid of its entry in place. Like insertIfAbsent
+	 * this takes a single descent and is exact on an index created with
+	 * IndexFlags.UNIQUE. On an index with IndexFlags.POSTING_LISTS rid
+	 * replaces every rid of the key, and the key's posting list is freed.
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @return true if an existing entry was updated, false if inserted
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when insert in index page
+	 */
+	public boolean upsert(KeyClass key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		return insertEntry(key, rid, UPSERT);
+	}
+
+	/**
+	 * Keep a Bloom filter of the keys of each leaf, in memory, so that
+	 * containsKey can answer for most absent keys from the index page above
+	 * the leaf. The filters are built now, one pass over the leaves, and
+	 * follow the inserts made through this object. They cost about
+	 * bitsPerKey bits per key; see stats() for their size and false
+	 * positives.
+	 *
+	 * @param bitsPerKey
+	 *            bits of filter per key, 10 for about 1% false positives; 0
+	 *            drops the filters
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void setBloomFilters(int bitsPerKey) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		Database.Binding saved = Database.enter(database);
+		try {
+			bloom = null;
+			if (bitsPerKey <= 0)
+				return;
+			LeafBloomFilters filters = new LeafBloomFilters(bitsPerKey);
+			int keyType = headerPage.get_keyType();
+			RID rid = new RID();
+			BTLeafPage leaf = findRunStart(null, rid);
+			PageId pageno = leaf == null ? null : leaf.getCurPage();
+			while (pageno != null) {
+				DecodedPageCache.View view = DecodedPageCache.get(pageno,
+						leaf == null ? pinPage(pageno) : leaf, keyType);
+				leaf = null;
+				filters.build(pageno.pid, view.keys);
+				unpinPage(pageno);
+				pageno = view.nextPage == INVALID_PAGE ? null : new PageId(
+						view.nextPage);
+			}
+			bloom = filters;
+		} finally {
+			Database.exit(saved);
+		}
+	}
+
+	/**
+	 * Keep an adaptive hash index of the keys containsKey finds often: a
+	 * hint, in memory, to the leaf and slot each was found in, checked
+	 * against the version of the leaf before it is trusted, so that a lookup
+	 * of a hot key skips the descent. See stats() for their hits.
+	 *
+	 * @param capacity
+	 *            hot keys to keep hints for, the least recently used going
+	 *            first; 0 drops the index
+	 */
+	public void setAdaptiveHashIndex(int capacity) {
+		Database.Binding saved = Database.enter(database);
+		try {
+			hashIndex = capacity <= 0 ? null : new AdaptiveHashIndex(capacity);
+		} finally {
+			Database.exit(saved);
+		}
+	}
+
+	/**
+	 * Is there an entry with the given key. With Bloom filters on (see
+	 * setBloomFilters), an absent key is mostly found out from the index
+	 * page above its leaf, without pinning the leaf. With the adaptive hash
+	 * index on (see setAdaptiveHashIndex), a hot key is mostly found
+	 * without a descent.
+	 *
+	 * @param key
+	 *            the key to look for
+	 * @return true if the index has an entry with the key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public boolean containsKey(KeyClass key) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		Database.Binding saved = Database.enter(database);
+		long t0 = System.nanoTime();
+		try {
+			return _containsKey(storedKey(key, false));
+		} finally {
+			BTreeMetrics.record(BTreeMetrics.SEEK, t0);
+			Database.exit(saved);
+		}
+	}
+
+	private boolean _containsKey(KeyClass key) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		int keyType = headerPage.get_keyType();
+		PageId pageno = headerPage.get_rootId();
+		if (pageno.pid == INVALID_PAGE)
+			return false;
+		if (hashIndex != null && hashIndex.hit(key))
+			return true;
+		Page page = pinPage(pageno);
+		DecodedPageCache.View view = DecodedPageCache.get(pageno, page, keyType);
+		BTreeMetrics.descents.increment();
+
+		// the key equals the separator right of the subtree, so leaves past
+		// the one it goes to may have it too
+		boolean onFence = false;
+		KeyClass low = null, high = null;
+		view.fence(low, high);
+		while (view.type == NodeType.INDEX) {
+			int i = view.search(key);
+			if (i < view.keys.length)
+				onFence = BT.keyCompare(view.keys[i], key) == 0;
+			if (i > 0)
+				low = view.keys[i - 1];
+			if (i < view.keys.length)
+				high = view.keys[i];
+			PageId child = new PageId(view.child(i));
+			unpinPage(pageno);
+			if (bloom != null && !onFence && bloom.absent(child.pid, key))
+				return false;
+			pageno = child;
+			page = pinPage(pageno);
+			view = DecodedPageCache.get(pageno, page, keyType);
+			view.fence(low, high);
+		}
+
+		if (bloom != null && !bloom.has(pageno.pid))
+			bloom.build(pageno.pid, view.keys);
+		boolean filtered = bloom != null && !onFence;
+		// the first entry >= key, past leaves with smaller keys only
+		while (true) {
+			int i = view.search(key);
+			if (i < view.keys.length) {
+				boolean found = BT.keyCompare(view.keys[i], key) == 0;
+				unpinPage(pageno);
+				if (filtered && !found)
+					bloom.falsePositive();
+				if (found && hashIndex != null)
+					hashIndex.found(key, pageno.pid, view.values[i]);
+				return found;
+			}
+			int next = view.nextPage;
+			unpinPage(pageno);
+			if (next == INVALID_PAGE) {
+				if (filtered)
+					bloom.falsePositive();
+				return false;
+			}
+			pageno = new PageId(next);
+			page = pinPage(pageno);
+			view = DecodedPageCache.get(pageno, page, keyType);
+		}
+	}
+
+	/**
+	 * insert a batch of records sorted by key. Consecutive keys that fall
+	 * strictly between the first and last key of one leaf go straight into
+	 * it, pinned once, without a descent each, and its slot directory is
+	 * put in order once at the end rather than per record; the others, and
+	 * keys whose leaf is full, take the path of insert. On an index with
+	 * IndexFlags.UNIQUE or IndexFlags.POSTING_LISTS every record takes that
+	 * path.
+	 *
+	 * @param keys
+	 *            the keys of the records, ascending. Input parameter.
+	 * @param rids
+	 *            the rids of the records. Input parameter.
+	 * @param n
+	 *            the number of records, from the start of the arrays. Input
+	 *            parameter.
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when insert in index page
+	 */
+	public void insertSorted(KeyClass[] keys, RID[] rids, int n)
+			throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, ConvertException, DeleteRecException,
+			IndexSearchException, IteratorException, LeafDeleteException,
+			InsertException, IOException {
+		if ((getFlags() & (IndexFlags.UNIQUE | IndexFlags.POSTING_LISTS)) != 0) {
+			for (int i = 0; i < n; i++)
+				insert(keys[i], rids[i]);
+			return;
+		}
+		Database.Binding saved = Database.enter(database);
+		long t0 = System.nanoTime();
+		try {
+			_insertSorted(keys, rids, n);
+		} finally {
+			BTreeMetrics.record(BTreeMetrics.INSERT, t0);
+			Database.exit(saved);
+		}
+	}
+
+	private void _insertSorted(KeyClass[] keys, RID[] rids, int n)
+			throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, ConvertException, DeleteRecException,
+			IndexSearchException, IteratorException, LeafDeleteException,
+			InsertException, IOException {
+		int keyType = headerPage.get_keyType();
+		BTLeafPage leaf = null;
+		KeyClass first = null, last = null;
+		int[] added = new int[MINIBASE_PAGESIZE / HFPage.SIZE_OF_SLOT];
+		int addedCount = 0;
+		int addedFrom = 0; // index in keys of the first record added
+		try {
+			for (int i = 0; i < n; i++) {
+				checkKey(keys[i]);
+				KeyClass key = storedKey(keys[i], false);
+
+				if (leaf != null
+						&& (BT.keyCompare(key, first) <= 0 || BT.keyCompare(
+								key, last) >= 0)) {
+					releaseLeaf(leaf, added, addedCount, keys, addedFrom);
+					leaf = null;
+				}
+				if (leaf == null) {
+					// the leaf whose key range the next keys may fall in
+					leaf = findRunStart(key, new RID());
+					if (leaf != null) {
+						addedCount = 0;
+						addedFrom = i;
+						first = entryKey(leaf, 0, keyType);
+						last = entryKey(leaf, leaf.getSlotCnt() - 1, keyType);
+						if (BT.keyCompare(key, first) <= 0
+								|| BT.keyCompare(key, last) >= 0) {
+							unpinPage(leaf.getCurPage());
+							leaf = null;
+						}
+					}
+				}
+
+				// strictly inside a leaf's keys, the key belongs on it; the
+				// record is appended now and put in order on release
+				if (leaf != null
+						&& leaf.available_space() >= BT.getKeyDataLength(key,
+								NodeType.LEAF)) {
+					added[addedCount++] = appendRecord(leaf, BT
+							.getBytesFromEntry(new KeyDataEntry(key, rids[i])));
+					if (bloom != null)
+						bloom.add(leaf.getCurPage().pid, key);
+					continue;
+				}
+				if (leaf != null) {
+					releaseLeaf(leaf, added, addedCount, keys, addedFrom);
+					leaf = null;
+				}
+				_insertEntry(key, rids[i], INSERT);
+			}
+		} finally {
+			if (leaf != null)
+				releaseLeaf(leaf, added, addedCount, keys, addedFrom);
+		}
+	}
+
+	/*
+	 * The checks a key passes before an insert touches a page, made early
+	 * by the write buffers too: a FixedBytesKey must be as wide as the index
+	 * says, and an entry small enough that a leaf holds two of them.
+	 */
+	void checkKey(KeyClass key) throws KeyTooLongException,
+			KeyNotMatchException, NodeNotMatchException, IOException {
+		if (key instanceof FixedBytesKey
+				&& ((FixedBytesKey) key).length() != headerPage.get_maxKeySize())
+			throw new KeyNotMatchException(null, "key width does not match the index");
+		int limit = (MINIBASE_PAGESIZE - HFPage.DPFIXED) / 2
+				- HFPage.SIZE_OF_SLOT;
+		if (BT.getKeyDataLength(storedKey(key, false), NodeType.LEAF) > limit)
+			throw new KeyTooLongException(null, "key does not fit in a page");
+	}
+
+	/*
+	 * Sort the records appended to a leaf in among the others, old ones
+	 * first among equal keys as insert would, and unpin it. The slots of the
+	 * non-empty records get their entries in key order.
+	 */
+	private void releaseLeaf(BTLeafPage leaf, int[] added, int addedCount,
+			KeyClass[] keys, int addedFrom) throws IOException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException,
+			UnpinPageException {
+		PageId pageno = leaf.getCurPage();
+		if (addedCount == 0) {
+			unpinPage(pageno);
+			return;
+		}
+		int keyType = headerPage.get_keyType();
+		int count = leaf.getSlotCnt();
+		boolean[] isAdded = new boolean[count];
+		for (int i = 0; i < addedCount; i++)
+			isAdded[added[i]] = true;
+
+		int[] positions = new int[count];
+		int used = 0;
+		for (int slot = 0; slot < count; slot++)
+			if (leaf.getSlotLength(slot) >= 0)
+				positions[used++] = slot;
+		short[] lengths = new short[used];
+		short[] offsets = new short[used];
+		int o = 0, a = 0;
+		KeyClass oldKey = null;
+		for (int r = 0; r < used; r++) {
+			while (o < count && (isAdded[o] || leaf.getSlotLength(o) < 0))
+				o++;
+			if (o < count && oldKey == null)
+				oldKey = entryKey(leaf, o, keyType);
+			int slot;
+			if (a == addedCount
+					|| (o < count && BT.keyCompare(oldKey, storedKey(
+							keys[addedFrom + a], false)) <= 0)) {
+				slot = o++;
+				oldKey = null;
+			} else {
+				slot = added[a++];
+			}
+			lengths[r] = leaf.getSlotLength(slot);
+			offsets[r] = leaf.getSlotOffset(slot);
+		}
+		for (int r = 0; r < used; r++)
+			leaf.setSlot(positions[r], lengths[r], offsets[r]);
+		unpinPage(pageno, true);
+	}
+
+	/*
+	 * Move the upper half of a full leaf, by bytes, to the new empty leaf
+	 * after it. The records are copied out once and both pages rebuilt from
+	 * them in order, instead of moving one sorted record at a time, each
+	 * move shifting the slot directory.
+	 */
+	private void splitLeaf(BTLeafPage leaf, PageId leafId, BTLeafPage newLeaf)
+			throws IOException {
+		int count = leaf.getSlotCnt();
+		byte[][] records = new byte[count][];
+		int n = 0, bytes = 0;
+		byte[] data = leaf.getpage();
+		for (int slot = 0; slot < count; slot++) {
+			int length = leaf.getSlotLength(slot);
+			if (length < 0)
+				continue;
+			records[n] = new byte[length];
+			System.arraycopy(data, leaf.getSlotOffset(slot), records[n], 0,
+					length);
+			bytes += length;
+			n++;
+		}
+		int split = 0, half = 0;
+		while (split < n - 1 && half + records[split].length <= bytes / 2)
+			half += records[split++].length;
+		split = Math.max(1, split);
+
+		// init resets the PageIds the page hands out, so copy them
+		PageId prev = new PageId(leaf.getPrevPage().pid);
+		PageId next = new PageId(leaf.getNextPage().pid);
+		leaf.init(leafId, leaf);
+		leaf.setType(NodeType.LEAF);
+		leaf.setPrevPage(prev);
+		leaf.setNextPage(next);
+		for (int i = 0; i < split; i++)
+			appendRecord(leaf, records[i]);
+		for (int i = split; i < n; i++)
+			appendRecord(newLeaf, records[i]);
+	}
+
+	/*
+	 * Add a record in a new slot at the end of the slot directory, as
+	 * HFPage.insertRecord does on a page without empty slots, which sorted
+	 * pages never have, but on the bytes directly: HFPage reads and writes
+	 * every field through a stream. The caller has checked the space.
+	 * Returns the slot.
+	 */
+	private static int appendRecord(HFPage page, byte[] record) {
+		byte[] data = page.getpage();
+		int slot = getShort(data, HFPage.SLOT_CNT);
+		int used = getShort(data, HFPage.USED_PTR) - record.length;
+		int free = getShort(data, HFPage.FREE_SPACE) - record.length
+				- HFPage.SIZE_OF_SLOT;
+		System.arraycopy(record, 0, data, used, record.length);
+		int dir = HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT;
+		putShort(data, dir, record.length);
+		putShort(data, dir + 2, used);
+		putShort(data, HFPage.SLOT_CNT, slot + 1);
+		putShort(data, HFPage.USED_PTR, used);
+		putShort(data, HFPage.FREE_SPACE, free);
+		return slot;
+	}
+
+	private static int getShort(byte[] data, int at) {
+		return (short) (((data[at] & 0xff) << 8) | (data[at + 1] & 0xff));
+	}
+
+	private static void putShort(byte[] data, int at, int value) {
+		data[at] = (byte) (value >> 8);
+		data[at + 1] = (byte) value;
+	}
+
+	private static KeyClass entryKey(BTSortedPage page, int slot, int keyType)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException, IOException {
+		return BT.getEntryFromBytes(page.getpage(), page.getSlotOffset(slot),
+				page.getSlotLength(slot), keyType, NodeType.LEAF).key;
+	}
+
+	/*
+	 * Insert [key, rid]; mode says what to do if the key is already in the
+	 * leaf. Returns true if it was, i.e. nothing new was inserted.
+	 */
+	private boolean insertEntry(KeyClass key, RID rid, int mode)
+			throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, ConvertException, DeleteRecException,
+			IndexSearchException, IteratorException, LeafDeleteException,
+			InsertException, IOException {
+		Database.Binding saved = Database.enter(database);
+		long t0 = System.nanoTime();
+		try {
+			return _insertEntry(key, rid, mode);
+		} finally {
+			BTreeMetrics.record(BTreeMetrics.INSERT, t0);
+			Database.exit(saved);
+		}
+	}
+
+	private boolean _insertEntry(KeyClass key, RID rid, int mode)
+			throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, ConvertException, DeleteRecException,
+			IndexSearchException, IteratorException, LeafDeleteException,
+			InsertException, IOException {
+		checkKey(key);
+		key = storedKey(key, false);
+		if (mode == INSERT && (getFlags() & IndexFlags.POSTING_LISTS) != 0
+				&& postingInsert(key, rid))
+			return false;
+		keyFound = false;
+		if (headerPage.get_rootId().pid == INVALID_PAGE)   						//if tree is empty create first page
+		{
+			BTLeafPage newLeafPage = new BTLeafPage(headerPage.get_keyType()); 	// Craeting new leaf page
+			PageId newLeafPageId = newLeafPage.getCurPage();
+			
+			newLeafPage.setNextPage(new PageId(INVALID_PAGE));					//set next and prev page pointers of leaf page
+			newLeafPage.setPrevPage(new PageId(INVALID_PAGE));
+			
+			newLeafPage.insertRecord(key, rid);									//insert records at the page and returns rid
+			
+			unpinPage(newLeafPageId, true);										//dirty page, unpinning it
+			updateHeader(newLeafPageId);
+		}
+		else  																	// tree is not empty, calling _insert() to insert [key, rid] pair(using Alt. 2)
+		{
+			KeyDataEntry newRootDataEntry;
+			BTreeMetrics.descents.increment();
+			newRootDataEntry= _insert(key, rid, headerPage.get_rootId(), mode);  // return , in case split is populated till root
+			//System.out.println(newRootDataEntry);  -- two times (debugging-tag)
+			if (newRootDataEntry != null)   									//split happened at root
+			{
+				BTIndexPage newRootIndexPage;
+				PageId newPageId;
+ 
+				newRootIndexPage = new BTIndexPage(headerPage.get_keyType());  // creating Index page
+				newPageId=newRootIndexPage.getCurPage();
+				newRootIndexPage.insertKey(newRootDataEntry.key, 
+							((IndexData)newRootDataEntry.data).getData() );
+				newRootIndexPage.setPrevPage(headerPage.get_rootId());
+	  
+				unpinPage(newPageId, true); 
+	  
+				updateHeader(newPageId);
+			}
+		}
+		return keyFound;
+	}
+
+	private KeyDataEntry _insert(KeyClass key, RID rid, PageId currentPageId,
+			int mode)
+			throws PinPageException, IOException, ConstructPageException,
+			LeafDeleteException, ConstructPageException, DeleteRecException,
+			IndexSearchException, UnpinPageException, LeafInsertRecException,
+			ConvertException, IteratorException, IndexInsertRecException,
+			KeyNotMatchException, NodeNotMatchException, InsertException
+
+	{
+		Page emptyPage;      																				//creating empty page and pinning it
+		emptyPage = pinPage(currentPageId);
+		
+		BTSortedPage currentPage = new BTSortedPage(emptyPage, headerPage.get_keyType());
+		KeyDataEntry newDataEntry;
+		
+		if (currentPage.getType() == NodeType.INDEX)														//checking whether page is INDEX or LEAF
+		{
+			//System.out.println(currentPage);    -- (debugging-tag)
+			DecodedPageCache.View view = DecodedPageCache.get(currentPageId,	//routing through the cached key array
+					emptyPage, headerPage.get_keyType());
+			BTIndexPage currentIdxPage;
+			PageId IdxPageId = currentPageId;
+			PageId nextPageId;
+			nextPageId = new PageId(view.child(view.search(key, true)));
+			unpinPage(IdxPageId);																			//dirty page, unpinning it
+			
+			newDataEntry = _insert(key, rid, nextPageId, mode);   											//recursive call of _insert
+			if (newDataEntry == null)
+				return null;
+			
+			currentIdxPage = new BTIndexPage(pinPage(currentPageId),headerPage.get_keyType());
+			
+			if (currentIdxPage.available_space() >= BT.getKeyDataLength(newDataEntry.key,NodeType.INDEX))
+			{
+				//System.out.println(currentIdxPage)  -- (debugging-tag)
+					currentIdxPage.insertKey(newDataEntry.key,((IndexData)newDataEntry.data).getData());  	//insert data on current leaf node
+					unpinPage(IdxPageId, true);
+					return null;
+			}
+			BTreeMetrics.indexSplits.increment();
+			BTIndexPage nextIndexPage = new BTIndexPage(headerPage.get_keyType());;
+			PageId newIndexPageId;
+			newIndexPageId = nextIndexPage.getCurPage();
+			BTreeTrace.event(BTreeTrace.INDEX_SPLIT, IdxPageId.pid, newIndexPageId.pid);
+			
+			KeyDataEntry thisDataEntry;
 			RID prevRid = new RID();
 			
 			for (thisDataEntry=currentIdxPage.getFirst(prevRid);
@@ -488,6 +1419,9 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			
 			nextIndexPage.deleteSortedRecord(prevRid);														// take first record of new Index page and delete it
 			unpinPage(newIndexPageId, true);   
+			// messages for keys past the separator move along
+			if (buffered != null)
+				buffered.indexSplit(IdxPageId.pid, newIndexPageId.pid, newDataEntry.key);
 			((IndexData)newDataEntry.data).setData(newIndexPageId);
 			//System.out.println("Data entry is:" + newDataEntry);  --(debugging-tag)
 			return newDataEntry; 
@@ -497,15 +1431,59 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			BTLeafPage currentLeafPage = new BTLeafPage(emptyPage,headerPage.get_keyType());
 			PageId currentLeafPageId = currentPageId;
 			
+			// look for the key on this leaf first
+			if (mode != INSERT)
+			{
+				RID curRid = new RID();
+				for (KeyDataEntry leafEntry = currentLeafPage.getFirst(curRid); leafEntry != null;
+					leafEntry = currentLeafPage.getNext(curRid))
+				{
+					int cmp = BT.keyCompare(leafEntry.key, key);
+					if (cmp > 0)
+						break;
+					if (cmp == 0)
+					{
+						keyFound = true;
+						if (mode == UPSERT)
+						{
+							// rid replaces all the key's rids, so a posting list goes
+							RID old = ((LeafData) leafEntry.data).getData();
+							if (PostingList.isPosting(old))
+							{
+								try
+								{
+									PostingList.free(old.pageNo);
+								}
+								catch (FreePageException e)
+								{
+									unpinPage(currentLeafPageId);
+									throw new InsertException(e, "");
+								}
+							}
+							// replace the rid in place
+							setLeafRid(currentLeafPage, curRid, rid);
+							unpinPage(currentLeafPageId, true);
+						}
+						else
+							unpinPage(currentLeafPageId);
+						return null;
+					}
+				}
+			}
+			
 			if (currentLeafPage.available_space() >=														// check space on current leaf page
 				BT.getKeyDataLength(key, NodeType.LEAF))													// space available means - no split has occurred
 			{
 				currentLeafPage.insertRecord(key, rid); 
+				if (bloom != null)
+					bloom.add(currentLeafPageId.pid, key);
 				unpinPage(currentLeafPageId, true);
 				return null;
 			}
+			BTreeMetrics.leafSplits.increment();
 			BTLeafPage newLeafPage = new BTLeafPage(headerPage.get_keyType());
 			PageId newLeafPageId = newLeafPage.getCurPage();	  
+			BTreeTrace.event(BTreeTrace.LEAF_SPLIT, currentLeafPageId.pid, newLeafPageId.pid);
 			newLeafPage.setNextPage(currentLeafPage.getNextPage());
 			newLeafPage.setPrevPage(currentLeafPageId); 
 			currentLeafPage.setNextPage(newLeafPageId);
@@ -517,48 +1495,27 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				BTLeafPage rightPage;
 				rightPage=new BTLeafPage(rightPageId, headerPage.get_keyType());
 				rightPage.setPrevPage(newLeafPageId);
-				unpinPage(rightPageId, true);
-			}
-			
-			KeyDataEntry thisDataEntry;
-			RID thisRID=new RID();
-	  
-			for (thisDataEntry = currentLeafPage.getFirst(thisRID);thisDataEntry != null;
-				thisDataEntry = currentLeafPage.getFirst(thisRID))
-			{
-				newLeafPage.insertRecord(thisDataEntry.key,((LeafData)(thisDataEntry.data)).getData());
-				currentLeafPage.deleteSortedRecord(thisRID);
-			}
-			KeyDataEntry undoEntry=null; 
-			for (thisDataEntry = newLeafPage.getFirst(thisRID);
-				newLeafPage.available_space() < currentLeafPage.available_space(); 
-				thisDataEntry=newLeafPage.getFirst(thisRID))
-			{	   
-				undoEntry=thisDataEntry;
-				currentLeafPage.insertRecord(thisDataEntry.key,((LeafData)thisDataEntry.data).getData());
-				newLeafPage.deleteSortedRecord(thisRID);		
-			}
-			if (BT.keyCompare(key, undoEntry.key ) <  0) 
-			{
-			
-				if (currentLeafPage.available_space() < newLeafPage.available_space()) 
-				{
-					newLeafPage.insertRecord(undoEntry.key,((LeafData)undoEntry.data).getData());			//undo the final record
-					currentLeafPage.deleteSortedRecord(new RID(currentLeafPage.getCurPage(),
-														(int)currentLeafPage.getSlotCnt()-1) );              
-				}
+				unpinPage(rightPageId, true);
 			}
-													//check <key, rid> pair needs to be inserted on old leaf page or new page
-	  
-			if (BT.keyCompare(key,undoEntry.key ) >= 0)
-			{                     
-													// the new data entry belongs on the new Leaf page
+			
+			splitLeaf(currentLeafPage, currentLeafPageId, newLeafPage);
+			KeyDataEntry thisDataEntry;
+			RID thisRID=new RID();
+			thisDataEntry=newLeafPage.getFirst(thisRID);
+			if (BT.keyCompare(key, thisDataEntry.key) >= 0)					//check <key, rid> pair needs to be inserted on old leaf page or new page
+			{
 				newLeafPage.insertRecord(key, rid);
 			}
-			else 
+			else
 			{
-				currentLeafPage.insertRecord(key,rid);
+				currentLeafPage.insertRecord(key, rid);
 			}
+			// both halves keep the old leaf's keys in their filters
+			if (bloom != null)
+				bloom.split(currentLeafPageId.pid, newLeafPageId.pid, key);
+			// the hints of the old leaf may point to moved keys
+			if (hashIndex != null)
+				hashIndex.removePage(currentLeafPageId.pid);
 	  
 			unpinPage(currentLeafPageId, true); 
 			thisDataEntry=newLeafPage.getFirst(thisRID);
@@ -629,10 +1586,22 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			IndexFullDeleteException, LeafDeleteException, IteratorException,
 			ConstructPageException, DeleteRecException, IndexSearchException,
 			IOException {
-		if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE)
-			return NaiveDelete(key, rid);
-		else
-			throw new DeleteFashionException(null, "");
+		Database.Binding saved = Database.enter(database);
+		long t0 = System.nanoTime();
+		try {
+			key = storedKey(key, false);
+			if (hashIndex != null)
+				hashIndex.remove(key);
+			if ((getFlags() & IndexFlags.POSTING_LISTS) != 0)
+				return postingDelete(key, rid);
+			if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE)
+				return NaiveDelete(key, rid);
+			else
+				throw new DeleteFashionException(null, "");
+		} finally {
+			BTreeMetrics.record(BTreeMetrics.DELETE, t0);
+			Database.exit(saved);
+		}
 	}
 
 	/*
@@ -659,108 +1628,76 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	BTLeafPage findRunStart(KeyClass lo_key, RID startrid) throws IOException,
 			IteratorException, KeyNotMatchException, ConstructPageException,
 			PinPageException, UnpinPageException {
-		BTLeafPage pageLeaf;
-		BTIndexPage pageIndex;
 		Page page;
-		BTSortedPage sortPage;
 		PageId pageno;
-		PageId curpageno = null; // iterator
-		PageId prevpageno;
-		PageId nextpageno;
-		RID curRid;
-		KeyDataEntry curEntry;
+		DecodedPageCache.View view;
+		int keyType = headerPage.get_keyType();
+		boolean traced = BTreeTrace.sampleDescent();
 
 		pageno = headerPage.get_rootId();
 
 		if (pageno.pid == INVALID_PAGE) { // no pages in the BTREE
-			pageLeaf = null; // should be handled by
-			// startrid =INVALID_PAGEID ; // the caller
-			return pageLeaf;
+			return null; // should be handled by the caller
 		}
 
 		page = pinPage(pageno);
-		sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		view = DecodedPageCache.get(pageno, page, keyType);
+		BTreeMetrics.descents.increment();
 
-		if (trace != null) {
-			trace.writeBytes("VISIT node " + pageno + lineSep);
-			trace.flush();
-		}
+		if (traced)
+			BTreeTrace.event(BTreeTrace.VISIT, pageno.pid, 0);
 
 		// ASSERTION
-		// - pageno and sortPage is the root of the btree
-		// - pageno and sortPage valid and pinned
-
-		while (sortPage.getType() == NodeType.INDEX) {
-			pageIndex = new BTIndexPage(page, headerPage.get_keyType());
-			prevpageno = pageIndex.getPrevPage();
-			curEntry = pageIndex.getFirst(startrid);
-			while (curEntry != null && lo_key != null
-					&& BT.keyCompare(curEntry.key, lo_key) < 0) {
-
-				prevpageno = ((IndexData) curEntry.data).getData();
-				curEntry = pageIndex.getNext(startrid);
-			}
+		// - pageno and view are the root of the btree
+		// - pageno valid and pinned
+
+		// the separators around the page, for its fences
+		KeyClass low = null, high = null;
+		view.fence(low, high);
+		while (view.type == NodeType.INDEX) {
+			// go left: the child before the first separator >= lo_key
+			int i = lo_key == null ? 0 : view.search(lo_key);
+			if (i > 0)
+				low = view.keys[i - 1];
+			if (i < view.keys.length)
+				high = view.keys[i];
+			PageId child = new PageId(view.child(i));
 
 			unpinPage(pageno);
 
-			pageno = prevpageno;
+			pageno = child;
 			page = pinPage(pageno);
-			sortPage = new BTSortedPage(page, headerPage.get_keyType());
+			view = DecodedPageCache.get(pageno, page, keyType);
+			view.fence(low, high);
 
-			if (trace != null) {
-				trace.writeBytes("VISIT node " + pageno + lineSep);
-				trace.flush();
-			}
+			if (traced)
+				BTreeTrace.event(BTreeTrace.VISIT, pageno.pid, 0);
 
 		}
 
-		pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
+		// the first entry >= lo_key, skipping empty leaf pages and those with
+		// smaller keys only off to the right
+		while (true) {
+			int i = lo_key == null ? 0 : view.search(lo_key);
+			if (i < view.keys.length) {
+				startrid.pageNo = new PageId(pageno.pid);
+				startrid.slotNo = view.values[i];
+				// note that pageno is still pinned;
+				// scan will unpin it when done
+				return new BTLeafPage(page, keyType);
+			}
 
-		curEntry = pageLeaf.getFirst(startrid);
-		while (curEntry == null) {
-			// skip empty leaf pages off to left
-			nextpageno = pageLeaf.getNextPage();
+			int next = view.nextPage;
 			unpinPage(pageno);
-			if (nextpageno.pid == INVALID_PAGE) {
+			if (next == INVALID_PAGE) {
 				// oops, no more records, so set this scan to indicate this.
 				return null;
 			}
 
-			pageno = nextpageno;
-			pageLeaf = new BTLeafPage(pinPage(pageno), headerPage.get_keyType());
-			curEntry = pageLeaf.getFirst(startrid);
-		}
-
-		// ASSERTIONS:
-		// - curkey, curRid: contain the first record on the
-		// current leaf page (curkey its key, cur
-		// - pageLeaf, pageno valid and pinned
-
-		if (lo_key == null) {
-			return pageLeaf;
-			// note that pageno/pageLeaf is still pinned;
-			// scan will unpin it when done
-		}
-
-		while (BT.keyCompare(curEntry.key, lo_key) < 0) {
-			curEntry = pageLeaf.getNext(startrid);
-			while (curEntry == null) { // have to go right
-				nextpageno = pageLeaf.getNextPage();
-				unpinPage(pageno);
-
-				if (nextpageno.pid == INVALID_PAGE) {
-					return null;
-				}
-
-				pageno = nextpageno;
-				pageLeaf = new BTLeafPage(pinPage(pageno),
-						headerPage.get_keyType());
-
-				curEntry = pageLeaf.getFirst(startrid);
-			}
+			pageno = new PageId(next);
+			page = pinPage(pageno);
+			view = DecodedPageCache.get(pageno, page, keyType);
 		}
-
-		return pageLeaf;
 	}
 
 	/*
@@ -798,19 +1735,26 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 						unpinPage(newLeafPage.getCurPage());
 						if (pageNo.pid == INVALID_PAGE) 
 							return false;
+						BTreeMetrics.deleteExtraLeaves.increment();
 						newLeafPage=new BTLeafPage(pinPage(pageNo), 
 										headerPage.get_keyType());
 						dataentry=newLeafPage.getFirst(new RID());
 					}
-					if ( BT.keyCompare(key, dataentry.key) > 0 )
+					if ( BT.keyCompare(key, dataentry.key) < 0 )
 						break;
 					if( newLeafPage.delEntry(new KeyDataEntry(key, rid)) ==true)  					//looking for the (key,rid) pair, if found -> delete
 					{
 						unpinPage(newLeafPage.getCurPage(), true);
 						return true;
 					}
+					// the next leaf starts past key, no need to pin it
+					if (runEnds(newLeafPage, key))
+						break;
 					pageNo = newLeafPage.getNextPage();
 					unpinPage(newLeafPage.getCurPage());
+					if (pageNo.pid == INVALID_PAGE)
+						return false;
+					BTreeMetrics.deleteExtraLeaves.increment();
 					newLeafPage=new BTLeafPage(pinPage(pageNo), headerPage.get_keyType());
 					dataentry=newLeafPage.getFirst(itrRid);
 				}
@@ -822,6 +1766,112 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				unpinPage(newLeafPage.getCurPage());
 				return false;
 			}
+	/*
+	 * true if no entry with key can be on the leaves after the pinned leaf:
+	 * it ends with a bigger key, or its fences put the next leaf past key
+	 */
+	private boolean runEnds(BTLeafPage leaf, KeyClass key) throws IOException,
+			IteratorException, ConstructPageException, KeyNotMatchException {
+		DecodedPageCache.View view = DecodedPageCache.get(leaf.getCurPage(),
+				leaf, headerPage.get_keyType());
+		int n = view.keys.length;
+		KeyClass bound = view.nextLeafBound();
+		if (n > 0 && BT.keyCompare(view.keys[n - 1], key) > 0 || bound != null
+				&& BT.keyCompare(key, bound) < 0) {
+			BTreeMetrics.fenceStops.increment();
+			return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Add rid to the entry of key if the index already has one, turning a
+	 * single inline RID into a posting list. Returns false if key is not in
+	 * the index yet and has to be inserted as a new entry.
+	 */
+	private boolean postingInsert(KeyClass key, RID rid) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		RID curRid = new RID();
+		BTLeafPage leafPage = findRunStart(key, curRid);
+		if (leafPage == null)
+			return false;
+
+		KeyDataEntry entry = leafPage.getCurrent(curRid);
+		if (entry == null || BT.keyCompare(entry.key, key) != 0) {
+			unpinPage(leafPage.getCurPage());
+			return false;
+		}
+
+		RID data = ((LeafData) entry.data).getData();
+		boolean dirty = false;
+		if (PostingList.isPosting(data)) {
+			PostingList.add(data.pageNo, rid);
+		} else if (!data.equals(rid)) {
+			PageId head = PostingList.create(data, rid);
+			setLeafRid(leafPage, curRid, PostingList.reference(head));
+			dirty = true;
+		}
+		unpinPage(leafPage.getCurPage(), dirty);
+		return true;
+	}
+
+	/*
+	 * Remove <key, rid> from an index with posting lists. A list that is down
+	 * to one RID is freed and the RID goes back inline into the leaf entry.
+	 */
+	private boolean postingDelete(KeyClass key, RID rid) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException, LeafDeleteException,
+			FreePageException {
+		RID curRid = new RID();
+		BTLeafPage leafPage = findRunStart(key, curRid);
+		if (leafPage == null)
+			return false;
+
+		KeyDataEntry entry = leafPage.getCurrent(curRid);
+		if (entry == null || BT.keyCompare(entry.key, key) != 0) {
+			unpinPage(leafPage.getCurPage());
+			return false;
+		}
+
+		RID data = ((LeafData) entry.data).getData();
+		if (!PostingList.isPosting(data)) {
+			boolean deleted = data.equals(rid) && leafPage.delEntry(entry);
+			unpinPage(leafPage.getCurPage(), deleted);
+			return deleted;
+		}
+
+		int left = PostingList.remove(data.pageNo, rid);
+		if (left < 0) {
+			unpinPage(leafPage.getCurPage());
+			return false;
+		}
+		if (left <= 1) {
+			RID[] rids = PostingList.rids(data.pageNo);
+			PostingList.free(data.pageNo);
+			if (rids.length == 1)
+				setLeafRid(leafPage, curRid, rids[0]);
+			else
+				leafPage.delEntry(entry);
+			unpinPage(leafPage.getCurPage(), true);
+			return true;
+		}
+		unpinPage(leafPage.getCurPage());
+		return true;
+	}
+
+	/*
+	 * Overwrite the RID of the leaf entry in slot curRid, in place.
+	 */
+	private void setLeafRid(BTLeafPage leafPage, RID curRid, RID rid)
+			throws IOException {
+		int end = leafPage.getSlotOffset(curRid.slotNo)
+				+ leafPage.getSlotLength(curRid.slotNo);
+		Convert.setIntValue(rid.slotNo, end - 8, leafPage.getpage());
+		Convert.setIntValue(rid.pageNo.pid, end - 4, leafPage.getpage());
+	}
+
 	/**
 	 * create a scan with given keys Cases: (1) lo_key = null, hi_key = null
 	 * scan the whole index (2) lo_key = null, hi_key!= null range scan from min
@@ -852,12 +1902,36 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			ConstructPageException, PinPageException, UnpinPageException
 
 	{
-		BTFileScan scan = new BTFileScan();
+		Database.Binding saved = Database.enter(database);
+		try {
+			return _new_scan(lo_key, hi_key);
+		} finally {
+			Database.exit(saved);
+		}
+	}
+
+	private BTFileScan _new_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException
+
+	{
+		long t0 = System.nanoTime();
+		MeteredFileScan scan;
+		if ((getFlags() & IndexFlags.POSTING_LISTS) != 0)
+			scan = new PostingFileScan();
+		else
+			scan = new MeteredFileScan();
+		scan.database = database;
+		BTreeMetrics.scans.increment();
 		if (headerPage.get_rootId().pid == INVALID_PAGE) {
 			scan.leafPage = null;
+			BTreeMetrics.record(BTreeMetrics.SEEK, t0);
 			return scan;
 		}
 
+		lo_key = storedKey(lo_key, false);
+		hi_key = storedKey(hi_key, true);
+
 		scan.treeFilename = dbname;
 		scan.endkey = hi_key;
 		scan.didfirst = false;
@@ -869,43 +1943,577 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 		// this sets up scan at the starting position, ready for iteration
 		scan.leafPage = findRunStart(lo_key, scan.curRid);
+		if (scan.leafPage != null)
+			BTreeMetrics.scanLeaves.increment();
+		BTreeMetrics.record(BTreeMetrics.SEEK, t0);
 		return scan;
 	}
 
+	/**
+	 * the entries with keys in [lo_key, hi_key] as a lazily evaluated stream,
+	 * in key order; the Stream counterpart of new_scan. A leaf is pinned only
+	 * while its entries are copied out, so a stream that is dropped half way
+	 * leaves nothing pinned. close() ends the traversal, and the stream can
+	 * be used in try-with-resources. Made parallel, it splits the range along
+	 * leaf boundaries as parallelScan does. The index must not change while
+	 * the stream runs.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning, null for the first key.
+	 *            Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning, null for the last key. Input
+	 *            parameter.
+	 * @return a sequential stream of the entries
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public Stream<KeyDataEntry> stream(KeyClass lo_key, KeyClass hi_key)
+			throws IOException {
+		final RangeSpliterator spliterator = new RangeSpliterator(this,
+				storedKey(lo_key, false), storedKey(hi_key, true), true,
+				Integer.MAX_VALUE);
+		return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+			public void run() {
+				spliterator.close();
+			}
+		});
+	}
+
+	/**
+	 * scan the entries with keys in [lo_key, hi_key] as a parallel stream, in
+	 * key order. The range is split at separator keys, the root's first,
+	 * into at most parallelism disjoint subranges, each starting on a leaf
+	 * boundary, and the stream's fork-join workers scan them concurrently.
+	 * Leaves are copied out of the buffer pool one at a time under a lock,
+	 * since the buffer manager is single threaded; decoding the entries and
+	 * the work downstream run in parallel. The stream runs in the common
+	 * fork-join pool unless its terminal operation is started from a task of
+	 * another pool. The index must not change while the stream runs.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning, null for the first key.
+	 *            Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning, null for the last key. Input
+	 *            parameter.
+	 * @param parallelism
+	 *            the most subranges to scan concurrently
+	 * @return a parallel stream of the entries
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public Stream<KeyDataEntry> parallelScan(KeyClass lo_key, KeyClass hi_key,
+			int parallelism) throws IOException {
+		RangeSpliterator spliterator = new RangeSpliterator(this, storedKey(
+				lo_key, false), storedKey(hi_key, true), true, Math.max(1,
+				parallelism));
+		return StreamSupport.stream(spliterator, true);
+	}
+
+	/**
+	 * scan the entries of an index on integer keys with keys in [lo, hi]
+	 * into arrays, many at a time; see IntBatchScan. Integer.MIN_VALUE and
+	 * Integer.MAX_VALUE leave the range open. The scan holds its leaf pinned
+	 * until it ends or is closed.
+	 *
+	 * @param lo
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi
+	 *            the key where we stop scanning. Input parameter.
+	 * @return the scan, positioned on the first entry
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                the index is not on integer keys
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public IntBatchScan batchScan(int lo, int hi) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		Database.Binding saved = Database.enter(database);
+		try {
+			return _batchScan(lo, hi);
+		} finally {
+			Database.exit(saved);
+		}
+	}
+
+	private IntBatchScan _batchScan(int lo, int hi) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		if (getKeyType() != AttrType.attrInteger)
+			throw new KeyNotMatchException(null, "not an integer index");
+		long t0 = System.nanoTime();
+		BTreeMetrics.scans.increment();
+		RID startrid = new RID();
+		BTLeafPage leaf = lo > hi ? null : findRunStart(
+				lo == Integer.MIN_VALUE ? null : new IntegerKey(lo), startrid);
+		if (leaf != null)
+			BTreeMetrics.scanLeaves.increment();
+		BTreeMetrics.record(BTreeMetrics.SEEK, t0);
+		return new IntBatchScan(database, leaf, startrid, hi,
+				(getFlags() & IndexFlags.POSTING_LISTS) != 0);
+	}
+
+	/**
+	 * estimate the number of data entries whose key lies in [lo_key, hi_key]
+	 * without running a scan. Both boundaries are descended together while
+	 * they share a path; once they part, the children in between are counted
+	 * from the fanout of the index pages touched and the number of records on
+	 * the two boundary leaves. The cost is at most two root-to-leaf descents.
+	 * The error has no bound: the subtrees in between are taken to be as full
+	 * as the pages read on the way down, so an index whose pages fill
+	 * unevenly, as deletes leave them for example, can be off by any factor.
+	 * A null lo_key (hi_key) means the range is open on that side, as in
+	 * new_scan.
+	 *
+	 * @param lo_key
+	 *            the low end of the range. Input parameter.
+	 * @param hi_key
+	 *            the high end of the range. Input parameter.
+	 * @return the estimated number of entries, exact when the whole range
+	 *         falls on one leaf page. On an index with
+	 *         IndexFlags.POSTING_LISTS the RIDs of a key on that leaf are
+	 *         counted through its posting list, at one page read per key;
+	 *         where the range spans leaves, a key counts as one entry
+	 *         whatever the length of its list.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public long estimateCount(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		Database.Binding saved = Database.enter(database);
+		try {
+			return _estimateCount(lo_key, hi_key);
+		} finally {
+			Database.exit(saved);
+		}
+	}
+
+	private long _estimateCount(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		lo_key = storedKey(lo_key, false);
+		hi_key = storedKey(hi_key, true);
+		PageId pageno = headerPage.get_rootId();
+		if (pageno.pid == INVALID_PAGE)
+			return 0;
+		if (lo_key != null && hi_key != null
+				&& BT.keyCompare(lo_key, hi_key) > 0)
+			return 0;
+
+		Page page = pinPage(pageno);
+		BTSortedPage sortPage = new BTSortedPage(page, headerPage.get_keyType());
+
+		while (sortPage.getType() == NodeType.INDEX) {
+			BTIndexPage pageIndex = new BTIndexPage(page,
+					headerPage.get_keyType());
+			PageId loChild = new PageId();
+			PageId hiChild = new PageId();
+			int loSlot = childSlot(pageIndex, lo_key, false, loChild);
+			int hiSlot = childSlot(pageIndex, hi_key, true, hiChild);
+			unpinPage(pageno);
+
+			if (loSlot != hiSlot) {
+				// the boundaries part here: whole children in between plus
+				// the covered fraction of the two boundary subtrees
+				double[] lo = estimatePosition(loChild, lo_key, false);
+				double[] hi = estimatePosition(hiChild, hi_key, true);
+				double perChild = (lo[1] + hi[1]) / 2;
+				double estimate = (hiSlot - loSlot - 1) * perChild
+						+ (1 - lo[0]) * lo[1] + hi[0] * hi[1];
+				return Math.round(estimate);
+			}
+
+			pageno = loChild;
+			page = pinPage(pageno);
+			sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		}
+
+		// both boundaries fall on the same leaf, count it exactly
+		BTLeafPage pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
+		boolean postings = (getFlags() & IndexFlags.POSTING_LISTS) != 0;
+		RID curRid = new RID();
+		long count = 0;
+		try {
+			for (KeyDataEntry entry = pageLeaf.getFirst(curRid); entry != null; entry = pageLeaf
+					.getNext(curRid)) {
+				if (lo_key != null && BT.keyCompare(entry.key, lo_key) < 0)
+					continue;
+				if (hi_key != null && BT.keyCompare(entry.key, hi_key) > 0)
+					break;
+				RID rid = ((LeafData) entry.data).getData();
+				count += postings && PostingList.isPosting(rid) ? PostingList
+						.count(rid.pageNo) : 1;
+			}
+		} finally {
+			unpinPage(pageno);
+		}
+		return count;
+	}
+
+	/**
+	 * estimate the fraction of all data entries that lie in [lo_key, hi_key].
+	 * Same cost, conventions and unbounded error as estimateCount.
+	 *
+	 * @param lo_key
+	 *            the low end of the range. Input parameter.
+	 * @param hi_key
+	 *            the high end of the range. Input parameter.
+	 * @return a selectivity between 0.0 and 1.0
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public double estimateSelectivity(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		Database.Binding saved = Database.enter(database);
+		try {
+			return _estimateSelectivity(lo_key, hi_key);
+		} finally {
+			Database.exit(saved);
+		}
+	}
+
+	private double _estimateSelectivity(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		lo_key = storedKey(lo_key, false);
+		hi_key = storedKey(hi_key, true);
+		PageId rootId = headerPage.get_rootId();
+		if (rootId.pid == INVALID_PAGE)
+			return 0.0;
+		if (lo_key != null && hi_key != null
+				&& BT.keyCompare(lo_key, hi_key) > 0)
+			return 0.0;
+
+		double lo = estimatePosition(rootId, lo_key, false)[0];
+		double hi = estimatePosition(rootId, hi_key, true)[0];
+		return Math.max(0.0, Math.min(1.0, hi - lo));
+	}
+
+	/*
+	 * Descend from pageno towards key and return { position, size }: the
+	 * estimated fraction of the subtree's entries that sort before key (or
+	 * not after it, if inclusive), and the estimated number of entries in the
+	 * subtree. The size is the product of the fanouts seen on the way down
+	 * times the number of records on the leaf reached.
+	 */
+	private double[] estimatePosition(PageId pageno, KeyClass key,
+			boolean inclusive) throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		double position = 0.0;
+		double scale = 1.0;
+		double size = 1.0;
+		PageId child = new PageId();
+
+		Page page = pinPage(pageno);
+		BTSortedPage sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		BTreeMetrics.descents.increment();
+
+		while (sortPage.getType() == NodeType.INDEX) {
+			BTIndexPage pageIndex = new BTIndexPage(page,
+					headerPage.get_keyType());
+			int fanout = pageIndex.numberOfRecords() + 1;
+			int slot = childSlot(pageIndex, key, inclusive, child);
+			unpinPage(pageno);
+
+			position += scale * slot / fanout;
+			scale /= fanout;
+			size *= fanout;
+
+			pageno = new PageId(child.pid);
+			page = pinPage(pageno);
+			sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		}
+
+		BTLeafPage pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
+		int records = pageLeaf.numberOfRecords();
+		int before = 0;
+		if (key == null) {
+			before = inclusive ? records : 0;
+		} else {
+			RID curRid = new RID();
+			for (KeyDataEntry entry = pageLeaf.getFirst(curRid); entry != null; entry = pageLeaf
+					.getNext(curRid)) {
+				int cmp = BT.keyCompare(entry.key, key);
+				if (cmp > 0 || (cmp == 0 && !inclusive))
+					break;
+				before++;
+			}
+		}
+		unpinPage(pageno);
+
+		if (records > 0)
+			position += scale * before / records;
+		else if (inclusive)
+			position += scale;
+
+		return new double[] { position, size * records };
+	}
+
+	/*
+	 * Return the slot of the child of pageIndex that key descends into, 0 being
+	 * the left link (prevPage) and i the i-th entry, and copy its page id into
+	 * child. A null key selects the leftmost child, or the rightmost one if
+	 * inclusive. Like findRunStart this goes left on duplicates unless
+	 * inclusive.
+	 */
+	private int childSlot(BTIndexPage pageIndex, KeyClass key,
+			boolean inclusive, PageId child) throws IOException,
+			IteratorException, KeyNotMatchException {
+		RID curRid = new RID();
+		int slot = 0;
+		child.copyPageId(pageIndex.getPrevPage());
+
+		for (KeyDataEntry entry = pageIndex.getFirst(curRid); entry != null; entry = pageIndex
+				.getNext(curRid)) {
+			if (key == null) {
+				if (!inclusive)
+					break;
+			} else {
+				int cmp = BT.keyCompare(entry.key, key);
+				if (cmp > 0 || (cmp == 0 && !inclusive))
+					break;
+			}
+			child.copyPageId(((IndexData) entry.data).getData());
+			slot++;
+		}
+		return slot;
+	}
+
+	/**
+	 * walk the whole tree a level at a time and report its height, pages per
+	 * level, leaf fill, entries and duplicate keys, how the leaf chain is laid
+	 * out on disk and the space a rebuild would reclaim. Pages already in the
+	 * buffer pool are read there; the others are read straight from the
+	 * database and not brought into the pool, so the walk does not push the
+	 * working set out. If the pool's frame table cannot be read, every page
+	 * is pinned instead, and BTreeStats.isResidencyKnown says so. The walk
+	 * reads the whole tree in the caller's thread; walking in the background
+	 * is left to callers, who can run stats() on a thread of their own.
+	 *
+	 * @return the statistics; all zero for an empty tree
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTreeStats stats() throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		Database.Binding saved = Database.enter(database);
+		try {
+			return _stats();
+		} finally {
+			Database.exit(saved);
+		}
+	}
+
+	private BTreeStats _stats() throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		BTreeStats stats = new BTreeStats();
+		if (bloom != null)
+			bloom.report(stats);
+		if (hashIndex != null)
+			hashIndex.report(stats);
+		PageId rootId = headerPage.get_rootId();
+		if (rootId.pid == INVALID_PAGE)
+			return stats;
+
+		Set<Integer> resident = residentPages();
+		stats.residencyKnown = resident != null;
+		List<PageId> level = new ArrayList<PageId>();
+		level.add(rootId);
+		PageId lastLeaf = null;
+		KeyClass lastKey = null;
+		long run = 0;
+
+		while (!level.isEmpty()) {
+			stats.addLevel(level.size());
+			List<PageId> below = new ArrayList<PageId>();
+			for (PageId pageno : level) {
+				boolean inPool = resident == null
+						|| resident.contains(Integer.valueOf(pageno.pid));
+				Page page = inPool ? pinPage(pageno) : readPage(pageno);
+				if (inPool)
+					stats.pooledPages++;
+				BTSortedPage sortedPage = new BTSortedPage(page,
+						headerPage.get_keyType());
+				int used = BTreeStats.PAGE_SPACE - sortedPage.available_space();
+				RID rid = new RID();
+
+				if (sortedPage.getType() == NodeType.INDEX) {
+					BTIndexPage indexPage = new BTIndexPage(page,
+							headerPage.get_keyType());
+					stats.indexPages++;
+					stats.indexBytes += used;
+					below.add(indexPage.getPrevPage());
+					for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage
+							.getNext(rid))
+						below.add(((IndexData) entry.data).getData());
+				} else {
+					BTLeafPage leafPage = new BTLeafPage(page,
+							headerPage.get_keyType());
+					stats.leafPages++;
+					stats.leafBytes += used;
+					stats.minLeafFill = Math.min(stats.minLeafFill,
+							(double) used / BTreeStats.PAGE_SPACE);
+					if (lastLeaf != null) {
+						stats.leafLinks++;
+						if (pageno.pid == lastLeaf.pid + 1)
+							stats.contiguousLinks++;
+						else if (pageno.pid < lastLeaf.pid)
+							stats.backwardLinks++;
+					}
+					lastLeaf = pageno;
+
+					// leaves come in key order, so runs carry across them
+					for (KeyDataEntry entry = leafPage.getFirst(rid); entry != null; entry = leafPage
+							.getNext(rid)) {
+						stats.entries++;
+						if (lastKey != null && BT.keyCompare(entry.key, lastKey) == 0) {
+							run++;
+							continue;
+						}
+						if (run > 1)
+							stats.duplicatedKeys++;
+						stats.maxDuplicateRun = Math.max(stats.maxDuplicateRun, run);
+						stats.distinctKeys++;
+						lastKey = entry.key;
+						run = 1;
+					}
+				}
+				if (inPool)
+					unpinPage(pageno);
+			}
+			level = below;
+		}
+		if (run > 1)
+			stats.duplicatedKeys++;
+		stats.maxDuplicateRun = Math.max(stats.maxDuplicateRun, run);
+		return stats;
+	}
+
+	/*
+	 * Read a page from the database into a private buffer, bypassing the
+	 * buffer pool. Only safe for pages that are not in the pool, which may
+	 * hold a newer copy.
+	 */
+	private Page readPage(PageId pageno) throws PinPageException {
+		try {
+			Page page = new Page();
+			SystemDefs.JavabaseDB.read_page(pageno, page);
+			return page;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+	}
+
+	/*
+	 * The page numbers in the buffer pool, read from its frame table, or null
+	 * if the frame descriptors cannot be read: their class is not public, so
+	 * this takes reflection, which a security manager can refuse.
+	 */
+	private static Set<Integer> residentPages() {
+		try {
+			Object[] frames = SystemDefs.JavabaseBM.frameTable();
+			Set<Integer> pages = new HashSet<Integer>();
+			if (frames.length == 0)
+				return pages;
+			Field pageNo = frames[0].getClass().getField("pageNo");
+			pageNo.setAccessible(true);
+			for (int i = 0; i < frames.length; i++) {
+				PageId pageId = (PageId) pageNo.get(frames[i]);
+				if (pageId != null && pageId.pid != INVALID_PAGE)
+					pages.add(Integer.valueOf(pageId.pid));
+			}
+			return pages;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
 	void trace_children(PageId id) throws IOException, IteratorException,
 			ConstructPageException, PinPageException, UnpinPageException {
 
-		if (trace != null) {
+		if (BTreeTrace.enabled()) {
 
 			BTSortedPage sortedPage;
 			RID metaRid = new RID();
-			PageId childPageId;
-			KeyClass key;
 			KeyDataEntry entry;
 			sortedPage = new BTSortedPage(pinPage(id), headerPage.get_keyType());
 
-			// Now print all the child nodes of the page.
+			// Now trace all the child nodes of the page.
 			if (sortedPage.getType() == NodeType.INDEX) {
 				BTIndexPage indexPage = new BTIndexPage(sortedPage,
 						headerPage.get_keyType());
-				trace.writeBytes("INDEX CHILDREN " + id + " nodes" + lineSep);
-				trace.writeBytes(" " + indexPage.getPrevPage());
+				BTreeTrace.event(BTreeTrace.INDEX_CHILDREN, id.pid,
+						indexPage.numberOfRecords() + 1);
+				BTreeTrace.event(BTreeTrace.CHILD, indexPage.getPrevPage().pid, 0);
 				for (entry = indexPage.getFirst(metaRid); entry != null; entry = indexPage
 						.getNext(metaRid)) {
-					trace.writeBytes("   " + ((IndexData) entry.data).getData());
+					BTreeTrace.event(BTreeTrace.CHILD,
+							((IndexData) entry.data).getData().pid, 0);
 				}
 			} else if (sortedPage.getType() == NodeType.LEAF) {
 				BTLeafPage leafPage = new BTLeafPage(sortedPage,
 						headerPage.get_keyType());
-				trace.writeBytes("LEAF CHILDREN " + id + " nodes" + lineSep);
+				BTreeTrace.event(BTreeTrace.LEAF_CHILDREN, id.pid,
+						leafPage.numberOfRecords());
 				for (entry = leafPage.getFirst(metaRid); entry != null; entry = leafPage
 						.getNext(metaRid)) {
-					trace.writeBytes("   " + entry.key + " " + entry.data);
+					if (entry.key instanceof IntegerKey)
+						BTreeTrace.event(BTreeTrace.ENTRY_KEY,
+								((IntegerKey) entry.key).getKey().intValue(), 0);
+					else
+						BTreeTrace.stringKey(((StringKey) entry.key).getKey());
+					RID rid = ((LeafData) entry.data).getData();
+					BTreeTrace.event(BTreeTrace.ENTRY_RID, rid.pageNo.pid,
+							rid.slotNo);
 				}
 			}
 			unpinPage(id);
-			trace.writeBytes(lineSep);
-			trace.flush();
 		}
 
 	}
@@ -0,0 +1,367 @@
+package bench;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * BTBench times the BTreeFile operations the interactive BTDriver exercises:
+ * insert in sequential, reverse and random order (as in test1, test2 and
+ * test3), random inserts through a DeltaBTree write buffer and through
+ * BufferedBTree's message buffers (flush included), range scans of several
+ * sizes, point lookups, containsKey on hot keys without and with the
+ * adaptive hash index, and delete under churn. Every workload runs on a
+ * fresh database for each buffer pool size and replacement policy, after
+ * warm-up rounds that are not reported.
+ * <p>
+ * For each run it reports throughput, latency percentiles and the allocation
+ * rate of the benchmark thread (where the JVM exposes it). Last comes the
+ * shape of a tree of n random keys: its height, which is the number of pins
+ * a lookup takes, as measured with this build's page size and as projected
+ * from its entry sizes and fill for page sizes up to 64 KB. The page size is
+ * fixed when the Minibase library is built, so only the first is measured.
+ * Then the search within pages is compared with interpolation on and off
+ * (off searches the key blocks), for dense keys 0..n-1 and for keys spread at random: keys compared per
+ * page searched, and time per BTreeFile.containsKey with every page's view
+ * cached.
+ * <p>
+ * usage: java bench.BTBench [-n keys] [-ops operations] [-pool 50,500]
+ * [-replacer Clock,LRU,MRU] [-warmup rounds] [-rounds rounds]
+ */
+public class BTBench implements GlobalConst {
+
+	private static final int DB_PAGES = 50000;
+	private static final int[] SCAN_SIZES = { 10, 100, 1000 };
+	private static final int[] PAGE_SIZES = { 1024, 4096, 8192, 16384, 32768,
+			65536 };
+
+	private int n = 10000;
+	private int ops = 10000;
+	private int[] pools = { 50, 500 };
+	private String[] replacers = { "Clock", "LRU", "MRU" };
+	private int warmup = 1;
+	private int rounds = 3;
+
+	private final LatencyHistogram histogram = new LatencyHistogram();
+	private final Random random = new Random(42);
+	private String dbpath;
+
+	public static void main(String[] args) {
+		BTBench bench = new BTBench();
+		try {
+			bench.parse(args);
+			bench.runAll();
+		} catch (Exception e) {
+			e.printStackTrace();
+			Runtime.getRuntime().exit(1);
+		}
+	}
+
+	private void parse(String[] args) {
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			if (args[i].equals("-n"))
+				n = Integer.parseInt(value);
+			else if (args[i].equals("-ops"))
+				ops = Integer.parseInt(value);
+			else if (args[i].equals("-pool"))
+				pools = parseInts(value);
+			else if (args[i].equals("-replacer"))
+				replacers = value.split(",");
+			else if (args[i].equals("-warmup"))
+				warmup = Integer.parseInt(value);
+			else if (args[i].equals("-rounds"))
+				rounds = Integer.parseInt(value);
+			else
+				throw new IllegalArgumentException("unknown option " + args[i]);
+		}
+	}
+
+	private void runAll() throws Exception {
+		System.out.println(String.format("%-15s %6s %-6s %12s %10s %10s %10s %12s",
+				"workload", "pool", "repl", "ops/s", "p50 us", "p99 us",
+				"max us", "alloc MB/s"));
+		for (int p = 0; p < pools.length; p++) {
+			for (int r = 0; r < replacers.length; r++) {
+				run("insert-seq", pools[p], replacers[r]);
+				run("insert-rev", pools[p], replacers[r]);
+				run("insert-rand", pools[p], replacers[r]);
+				run("insert-delta", pools[p], replacers[r]);
+				run("insert-buffered", pools[p], replacers[r]);
+				for (int s = 0; s < SCAN_SIZES.length; s++)
+					run("scan-" + SCAN_SIZES[s], pools[p], replacers[r]);
+				run("lookup", pools[p], replacers[r]);
+				run("contains-hot", pools[p], replacers[r]);
+				run("contains-hash", pools[p], replacers[r]);
+				run("delete-churn", pools[p], replacers[r]);
+			}
+		}
+		shape();
+		search();
+	}
+
+	/*
+	 * print the height of a tree of n random keys at each page size
+	 */
+	private void shape() throws Exception {
+		BTreeFile file = open(pools[0], replacers[0]);
+		int[] keys = shuffled(n);
+		for (int i = 0; i < n; i++)
+			file.insert(new IntegerKey(keys[i]), rid(keys[i]));
+		BTreeStats stats = file.stats();
+		close(file);
+
+		System.out.println();
+		System.out.println(String.format("%-10s %8s %18s", "page size",
+				"height", "pins per lookup"));
+		for (int i = 0; i < PAGE_SIZES.length; i++) {
+			boolean measured = PAGE_SIZES[i] == MINIBASE_PAGESIZE;
+			int height = measured ? stats.getHeight() : stats
+					.projectedHeight(PAGE_SIZES[i]);
+			System.out.println(String.format("%-10d %8d %18d %s",
+					PAGE_SIZES[i], height, height, measured ? "measured"
+							: "projected"));
+		}
+	}
+
+	/*
+	 * print the probes per page search and the time per lookup with
+	 * interpolation in integer pages and without, for dense and random keys
+	 */
+	private void search() throws Exception {
+		int pool = pools[0];
+		for (int p = 1; p < pools.length; p++)
+			pool = Math.max(pool, pools[p]);
+		BTreeMetrics metrics = BTreeMetrics.get();
+		long budget = DecodedPageCache.getMemoryBudget();
+		DecodedPageCache.setMemoryBudget(Long.MAX_VALUE); // keep every view
+		System.out.println();
+		System.out.println(String.format("%-8s %-14s %12s %12s", "keys",
+				"page search", "probes/page", "ns/lookup"));
+		for (int dense = 1; dense >= 0; dense--) {
+			BTreeFile file = open(pool, replacers[0]);
+			int[] keys = shuffled(n);
+			if (dense == 0)
+				for (int i = 0; i < n; i++)
+					keys[i] = random.nextInt(Integer.MAX_VALUE);
+			for (int i = 0; i < n; i++)
+				file.insert(new IntegerKey(keys[i]), rid(keys[i]));
+			for (int on = 0; on < 2; on++) {
+				DecodedPageCache.setInterpolation(on == 1);
+				for (int w = 0; w <= warmup; w++)
+					lookups(file, keys);
+				long searches = metrics.getPageSearches();
+				long probes = metrics.getPageSearchProbes();
+				long nanos = lookups(file, keys);
+				searches = metrics.getPageSearches() - searches;
+				probes = metrics.getPageSearchProbes() - probes;
+				System.out.println(String.format("%-8s %-14s %12.2f %12.0f",
+						dense == 1 ? "dense" : "random", on == 1 ? "interpolation"
+								: "key blocks", (double) probes / searches,
+						(double) nanos / ops));
+			}
+			close(file);
+		}
+		DecodedPageCache.setInterpolation(true);
+		DecodedPageCache.setMemoryBudget(budget);
+	}
+
+	/*
+	 * ops containsKey calls for keys in the index; returns the nanoseconds
+	 * they took
+	 */
+	private long lookups(BTreeFile file, int[] keys) throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < ops; i++)
+			if (!file.containsKey(new IntegerKey(keys[random.nextInt(n)])))
+				throw new IllegalStateException("key not found");
+		return System.nanoTime() - start;
+	}
+
+	/*
+	 * warm up, then time the given workload for a number of rounds, each on
+	 * a fresh database, and print one line for all the rounds together
+	 */
+	private void run(String workload, int pool, String replacer)
+			throws Exception {
+		for (int i = 0; i < warmup; i++)
+			round(workload, pool, replacer);
+
+		LatencyHistogram all = new LatencyHistogram();
+		long nanos = 0;
+		long bytes = 0;
+		for (int i = 0; i < rounds; i++) {
+			long[] measured = round(workload, pool, replacer);
+			nanos += measured[0];
+			bytes += measured[1];
+			all.add(histogram);
+		}
+
+		double seconds = nanos / 1e9;
+		System.out.println(String.format(
+				"%-15s %6d %-6s %12.0f %10.1f %10.1f %10.1f %12s", workload,
+				pool, replacer, all.count() / seconds,
+				all.percentile(50) / 1000.0, all.percentile(99) / 1000.0,
+				all.max() / 1000.0, bytes < 0 ? "n/a" : String.format("%.1f",
+						bytes / seconds / (1024 * 1024))));
+	}
+
+	/*
+	 * one timed round; returns { elapsed nanos, allocated bytes or -1 }
+	 */
+	private long[] round(String workload, int pool, String replacer)
+			throws Exception {
+		BTreeFile file = open(pool, replacer);
+		int[] keys = null;
+
+		// untimed setup
+		if (workload.startsWith("scan") || workload.equals("lookup")
+				|| workload.startsWith("contains")
+				|| workload.equals("delete-churn")) {
+			keys = shuffled(n);
+			for (int i = 0; i < n; i++)
+				file.insert(new IntegerKey(keys[i]), rid(keys[i]));
+		}
+
+		histogram.reset();
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+
+		if (workload.equals("insert-seq")) {
+			for (int i = 0; i < n; i++)
+				timedInsert(file, i);
+		} else if (workload.equals("insert-rev")) {
+			for (int i = 0; i < n; i++)
+				timedInsert(file, n - i);
+		} else if (workload.equals("insert-rand")) {
+			int[] order = shuffled(n);
+			for (int i = 0; i < n; i++)
+				timedInsert(file, order[i]);
+		} else if (workload.equals("insert-delta")) {
+			DeltaBTree delta = new DeltaBTree(file);
+			int[] order = shuffled(n);
+			for (int i = 0; i < n; i++)
+				timedInsert(delta, order[i]);
+			delta.close();
+		} else if (workload.equals("insert-buffered")) {
+			BufferedBTree buffered = new BufferedBTree(file);
+			int[] order = shuffled(n);
+			for (int i = 0; i < n; i++)
+				timedInsert(buffered, order[i]);
+			buffered.close();
+		} else if (workload.startsWith("scan")) {
+			int size = Integer.parseInt(workload.substring(5));
+			for (int i = 0; i < ops / size + 1; i++) {
+				int lo = random.nextInt(Math.max(1, n - size));
+				long t0 = System.nanoTime();
+				BTFileScan scan = file.new_scan(new IntegerKey(lo),
+						new IntegerKey(lo + size - 1));
+				while (scan.get_next() != null)
+					;
+				scan.DestroyBTreeFileScan();
+				histogram.record(System.nanoTime() - t0);
+			}
+		} else if (workload.equals("lookup")) {
+			for (int i = 0; i < ops; i++) {
+				int key = random.nextInt(n);
+				long t0 = System.nanoTime();
+				BTFileScan scan = file.new_scan(new IntegerKey(key),
+						new IntegerKey(key));
+				scan.get_next();
+				scan.DestroyBTreeFileScan();
+				histogram.record(System.nanoTime() - t0);
+			}
+		} else if (workload.startsWith("contains")) {
+			// nine lookups in ten go to a hot 1% of the keys
+			int hot = Math.max(1, n / 100);
+			if (workload.equals("contains-hash"))
+				file.setAdaptiveHashIndex(hot);
+			for (int i = 0; i < ops; i++) {
+				int key = keys[random.nextInt(10) == 0 ? random.nextInt(n)
+						: random.nextInt(hot)];
+				long t0 = System.nanoTime();
+				file.containsKey(new IntegerKey(key));
+				histogram.record(System.nanoTime() - t0);
+			}
+		} else if (workload.equals("delete-churn")) {
+			for (int i = 0; i < ops; i++) {
+				int key = keys[random.nextInt(n)];
+				long t0 = System.nanoTime();
+				file.Delete(new IntegerKey(key), rid(key));
+				file.insert(new IntegerKey(key), rid(key));
+				histogram.record(System.nanoTime() - t0);
+			}
+		} else {
+			throw new IllegalArgumentException("unknown workload " + workload);
+		}
+
+		long elapsed = System.nanoTime() - start;
+		long after = allocatedBytes();
+		close(file);
+		return new long[] { elapsed,
+				allocated < 0 || after < 0 ? -1 : after - allocated };
+	}
+
+	private void timedInsert(IndexFile file, int key) throws Exception {
+		long t0 = System.nanoTime();
+		file.insert(new IntegerKey(key), rid(key));
+		histogram.record(System.nanoTime() - t0);
+	}
+
+	private BTreeFile open(int pool, String replacer) throws Exception {
+		dbpath = System.getProperty("java.io.tmpdir") + File.separator
+				+ "BTBENCH" + System.nanoTime() + ".minibase-db";
+		new File(dbpath).delete();
+		new SystemDefs(dbpath, DB_PAGES, pool, replacer);
+		return new BTreeFile("BENCH", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE);
+	}
+
+	private void close(BTreeFile file) throws Exception {
+		file.close();
+		SystemDefs.JavabaseDB.closeDB();
+		new File(dbpath).delete();
+	}
+
+	private int[] shuffled(int count) {
+		int[] k = new int[count];
+		for (int i = 0; i < count; i++)
+			k[i] = i;
+		for (int i = count - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int tmp = k[i];
+			k[i] = k[j];
+			k[j] = tmp;
+		}
+		return k;
+	}
+
+	private static RID rid(int key) {
+		return new RID(new PageId(key), key);
+	}
+
+	private static int[] parseInts(String list) {
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			values[i] = Integer.parseInt(parts[i].trim());
+		return values;
+	}
+
+	/*
+	 * bytes allocated so far by this thread, or -1 if the JVM does not say
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) threads;
+			if (sun.isThreadAllocatedMemorySupported())
+				return sun.getThreadAllocatedBytes(Thread.currentThread()
+						.getId());
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,90 @@
+package bench;
+
+import btree.LatencyRecorder;
+
+/**
+ * LatencyHistogram records operation latencies in nanoseconds into
+ * log-linear buckets: 16 buckets per power of two, so a reported percentile is
+ * within about 6% of the true value. Recording does not allocate. The buckets
+ * are those of LatencyRecorder, which BTreeMetrics keeps its latencies in.
+ */
+public class LatencyHistogram {
+
+	private final long[] counts = new long[LatencyRecorder.BUCKETS];
+	private long total;
+	private long max;
+
+	/**
+	 * record one latency
+	 *
+	 * @param nanos
+	 *            the latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts[LatencyRecorder.bucket(nanos)]++;
+		total++;
+		if (nanos > max)
+			max = nanos;
+	}
+
+	/**
+	 * add the counts of another histogram to this one
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] += other.counts[i];
+		total += other.total;
+		max = Math.max(max, other.max);
+	}
+
+	public void reset() {
+		java.util.Arrays.fill(counts, 0);
+		total = 0;
+		max = 0;
+	}
+
+	public long count() {
+		return total;
+	}
+
+	public long max() {
+		return max;
+	}
+
+	/**
+	 * @param p
+	 *            the percentile, between 0 and 100
+	 * @return the upper bound of the bucket holding the p-th percentile
+	 */
+	public long percentile(double p) {
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(total * p / 100.0);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(LatencyRecorder.upperBound(i), max);
+		}
+		return max;
+	}
+
+	/**
+	 * @return one line per non-empty bucket: upper bound in microseconds and
+	 *         count
+	 */
+	public String buckets() {
+		StringBuffer buf = new StringBuffer();
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] == 0)
+				continue;
+			buf.append(String.format("  <= %10.1f us  %d%n",
+					LatencyRecorder.upperBound(i) / 1000.0, counts[i]));
+		}
+		return buf.toString();
+	}
+}
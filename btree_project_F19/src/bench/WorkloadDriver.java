@@ -0,0 +1,376 @@
+package bench;
+
+import java.io.*;
+import java.util.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * WorkloadDriver replays a B-tree workload non-interactively, in place of the
+ * BTDriver menu, and reports throughput and latency histograms per operation
+ * type. A workload file holds one operation per line on integer keys:
+ *
+ * <pre>
+ * insert 17            insert key 17 with rid (17, 17)
+ * insert 17 4 2        insert key 17 with rid (4, 2)
+ * delete 17 [4 2]      delete an entry
+ * lookup 17            point lookup
+ * scan 10 20           range scan of [10, 20]
+ * </pre>
+ *
+ * or a single generator line in the style of YCSB:
+ *
+ * <pre>
+ * generate records=100000 ops=1000000 dist=zipfian theta=0.99 read=0.8 insert=0.1 delete=0.05 scan=0.05 scanlen=100
+ * </pre>
+ *
+ * which preloads records keys and then draws ops operations in the given
+ * proportions, with keys from a uniform or zipfian distribution. Lines
+ * starting with # are ignored.
+ * <p>
+ * The buffer manager and BTreeFile are single threaded, so with several
+ * threads the operations are issued concurrently but run one at a time; the
+ * latencies include the time spent waiting for the index. Buffer and split
+ * counters from BTreeMetrics are printed after the preload. With -offheap,
+ * an OffHeapDB arena of that many megabytes sits below the buffer pool.
+ * <p>
+ * usage: java bench.WorkloadDriver workload-file [-threads 1] [-pool 500]
+ * [-replacer Clock] [-dbpages 100000] [-offheap 0] [-histogram]
+ */
+public class WorkloadDriver implements GlobalConst {
+
+	private static final int INSERT = 0;
+	private static final int DELETE = 1;
+	private static final int LOOKUP = 2;
+	private static final int SCAN = 3;
+	private static final String[] NAMES = { "insert", "delete", "lookup", "scan" };
+
+	private int threads = 1;
+	private int pool = 500;
+	private String replacer = "Clock";
+	private int dbpages = 100000;
+	private int offheap = 0; // MB
+	private boolean printHistogram = false;
+
+	/* operations as parallel arrays: type, key, and key2 (hi key or rid) */
+	private int[] types;
+	private int[] keys;
+	private int[] args1;
+	private int[] args2;
+	private int count;
+	private int preload;
+
+	private BTreeFile file;
+	private final Object lock = new Object();
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("usage: java bench.WorkloadDriver workload-file"
+					+ " [-threads n] [-pool pages] [-replacer Clock|LRU|MRU]"
+					+ " [-dbpages pages] [-offheap MB] [-histogram]");
+			Runtime.getRuntime().exit(2);
+		}
+		WorkloadDriver driver = new WorkloadDriver();
+		try {
+			driver.parseOptions(args);
+			driver.load(args[0]);
+			driver.run();
+		} catch (Exception e) {
+			e.printStackTrace();
+			Runtime.getRuntime().exit(1);
+		}
+	}
+
+	private void parseOptions(String[] args) {
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("-histogram"))
+				printHistogram = true;
+			else if (i + 1 >= args.length)
+				throw new IllegalArgumentException("missing value for " + args[i]);
+			else if (args[i].equals("-threads"))
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-pool"))
+				pool = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-replacer"))
+				replacer = args[++i];
+			else if (args[i].equals("-dbpages"))
+				dbpages = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-offheap"))
+				offheap = Integer.parseInt(args[++i]);
+			else
+				throw new IllegalArgumentException("unknown option " + args[i]);
+		}
+	}
+
+	/*
+	 * read the workload file into the operation arrays
+	 */
+	private void load(String filename) throws IOException {
+		types = new int[1024];
+		keys = new int[1024];
+		args1 = new int[1024];
+		args2 = new int[1024];
+
+		BufferedReader in = new BufferedReader(new FileReader(filename));
+		try {
+			String line;
+			int lineNo = 0;
+			while ((line = in.readLine()) != null) {
+				lineNo++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				String[] f = line.split("\\s+");
+				try {
+					if (f[0].equals("generate"))
+						generate(f);
+					else
+						add(parseType(f[0]), f);
+				} catch (RuntimeException e) {
+					throw new IOException(filename + ":" + lineNo + ": " + e);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int parseType(String name) {
+		for (int t = 0; t < NAMES.length; t++)
+			if (NAMES[t].equals(name))
+				return t;
+		throw new IllegalArgumentException("unknown operation " + name);
+	}
+
+	private void add(int type, String[] f) {
+		int key = Integer.parseInt(f[1]);
+		int a1 = key, a2 = key;
+		if (type == SCAN) {
+			a1 = Integer.parseInt(f[2]);
+		} else if (f.length >= 4) {
+			a1 = Integer.parseInt(f[2]);
+			a2 = Integer.parseInt(f[3]);
+		}
+		add(type, key, a1, a2);
+	}
+
+	private void add(int type, int key, int a1, int a2) {
+		if (count == types.length) {
+			types = Arrays.copyOf(types, count * 2);
+			keys = Arrays.copyOf(keys, count * 2);
+			args1 = Arrays.copyOf(args1, count * 2);
+			args2 = Arrays.copyOf(args2, count * 2);
+		}
+		types[count] = type;
+		keys[count] = key;
+		args1[count] = a1;
+		args2[count] = a2;
+		count++;
+	}
+
+	/*
+	 * expand a generator line into operations
+	 */
+	private void generate(String[] f) {
+		Map<String, String> spec = new HashMap<String, String>();
+		for (int i = 1; i < f.length; i++) {
+			int eq = f[i].indexOf('=');
+			if (eq < 0)
+				throw new IllegalArgumentException("expected name=value: " + f[i]);
+			spec.put(f[i].substring(0, eq), f[i].substring(eq + 1));
+		}
+		int records = Integer.parseInt(get(spec, "records", "10000"));
+		int ops = Integer.parseInt(get(spec, "ops", "100000"));
+		String dist = get(spec, "dist", "uniform");
+		double theta = Double.parseDouble(get(spec, "theta", "0.99"));
+		double[] mix = new double[NAMES.length];
+		for (int t = 0; t < NAMES.length; t++)
+			mix[t] = Double.parseDouble(get(spec, NAMES[t], t == LOOKUP ? "1"
+					: "0"));
+		int scanlen = Integer.parseInt(get(spec, "scanlen", "100"));
+		Random random = new Random(Long.parseLong(get(spec, "seed", "42")));
+
+		double sum = 0;
+		for (int t = 0; t < mix.length; t++)
+			sum += mix[t];
+
+		preload = records;
+		Zipfian zipf = dist.equals("zipfian") ? new Zipfian(records, theta)
+				: null;
+		if (zipf == null && !dist.equals("uniform"))
+			throw new IllegalArgumentException("unknown distribution " + dist);
+
+		int nextKey = records;
+		for (int i = 0; i < ops; i++) {
+			double u = random.nextDouble() * sum;
+			int type = 0;
+			while (type < mix.length - 1 && u >= mix[type]) {
+				u -= mix[type];
+				type++;
+			}
+			int key = zipf != null ? zipf.next(random) : random.nextInt(records);
+			if (type == INSERT)
+				key = nextKey++;
+			add(type, key, type == SCAN ? key + scanlen - 1 : key, key);
+		}
+	}
+
+	private static String get(Map<String, String> spec, String name,
+			String dflt) {
+		String value = spec.get(name);
+		return value == null ? dflt : value;
+	}
+
+	private void run() throws Exception {
+		String dbpath = System.getProperty("java.io.tmpdir") + File.separator
+				+ "WORKLOAD" + System.nanoTime() + ".minibase-db";
+		new File(dbpath).delete();
+		new SystemDefs(dbpath, dbpages, pool, replacer);
+		if (offheap > 0)
+			OffHeapDB.install((long) offheap << 20);
+		BTreeMetrics.install(replacer);
+		file = new BTreeFile("WORKLOAD", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE);
+
+		for (int k = 0; k < preload; k++)
+			file.insert(new IntegerKey(k), new RID(new PageId(k), k));
+		BTreeMetrics.get().reset();
+
+		final LatencyHistogram[][] histograms = new LatencyHistogram[threads][NAMES.length];
+		final Exception[] failure = new Exception[1];
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			for (int o = 0; o < NAMES.length; o++)
+				histograms[t][o] = new LatencyHistogram();
+			final int id = t;
+			workers[t] = new Thread("workload-" + t) {
+				public void run() {
+					try {
+						for (int i = id; i < count; i += threads) {
+							long t0 = System.nanoTime();
+							execute(i);
+							histograms[id][types[i]].record(System.nanoTime() - t0);
+						}
+					} catch (Exception e) {
+						synchronized (failure) {
+							failure[0] = e;
+						}
+					}
+				}
+			};
+		}
+
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++)
+			workers[t].start();
+		for (int t = 0; t < threads; t++)
+			workers[t].join();
+		long elapsed = System.nanoTime() - start;
+
+		file.close();
+		SystemDefs.JavabaseDB.closeDB();
+		new File(dbpath).delete();
+		if (failure[0] != null)
+			throw failure[0];
+
+		report(histograms, elapsed);
+	}
+
+	private void execute(int i) throws Exception {
+		synchronized (lock) {
+			switch (types[i]) {
+			case INSERT:
+				file.insert(new IntegerKey(keys[i]), new RID(new PageId(
+						args1[i]), args2[i]));
+				break;
+			case DELETE:
+				file.Delete(new IntegerKey(keys[i]), new RID(new PageId(
+						args1[i]), args2[i]));
+				break;
+			case LOOKUP:
+			case SCAN:
+				BTFileScan scan = file.new_scan(new IntegerKey(keys[i]),
+						new IntegerKey(args1[i]));
+				while (scan.get_next() != null)
+					;
+				scan.DestroyBTreeFileScan();
+				break;
+			}
+		}
+	}
+
+	private void report(LatencyHistogram[][] histograms, long elapsed) {
+		double seconds = elapsed / 1e9;
+		System.out.println(String.format(
+				"%d operations, %d threads, pool %d (%s), off-heap %d MB:"
+						+ " %.3f s, %.0f ops/s", count, threads, pool, replacer,
+				offheap, seconds, count / seconds));
+		System.out.println(String.format("%-8s %10s %12s %10s %10s %10s %10s",
+				"op", "count", "ops/s", "p50 us", "p99 us", "p99.9 us",
+				"max us"));
+		for (int o = 0; o < NAMES.length; o++) {
+			LatencyHistogram h = new LatencyHistogram();
+			for (int t = 0; t < threads; t++)
+				h.add(histograms[t][o]);
+			if (h.count() == 0)
+				continue;
+			System.out.println(String.format(
+					"%-8s %10d %12.0f %10.1f %10.1f %10.1f %10.1f", NAMES[o],
+					h.count(), h.count() / seconds, h.percentile(50) / 1000.0,
+					h.percentile(99) / 1000.0, h.percentile(99.9) / 1000.0,
+					h.max() / 1000.0));
+			if (printHistogram)
+				System.out.print(h.buckets());
+		}
+
+		BTreeMetrics m = BTreeMetrics.get();
+		long pins = m.getBufferHits() + m.getBufferMisses();
+		System.out.println(String.format(
+				"pins %d, hit ratio %.3f, disk reads %d, writes %d,"
+						+ " off-heap hits %d, leaf splits %d, index splits %d,"
+						+ " leaves per scan %.2f, page cache hit ratio %.3f",
+				m.getPins(),
+				pins == 0 ? 0.0 : (double) m.getBufferHits() / pins,
+				m.getDiskReads(), m.getDiskWrites(), m.getOffHeapHits(),
+				m.getLeafSplits(),
+				m.getIndexSplits(), m.getScans() == 0 ? 0.0
+						: (double) m.getScanLeaves() / m.getScans(), m
+						.getPageCacheHitRatio()));
+	}
+
+	/**
+	 * Zipfian keys over [0, items), hottest first, after Gray et al.,
+	 * "Quickly Generating Billion-Record Synthetic Databases", as in YCSB.
+	 */
+	private static class Zipfian {
+		private final int items;
+		private final double theta;
+		private final double zetan;
+		private final double alpha;
+		private final double eta;
+
+		Zipfian(int items, double theta) {
+			this.items = items;
+			this.theta = theta;
+			double zeta2 = 1 + Math.pow(0.5, theta);
+			double z = 0;
+			for (int i = 1; i <= items; i++)
+				z += 1 / Math.pow(i, theta);
+			zetan = z;
+			alpha = 1 / (1 - theta);
+			eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetan);
+		}
+
+		int next(Random random) {
+			double u = random.nextDouble();
+			double uz = u * zetan;
+			if (uz < 1)
+				return 0;
+			if (uz < 1 + Math.pow(0.5, theta))
+				return 1;
+			int k = (int) (items * Math.pow(eta * u - eta + 1, alpha));
+			return Math.min(k, items - 1);
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package btree;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * AdaptiveHashIndex maps the hot keys of a BTreeFile to the leaf they were
+ * last found on, so that BTreeFile.containsKey answers for them without a
+ * descent from the root, as the adaptive hash index of InnoDB does.
+ * <p>
+ * A key becomes hot when containsKey finds it HOT_LOOKUPS times among the
+ * recent lookups; its hint is then the leaf and slot it was found in, and
+ * the version of the leaf. Pages carry no LSN, so the version is the one
+ * DecodedPageCache counts for every page unpinned dirty or freed; a hint
+ * whose leaf still has its version is current. A stale hint is dropped and
+ * the next lookup descends and makes it again. Hints of a leaf are dropped
+ * when it splits or is freed, and a key's when it is deleted. Hints and the
+ * lookup counts are each kept to capacity keys, the least recently used
+ * going first.
+ * <p>
+ * Hints live in memory beside the tree and are not stored with it. The
+ * BTreeFile runs its operations one at a time (see Database.enter), so the
+ * maps are not locked.
+ */
+final class AdaptiveHashIndex {
+
+	/* lookups that find a key, among the recent ones, to make it hot */
+	private static final int HOT_LOOKUPS = 3;
+
+	/* where a hot key was found */
+	private static final class Hint {
+		final int pid;
+		final int slot; // of the entry on the leaf
+		final long version; // of the leaf
+
+		Hint(int pid, int slot, long version) {
+			this.pid = pid;
+			this.slot = slot;
+			this.version = version;
+		}
+	}
+
+	private final int capacity;
+	private final LinkedHashMap<Object, int[]> lookups;
+	private final LinkedHashMap<Object, Hint> hints;
+	private final HashMap<Integer, HashSet<Object>> pages = new HashMap<Integer, HashSet<Object>>();
+	private long hits;
+	private long stale;
+
+	/*
+	 * capacity hot keys at most, and as many lookup counts
+	 */
+	AdaptiveHashIndex(final int capacity) {
+		this.capacity = capacity;
+		lookups = new LinkedHashMap<Object, int[]>(64, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Object, int[]> eldest) {
+				return size() > capacity;
+			}
+		};
+		hints = new LinkedHashMap<Object, Hint>(64, 0.75f, true);
+	}
+
+	/*
+	 * true if key has a hint that is still current, so it is in the index
+	 */
+	boolean hit(KeyClass key) {
+		Object id = id(key);
+		Hint hint = hints.get(id);
+		if (hint == null)
+			return false;
+		if (DecodedPageCache.version(new PageId(hint.pid)) == hint.version) {
+			hits++;
+			return true;
+		}
+		stale++;
+		drop(id);
+		// still hot: the descent this lookup makes hints it again
+		lookups.put(id, new int[] { HOT_LOOKUPS - 1 });
+		return false;
+	}
+
+	/*
+	 * a lookup found key in slot of the leaf pid, which it read just now
+	 */
+	void found(KeyClass key, int pid, int slot) {
+		Object id = id(key);
+		int[] count = lookups.get(id);
+		if (count == null) {
+			count = new int[1];
+			lookups.put(id, count);
+		}
+		if (++count[0] < HOT_LOOKUPS)
+			return;
+		drop(id);
+		hints.put(id, new Hint(pid, slot, DecodedPageCache.version(new PageId(
+				pid))));
+		Integer page = Integer.valueOf(pid);
+		HashSet<Object> keys = pages.get(page);
+		if (keys == null) {
+			keys = new HashSet<Object>();
+			pages.put(page, keys);
+		}
+		keys.add(id);
+		if (hints.size() > capacity)
+			drop(hints.keySet().iterator().next());
+	}
+
+	/*
+	 * an entry with key was deleted
+	 */
+	void remove(KeyClass key) {
+		drop(id(key));
+	}
+
+	/*
+	 * leaf pid split or was freed
+	 */
+	void removePage(int pid) {
+		HashSet<Object> keys = pages.remove(Integer.valueOf(pid));
+		if (keys != null)
+			for (Object id : keys)
+				hints.remove(id);
+	}
+
+	/*
+	 * put the counts in stats
+	 */
+	void report(BTreeStats stats) {
+		stats.hashIndexKeys = hints.size();
+		stats.hashIndexHits = hits;
+		stats.hashIndexStale = stale;
+	}
+
+	private void drop(Object id) {
+		Hint hint = hints.remove(id);
+		if (hint == null)
+			return;
+		Integer page = Integer.valueOf(hint.pid);
+		HashSet<Object> keys = pages.get(page);
+		keys.remove(id);
+		if (keys.isEmpty())
+			pages.remove(page);
+	}
+
+	/*
+	 * the key's value, which has equals and hashCode
+	 */
+	private static Object id(KeyClass key) {
+		return key instanceof IntegerKey ? (Object) ((IntegerKey) key)
+				.getKey() : ((StringKey) key).getKey();
+	}
+}
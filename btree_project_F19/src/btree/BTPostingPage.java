@@ -0,0 +1,175 @@
+package btree;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTPostingPage holds part of the posting list of one key in an index created
+ * with IndexFlags.POSTING_LISTS. The pages of a list are chained through
+ * nextPage/prevPage and together hold the key's RIDs in ascending order, each
+ * RID packed into a long as (pageNo, slotNo). A page stores its smallest and
+ * largest value as plain longs and the rest as varint deltas, so a page can be
+ * skipped without decoding it. The first page of a chain also keeps the
+ * number of RIDs in the whole list.
+ */
+class BTPostingPage extends HFPage {
+
+	static final short POSTING = 14;
+
+	private static final int COUNT = DPFIXED;
+	private static final int TOTAL = DPFIXED + 4;
+	private static final int MIN = DPFIXED + 8;
+	private static final int MAX = DPFIXED + 16;
+	private static final int DELTAS = DPFIXED + 24;
+
+	/**
+	 * pin the page with pageno and associate it with this object
+	 */
+	BTPostingPage(PageId pageno) throws ConstructPageException {
+		super();
+		try {
+			SystemDefs.JavabaseBM.pinPage(pageno, this, false/* Rdisk */);
+		} catch (Exception e) {
+			throw new ConstructPageException(e, "pin posting page failed");
+		}
+	}
+
+	/**
+	 * allocate a new, empty posting page; it is pinned
+	 */
+	BTPostingPage() throws ConstructPageException {
+		super();
+		try {
+			Page apage = new Page();
+			PageId pageId = SystemDefs.JavabaseBM.newPage(apage, 1);
+			if (pageId == null)
+				throw new ConstructPageException(null, "new page failed");
+			init(pageId, apage);
+			setType(POSTING);
+			setNextPage(new PageId(INVALID_PAGE));
+			setPrevPage(new PageId(INVALID_PAGE));
+			putInt(COUNT, 0);
+			putInt(TOTAL, 0);
+		} catch (ConstructPageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ConstructPageException(e, "construct posting page failed");
+		}
+	}
+
+	int getCount() {
+		return getInt(COUNT);
+	}
+
+	long getMin() {
+		return getLong(MIN);
+	}
+
+	long getMax() {
+		return getLong(MAX);
+	}
+
+	/**
+	 * only meaningful on the first page of a list
+	 */
+	int getTotal() {
+		return getInt(TOTAL);
+	}
+
+	void setTotal(int total) {
+		putInt(TOTAL, total);
+	}
+
+	/**
+	 * @return the values on this page in ascending order
+	 */
+	long[] getValues() {
+		int count = getCount();
+		long[] values = new long[count];
+		if (count == 0)
+			return values;
+		values[0] = getMin();
+		int pos = DELTAS;
+		for (int i = 1; i < count; i++) {
+			long delta = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = data[pos++];
+				delta |= (long) (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			values[i] = values[i - 1] + delta;
+		}
+		return values;
+	}
+
+	/**
+	 * replace the contents of this page by values[from..to)
+	 *
+	 * @return false, leaving the page unchanged, if they do not fit
+	 */
+	boolean setValues(long[] values, int from, int to) {
+		if (to - from > 1 && DELTAS + encodedSize(values, from, to) > MAX_SPACE)
+			return false;
+
+		putInt(COUNT, to - from);
+		if (to == from)
+			return true;
+
+		putLong(MIN, values[from]);
+		putLong(MAX, values[to - 1]);
+		int pos = DELTAS;
+		for (int i = from + 1; i < to; i++) {
+			long delta = values[i] - values[i - 1];
+			while ((delta & ~0x7fL) != 0) {
+				data[pos++] = (byte) ((delta & 0x7f) | 0x80);
+				delta >>>= 7;
+			}
+			data[pos++] = (byte) delta;
+		}
+		return true;
+	}
+
+	private static int encodedSize(long[] values, int from, int to) {
+		int size = 0;
+		for (int i = from + 1; i < to; i++) {
+			long delta = values[i] - values[i - 1];
+			do {
+				size++;
+				delta >>>= 7;
+			} while (delta != 0);
+		}
+		return size;
+	}
+
+	static long toValue(RID rid) {
+		return ((long) rid.pageNo.pid << 32) | (rid.slotNo & 0xffffffffL);
+	}
+
+	static RID toRid(long value) {
+		return new RID(new PageId((int) (value >> 32)), (int) value);
+	}
+
+	private int getInt(int pos) {
+		return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+				| ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+	}
+
+	private void putInt(int pos, int value) {
+		data[pos] = (byte) (value >>> 24);
+		data[pos + 1] = (byte) (value >>> 16);
+		data[pos + 2] = (byte) (value >>> 8);
+		data[pos + 3] = (byte) value;
+	}
+
+	private long getLong(int pos) {
+		return ((long) getInt(pos) << 32) | (getInt(pos + 4) & 0xffffffffL);
+	}
+
+	private void putLong(int pos, long value) {
+		putInt(pos, (int) (value >>> 32));
+		putInt(pos + 4, (int) value);
+	}
+}
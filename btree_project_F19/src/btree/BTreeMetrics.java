@@ -0,0 +1,260 @@
+package btree;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.*;
+
+import global.*;
+
+/**
+ * BTreeMetrics counts what the B+ tree and the buffer manager under it do:
+ * page pins and unpins, buffer hits and misses, disk reads and writes, pages
+ * found in the OffHeapDB arena instead of on disk, leaf and index splits,
+ * root-to-leaf descents, leaves visited by scans, leaves NaiveDelete walks
+ * past the first one, hits and misses of the DecodedPageCache, searches
+ * within decoded pages and the keys they compared, leaves scans and deletes
+ * did not move onto because the fences showed their range had ended, pages
+ * found outside their fences, and latency histograms per operation.
+ * Counters are LongAdders, so updating them is a few nanoseconds and they
+ * can be left on.
+ * <p>
+ * The BTreeFile counters are always kept. The buffer and disk counters need
+ * the metered buffer manager and database, which install() puts in place of
+ * SystemDefs.JavabaseBM and SystemDefs.JavabaseDB. Everything is published
+ * as the MBean btree:type=BTreeMetrics.
+ */
+public class BTreeMetrics implements BTreeMetricsMBean {
+
+	/** operation types with a latency histogram */
+	public static final int INSERT = 0;
+	public static final int DELETE = 1;
+	public static final int SEEK = 2;
+	private static final String[] OPERATIONS = { "insert", "delete", "seek" };
+
+	/** the name the MBean is registered under */
+	public static final String OBJECT_NAME = "btree:type=BTreeMetrics";
+
+	static final LongAdder pins = new LongAdder();
+	static final LongAdder unpins = new LongAdder();
+	static final LongAdder hits = new LongAdder();
+	static final LongAdder misses = new LongAdder();
+	static final LongAdder diskReads = new LongAdder();
+	static final LongAdder diskWrites = new LongAdder();
+	static final LongAdder offHeapHits = new LongAdder();
+	static final LongAdder leafSplits = new LongAdder();
+	static final LongAdder indexSplits = new LongAdder();
+	static final LongAdder descents = new LongAdder();
+	static final LongAdder scans = new LongAdder();
+	static final LongAdder scanLeaves = new LongAdder();
+	static final LongAdder deleteExtraLeaves = new LongAdder();
+	static final LongAdder pageCacheHits = new LongAdder();
+	static final LongAdder pageCacheMisses = new LongAdder();
+	static final LongAdder pageSearches = new LongAdder();
+	static final LongAdder pageSearchProbes = new LongAdder();
+	static final LongAdder fenceStops = new LongAdder();
+	static final LongAdder fenceViolations = new LongAdder();
+
+	private static final LatencyRecorder[] latency = new LatencyRecorder[OPERATIONS.length];
+	static {
+		for (int i = 0; i < latency.length; i++)
+			latency[i] = new LatencyRecorder();
+	}
+
+	private static final BTreeMetrics instance = new BTreeMetrics();
+
+	private BTreeMetrics() {
+	}
+
+	/**
+	 * @return the metrics of this JVM
+	 */
+	public static BTreeMetrics get() {
+		return instance;
+	}
+
+	/*
+	 * record the latency of an operation that started at t0 (System.nanoTime)
+	 */
+	static void record(int operation, long t0) {
+		latency[operation].record(System.nanoTime() - t0);
+	}
+
+	/**
+	 * Replace SystemDefs.JavabaseDB and SystemDefs.JavabaseBM with metered
+	 * versions and register the MBean. Call it right after new SystemDefs(),
+	 * while no page is pinned: the buffer pool is flushed and built again
+	 * with the same number of frames and the given replacer.
+	 *
+	 * @param replacer
+	 *            the replacement policy, as given to SystemDefs
+	 * @exception IllegalStateException
+	 *                a page is pinned
+	 * @exception Exception
+	 *                error from the lower layer
+	 */
+	public static void install(String replacer) throws Exception {
+		if (!(SystemDefs.JavabaseBM instanceof MeteredBufMgr)) {
+			int frames = SystemDefs.JavabaseBM.getNumBuffers();
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != frames)
+				throw new IllegalStateException(
+						"install metrics before any page is pinned");
+			SystemDefs.JavabaseBM.flushAllPages();
+			SystemDefs.JavabaseBM = new MeteredBufMgr(frames, replacer);
+		}
+		if (!(SystemDefs.JavabaseDB instanceof MeteredDB)) {
+			String name = SystemDefs.JavabaseDB.db_name();
+			SystemDefs.JavabaseDB.closeDB();
+			// openDB reads its space map through the buffer manager, which
+			// reads through SystemDefs.JavabaseDB
+			MeteredDB db = new MeteredDB();
+			SystemDefs.JavabaseDB = db;
+			db.openDB(name);
+		}
+		register();
+	}
+
+	/**
+	 * Register the MBean with the platform MBean server, if it is not there
+	 * yet.
+	 *
+	 * @exception JMException
+	 *                registration failed
+	 */
+	public static void register() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if (!server.isRegistered(name))
+			server.registerMBean(instance, name);
+	}
+
+	public long getPins() {
+		return pins.sum();
+	}
+
+	public long getUnpins() {
+		return unpins.sum();
+	}
+
+	public long getBufferHits() {
+		return hits.sum();
+	}
+
+	public long getBufferMisses() {
+		return misses.sum();
+	}
+
+	public long getDiskReads() {
+		return diskReads.sum();
+	}
+
+	public long getDiskWrites() {
+		return diskWrites.sum();
+	}
+
+	public long getOffHeapHits() {
+		return offHeapHits.sum();
+	}
+
+	public long getLeafSplits() {
+		return leafSplits.sum();
+	}
+
+	public long getIndexSplits() {
+		return indexSplits.sum();
+	}
+
+	public long getDescents() {
+		return descents.sum();
+	}
+
+	public long getScans() {
+		return scans.sum();
+	}
+
+	public long getScanLeaves() {
+		return scanLeaves.sum();
+	}
+
+	public long getDeleteExtraLeaves() {
+		return deleteExtraLeaves.sum();
+	}
+
+	public long getPageCacheHits() {
+		return pageCacheHits.sum();
+	}
+
+	public long getPageCacheMisses() {
+		return pageCacheMisses.sum();
+	}
+
+	public double getPageCacheHitRatio() {
+		long hit = pageCacheHits.sum();
+		long total = hit + pageCacheMisses.sum();
+		return total == 0 ? 0.0 : (double) hit / total;
+	}
+
+	public long getPageCacheBytes() {
+		return DecodedPageCache.getMemoryUsed();
+	}
+
+	public long getPageSearches() {
+		return pageSearches.sum();
+	}
+
+	public long getPageSearchProbes() {
+		return pageSearchProbes.sum();
+	}
+
+	public long getFenceStops() {
+		return fenceStops.sum();
+	}
+
+	public long getFenceViolations() {
+		return fenceViolations.sum();
+	}
+
+	public long getInserts() {
+		return latency[INSERT].count();
+	}
+
+	public long getDeletes() {
+		return latency[DELETE].count();
+	}
+
+	public long getSeeks() {
+		return latency[SEEK].count();
+	}
+
+	public String[] getLatencyReport() {
+		String[] lines = new String[OPERATIONS.length];
+		for (int i = 0; i < lines.length; i++) {
+			LatencyRecorder r = latency[i];
+			long n = r.count();
+			lines[i] = String.format(
+					"%s count=%d mean=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus",
+					OPERATIONS[i], n, n == 0 ? 0.0 : r.totalNanos() / 1000.0 / n,
+					r.percentile(50) / 1000.0, r.percentile(99) / 1000.0,
+					r.percentile(99.9) / 1000.0);
+		}
+		return lines;
+	}
+
+	public double latencyMicros(String operation, double percentile) {
+		for (int i = 0; i < OPERATIONS.length; i++)
+			if (OPERATIONS[i].equals(operation))
+				return latency[i].percentile(percentile) / 1000.0;
+		throw new IllegalArgumentException("unknown operation " + operation);
+	}
+
+	public void reset() {
+		LongAdder[] all = { pins, unpins, hits, misses, diskReads, diskWrites,
+				offHeapHits, leafSplits, indexSplits, descents, scans, scanLeaves,
+				deleteExtraLeaves, pageCacheHits, pageCacheMisses,
+				pageSearches, pageSearchProbes, fenceStops, fenceViolations };
+		for (int i = 0; i < all.length; i++)
+			all[i].reset();
+		for (int i = 0; i < latency.length; i++)
+			latency[i].reset();
+	}
+}
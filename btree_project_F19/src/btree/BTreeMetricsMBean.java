@@ -0,0 +1,78 @@
+package btree;
+
+/**
+ * Management interface of BTreeMetrics, as seen through JMX.
+ */
+public interface BTreeMetricsMBean {
+
+	long getPins();
+
+	long getUnpins();
+
+	long getBufferHits();
+
+	long getBufferMisses();
+
+	long getDiskReads();
+
+	long getDiskWrites();
+
+	/** buffer misses served from the OffHeapDB arena, not the disk */
+	long getOffHeapHits();
+
+	long getLeafSplits();
+
+	long getIndexSplits();
+
+	long getDescents();
+
+	long getScans();
+
+	long getScanLeaves();
+
+	long getDeleteExtraLeaves();
+
+	long getPageCacheHits();
+
+	long getPageCacheMisses();
+
+	double getPageCacheHitRatio();
+
+	/** the estimated heap the cached page views take */
+	long getPageCacheBytes();
+
+	/** searches for a key within a decoded page */
+	long getPageSearches();
+
+	/** keys those searches compared */
+	long getPageSearchProbes();
+
+	/**
+	 * leaves a scan or NaiveDelete did not pin, the fences or the last key of
+	 * the leaf before showing the range had ended
+	 */
+	long getFenceStops();
+
+	/** pages whose keys were outside the separators above them */
+	long getFenceViolations();
+
+	long getInserts();
+
+	long getDeletes();
+
+	long getSeeks();
+
+	/** one line per operation type: count, mean, p50, p99 and p99.9 */
+	String[] getLatencyReport();
+
+	/**
+	 * @param operation
+	 *            insert, delete or seek (new_scan)
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the latency in microseconds
+	 */
+	double latencyMicros(String operation, double percentile);
+
+	void reset();
+}
@@ -0,0 +1,282 @@
+package btree;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTreeStats is what BTreeFile.stats() found walking a B+ tree: its shape,
+ * how full its leaves are, how its keys repeat, how its leaf chain is laid out
+ * on disk and how much space rebuilding it would give back. Fill factors are
+ * the used fraction of the space a page has for records.
+ */
+public class BTreeStats implements GlobalConst {
+
+	/* space a B+ tree page has for slots and records */
+	static final int PAGE_SPACE = MAX_SPACE - HFPage.DPFIXED;
+
+	int[] levelPages = new int[0];
+	int indexPages;
+	int leafPages;
+	long indexBytes;
+	long leafBytes;
+	double minLeafFill = 1.0;
+	long entries;
+	long distinctKeys;
+	long duplicatedKeys;
+	long maxDuplicateRun;
+	long leafLinks;
+	long contiguousLinks;
+	long backwardLinks;
+	int bloomFilters;
+	long bloomBytes;
+	long bloomNegatives;
+	long bloomFalsePositives;
+	int hashIndexKeys;
+	long hashIndexHits;
+	long hashIndexStale;
+	int pooledPages;
+	boolean residencyKnown = true;
+
+	/*
+	 * Account for one more level with the given number of pages
+	 */
+	void addLevel(int pages) {
+		int[] grown = new int[levelPages.length + 1];
+		System.arraycopy(levelPages, 0, grown, 0, levelPages.length);
+		grown[levelPages.length] = pages;
+		levelPages = grown;
+	}
+
+	/** @return levels from the root down to the leaves; 0 if empty */
+	public int getHeight() {
+		return levelPages.length;
+	}
+
+	/** @return the number of pages on each level, the root's first */
+	public int[] getLevelPages() {
+		return levelPages.clone();
+	}
+
+	public int getIndexPages() {
+		return indexPages;
+	}
+
+	public int getLeafPages() {
+		return leafPages;
+	}
+
+	/** @return the average fill of the leaves, between 0 and 1 */
+	public double getAverageLeafFill() {
+		return leafPages == 0 ? 0.0 : (double) leafBytes
+				/ ((long) leafPages * PAGE_SPACE);
+	}
+
+	/** @return the fill of the emptiest leaf, between 0 and 1 */
+	public double getMinLeafFill() {
+		return leafPages == 0 ? 0.0 : minLeafFill;
+	}
+
+	/** @return the average fill of the index pages, between 0 and 1 */
+	public double getAverageIndexFill() {
+		return indexPages == 0 ? 0.0 : (double) indexBytes
+				/ ((long) indexPages * PAGE_SPACE);
+	}
+
+	/**
+	 * @return the number of leaf entries; a key with a posting list is one
+	 *         entry
+	 */
+	public long getEntries() {
+		return entries;
+	}
+
+	public long getDistinctKeys() {
+		return distinctKeys;
+	}
+
+	/** @return the number of keys with more than one entry */
+	public long getDuplicatedKeys() {
+		return duplicatedKeys;
+	}
+
+	/** @return the most entries any one key has */
+	public long getMaxDuplicateRun() {
+		return maxDuplicateRun;
+	}
+
+	/** @return the average number of entries of a key that has duplicates */
+	public double getAverageDuplicateRun() {
+		long inRuns = entries - (distinctKeys - duplicatedKeys);
+		return duplicatedKeys == 0 ? 0.0 : (double) inRuns / duplicatedKeys;
+	}
+
+	/**
+	 * @return the fraction of leaf-to-next-leaf links where the next leaf is
+	 *         the next page on disk; 1 for a single leaf
+	 */
+	public double getLeafContiguity() {
+		return leafLinks == 0 ? 1.0 : (double) contiguousLinks / leafLinks;
+	}
+
+	/** @return leaf links that point to a lower page number */
+	public long getBackwardLeafLinks() {
+		return backwardLinks;
+	}
+
+	/**
+	 * @return the pages a rebuild with full pages would free: for leaves and
+	 *         index pages alike, pages in use minus the pages their records
+	 *         need
+	 */
+	public long getReclaimablePages() {
+		return Math.max(0, leafPages - pagesFor(leafBytes))
+				+ Math.max(0, indexPages - pagesFor(indexBytes));
+	}
+
+	/** @return getReclaimablePages() in bytes */
+	public long getReclaimableBytes() {
+		return getReclaimablePages() * MINIBASE_PAGESIZE;
+	}
+
+	/**
+	 * Project the height this tree would have with pages of another size,
+	 * for the same entries, entry sizes and page fill. Index entries are
+	 * taken to be one per leaf past the first, which is what splits make.
+	 *
+	 * @param pageSize
+	 *            the page size in bytes
+	 * @return the projected number of levels; 0 if the tree is empty
+	 */
+	public int projectedHeight(int pageSize) {
+		if (entries == 0)
+			return 0;
+		double space = pageSize - HFPage.DPFIXED;
+		double leafEntry = (double) leafBytes / entries;
+		long perLeaf = Math.max(1, (long) (space * getAverageLeafFill() / leafEntry));
+		long pages = (entries + perLeaf - 1) / perLeaf;
+		double indexEntry = leafPages > 1 ? (double) indexBytes
+				/ (leafPages - 1) : leafEntry;
+		double indexFill = indexPages == 0 ? getAverageLeafFill()
+				: getAverageIndexFill();
+		long fanout = Math.max(2, (long) (space * indexFill / indexEntry) + 1);
+		int height = 1;
+		while (pages > 1) {
+			pages = (pages + fanout - 1) / fanout;
+			height++;
+		}
+		return height;
+	}
+
+	/** @return the number of leaves with a Bloom filter; 0 if they are off */
+	public int getBloomFilters() {
+		return bloomFilters;
+	}
+
+	/** @return the estimated heap bytes the Bloom filters take */
+	public long getBloomFilterBytes() {
+		return bloomBytes;
+	}
+
+	/**
+	 * @return the containsKey calls a Bloom filter answered without pinning
+	 *         the leaf
+	 */
+	public long getBloomNegatives() {
+		return bloomNegatives;
+	}
+
+	/**
+	 * @return the containsKey calls for absent keys a Bloom filter let
+	 *         through to the leaf
+	 */
+	public long getBloomFalsePositives() {
+		return bloomFalsePositives;
+	}
+
+	/**
+	 * @return the fraction of containsKey calls for absent keys, with a
+	 *         filter asked, that the filter let through; keys deleted since
+	 *         the filter was built are let through too
+	 */
+	public double getBloomFalsePositiveRate() {
+		long absent = bloomNegatives + bloomFalsePositives;
+		return absent == 0 ? 0.0 : (double) bloomFalsePositives / absent;
+	}
+
+	/**
+	 * @return the keys with a hint in the adaptive hash index; 0 if it is
+	 *         off
+	 */
+	public int getHashIndexKeys() {
+		return hashIndexKeys;
+	}
+
+	/**
+	 * @return the containsKey calls the adaptive hash index answered without
+	 *         a descent
+	 */
+	public long getHashIndexHits() {
+		return hashIndexHits;
+	}
+
+	/**
+	 * @return the hints found stale, their leaf having changed, and dropped
+	 */
+	public long getHashIndexStale() {
+		return hashIndexStale;
+	}
+
+	private static long pagesFor(long bytes) {
+		return (bytes + PAGE_SPACE - 1) / PAGE_SPACE;
+	}
+
+	/**
+	 * @return the pages the walk read through the buffer pool because they
+	 *         were in it already; every page it read if isResidencyKnown()
+	 *         is false
+	 */
+	public int getPooledPages() {
+		return pooledPages;
+	}
+
+	/**
+	 * @return false if the walk could not tell which pages the buffer pool
+	 *         held, and so pinned every page; it may then have pushed the
+	 *         working set out of the pool
+	 */
+	public boolean isResidencyKnown() {
+		return residencyKnown;
+	}
+
+	public String toString() {
+		StringBuffer levels = new StringBuffer();
+		for (int i = 0; i < levelPages.length; i++)
+			levels.append(i == 0 ? "" : " ").append(levelPages[i]);
+		return "height " + getHeight() + " (pages per level: " + levels
+				+ ")\n" + "index pages " + indexPages + ", fill "
+				+ percent(getAverageIndexFill()) + "\n" + "leaf pages "
+				+ leafPages + ", fill " + percent(getAverageLeafFill())
+				+ " average, " + percent(getMinLeafFill()) + " min\n"
+				+ "entries " + entries + ", distinct keys " + distinctKeys
+				+ ", duplicated keys " + duplicatedKeys + " (average run "
+				+ String.format("%.1f", getAverageDuplicateRun()) + ", max "
+				+ maxDuplicateRun + ")\n" + "leaf chain contiguity "
+				+ percent(getLeafContiguity()) + ", backward links "
+				+ backwardLinks + "\n" + "reclaimable by compaction "
+				+ getReclaimablePages() + " pages (" + getReclaimableBytes()
+				+ " bytes)" + (bloomFilters == 0 ? "" : "\nbloom filters "
+				+ bloomFilters + " (" + bloomBytes + " bytes), "
+				+ bloomNegatives + " negatives, false positive rate "
+				+ percent(getBloomFalsePositiveRate()))
+				+ (hashIndexKeys == 0 ? "" : "\nadaptive hash index "
+						+ hashIndexKeys + " keys, " + hashIndexHits
+						+ " hits, " + hashIndexStale + " stale")
+				+ "\npages read through the buffer pool " + pooledPages
+				+ (residencyKnown ? ""
+						: " (all, as the pool's frames could not be read)");
+	}
+
+	private static String percent(double fraction) {
+		return String.format("%.1f%%", fraction * 100);
+	}
+}
@@ -0,0 +1,346 @@
+package btree;
+
+import java.io.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * BTreeTrace records what the B+ tree does (nodes visited, splits, root
+ * changes, the children of a node) as small binary events. BTreeFile puts
+ * them in a lock-free ring buffer and returns; a background thread drains the
+ * buffer into the trace file. When the buffer is full, events are dropped
+ * and counted rather than making the index wait.
+ * <p>
+ * Node visits can be sampled: with setSampling(n) one descent in n, chosen
+ * at random, is traced with all its visits. Splits and root changes are rare
+ * and always traced, unless masked out with setEvents.
+ * <p>
+ * The file starts with MAGIC, VERSION and the wall-clock start time in
+ * milliseconds. Then each event is its type byte, the nanoseconds since the
+ * previous event as a varint, and its two arguments as zig-zag varints.
+ * TraceDecoder turns it back into the text trace the visualization tool
+ * reads.
+ */
+public final class BTreeTrace {
+
+	/** "BTTR" */
+	public static final int MAGIC = 0x42545452;
+	public static final int VERSION = 2;
+
+	/** a node on the way down; a = page */
+	public static final int VISIT = 1;
+	/** a leaf split; a = old page, b = new right sibling */
+	public static final int LEAF_SPLIT = 2;
+	/** an index page split; a = old page, b = new right sibling */
+	public static final int INDEX_SPLIT = 3;
+	/** the root changed; a = new root, b = old root */
+	public static final int NEW_ROOT = 4;
+	/** children of an index page follow; a = page, b = number of CHILDs */
+	public static final int INDEX_CHILDREN = 5;
+	/** children of a leaf follow; a = page, b = number of ENTRYs */
+	public static final int LEAF_CHILDREN = 6;
+	/** a = child page */
+	public static final int CHILD = 7;
+	/**
+	 * a leaf entry; a = integer key, or (b = 1) the length of a string key,
+	 * whose UTF-8 bytes follow in KEY_BYTES events. Version 1 traces had the
+	 * hash code of the string in a.
+	 */
+	public static final int ENTRY_KEY = 8;
+	/** rid of the previous ENTRY_KEY; a = page, b = slot */
+	public static final int ENTRY_RID = 9;
+	/** written by the drain thread; a = events dropped since the last one */
+	public static final int DROPPED = 10;
+	/** the next 8 bytes of a string key, big-endian, in a and then b */
+	public static final int KEY_BYTES = 11;
+
+	/** mask of all event types */
+	public static final int ALL_EVENTS = -1;
+
+	private static final int DEFAULT_CAPACITY = 1 << 16;
+
+	private static volatile Ring ring;
+	private static volatile int sampling = 1;
+	private static volatile int events = ALL_EVENTS;
+	private static Drainer drainer;
+
+	private BTreeTrace() {
+	}
+
+	/**
+	 * Start tracing into filename, with a ring buffer of 65536 events.
+	 *
+	 * @param filename
+	 *            the trace file
+	 * @exception IOException
+	 *                error opening the file
+	 */
+	public static void start(String filename) throws IOException {
+		start(filename, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Start tracing into filename. A trace already running is stopped first.
+	 *
+	 * @param filename
+	 *            the trace file
+	 * @param capacity
+	 *            events the ring buffer holds, rounded up to a power of two
+	 * @exception IOException
+	 *                error opening the file
+	 */
+	public static synchronized void start(String filename, int capacity)
+			throws IOException {
+		stop();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(filename), 64 * 1024));
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeLong(System.currentTimeMillis());
+		Ring r = new Ring(Integer.highestOneBit(Math.max(2, capacity - 1)) << 1);
+		drainer = new Drainer(r, out);
+		drainer.start();
+		ring = r;
+	}
+
+	/**
+	 * Stop tracing, write out what is still buffered and close the file.
+	 *
+	 * @exception IOException
+	 *                error writing the file
+	 */
+	public static synchronized void stop() throws IOException {
+		if (drainer == null)
+			return;
+		ring = null;
+		Drainer d = drainer;
+		drainer = null;
+		d.running = false;
+		LockSupport.unpark(d);
+		try {
+			d.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (d.failure != null)
+			throw d.failure;
+	}
+
+	/**
+	 * @param oneIn
+	 *            trace one descent in oneIn; 1 traces them all
+	 */
+	public static void setSampling(int oneIn) {
+		sampling = Math.max(1, oneIn);
+	}
+
+	/**
+	 * @param mask
+	 *            the event types to record, bit (1 &lt;&lt; type) for each
+	 */
+	public static void setEvents(int mask) {
+		events = mask;
+	}
+
+	/**
+	 * @return events dropped because the ring buffer was full
+	 */
+	public static long dropped() {
+		Ring r = ring;
+		return r == null ? 0 : r.dropped.get();
+	}
+
+	/*
+	 * true if tracing is on; cheap enough for every call site
+	 */
+	static boolean enabled() {
+		return ring != null;
+	}
+
+	/*
+	 * decide whether the descent starting now is traced
+	 */
+	static boolean sampleDescent() {
+		if (ring == null || (events & (1 << VISIT)) == 0)
+			return false;
+		int n = sampling;
+		return n == 1 || ThreadLocalRandom.current().nextInt(n) == 0;
+	}
+
+	static void event(int type, int a, int b) {
+		Ring r = ring;
+		if (r == null || (events & (1 << type)) == 0)
+			return;
+		offer(r, type, a, b);
+	}
+
+	/*
+	 * the ENTRY_KEY of a string key and its KEY_BYTES, which go with it
+	 * whatever the event mask says
+	 */
+	static void stringKey(String key) {
+		Ring r = ring;
+		if (r == null || (events & (1 << ENTRY_KEY)) == 0)
+			return;
+		byte[] bytes;
+		try {
+			bytes = key.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error(e); // every JVM has UTF-8
+		}
+		offer(r, ENTRY_KEY, bytes.length, 1);
+		for (int i = 0; i < bytes.length; i += 8)
+			offer(r, KEY_BYTES, word(bytes, i), word(bytes, i + 4));
+	}
+
+	private static void offer(Ring r, int type, int a, int b) {
+		r.offer(((System.nanoTime() - r.origin) << 8) | type, ((long) a << 32)
+				| (b & 0xffffffffL));
+	}
+
+	/*
+	 * four bytes from from on, big-endian, zeros past the end
+	 */
+	private static int word(byte[] bytes, int from) {
+		int w = 0;
+		for (int i = from; i < from + 4; i++)
+			w = w << 8 | (i < bytes.length ? bytes[i] & 0xff : 0);
+		return w;
+	}
+
+	/*
+	 * Bounded multi-producer, single-consumer queue of two-word events. Each
+	 * slot has a sequence number telling whose turn it is: pos when free for
+	 * the producer claiming position pos, pos + 1 once written.
+	 */
+	private static final class Ring {
+		final int mask;
+		final long origin = System.nanoTime();
+		final AtomicLongArray seq;
+		final long[] first;
+		final long[] second;
+		final AtomicLong tail = new AtomicLong();
+		final AtomicLong dropped = new AtomicLong();
+		long head; // drain thread only
+
+		Ring(int capacity) {
+			mask = capacity - 1;
+			seq = new AtomicLongArray(capacity);
+			first = new long[capacity];
+			second = new long[capacity];
+			for (int i = 0; i < capacity; i++)
+				seq.set(i, i);
+		}
+
+		void offer(long w0, long w1) {
+			long pos = tail.get();
+			while (true) {
+				int i = (int) pos & mask;
+				long diff = seq.get(i) - pos;
+				if (diff == 0) {
+					if (tail.compareAndSet(pos, pos + 1)) {
+						first[i] = w0;
+						second[i] = w1;
+						seq.lazySet(i, pos + 1);
+						return;
+					}
+					pos = tail.get();
+				} else if (diff < 0) {
+					dropped.incrementAndGet();
+					return;
+				} else {
+					pos = tail.get();
+				}
+			}
+		}
+	}
+
+	private static final class Drainer extends Thread {
+		private final Ring ring;
+		private final DataOutputStream out;
+		private long lastNanos;
+		private long reportedDrops;
+		volatile boolean running = true;
+		IOException failure;
+
+		Drainer(Ring ring, DataOutputStream out) {
+			super("btree-trace");
+			setDaemon(true);
+			this.ring = ring;
+			this.out = out;
+		}
+
+		public void run() {
+			try {
+				boolean unflushed = false;
+				while (running) {
+					if (drain() > 0) {
+						unflushed = true;
+					} else {
+						if (unflushed)
+							out.flush();
+						unflushed = false;
+						LockSupport.parkNanos(1000000);
+					}
+				}
+				drain();
+			} catch (IOException e) {
+				failure = e;
+			} finally {
+				try {
+					out.close();
+				} catch (IOException e) {
+					if (failure == null)
+						failure = e;
+				}
+			}
+		}
+
+		private int drain() throws IOException {
+			int n = 0;
+			while (true) {
+				int i = (int) ring.head & ring.mask;
+				if (ring.seq.get(i) != ring.head + 1)
+					break;
+				long w0 = ring.first[i];
+				long w1 = ring.second[i];
+				ring.seq.lazySet(i, ring.head + ring.mask + 1);
+				ring.head++;
+				write((int) w0 & 0xff, w0 >>> 8, (int) (w1 >>> 32), (int) w1);
+				n++;
+			}
+			long drops = ring.dropped.get();
+			if (drops != reportedDrops) {
+				write(DROPPED, lastNanos, (int) (drops - reportedDrops), 0);
+				reportedDrops = drops;
+			}
+			return n;
+		}
+
+		private void write(int type, long nanos, int a, int b)
+				throws IOException {
+			// a producer can be preempted between stamping and claiming a
+			// slot, so time may step back a little; write 0 rather than go
+			// negative
+			long delta = nanos - lastNanos;
+			if (delta < 0)
+				delta = 0;
+			else
+				lastNanos = nanos;
+			out.writeByte(type);
+			writeVarLong(delta);
+			writeVarLong(((a << 1) ^ (a >> 31)) & 0xffffffffL);
+			writeVarLong(((b << 1) ^ (b >> 31)) & 0xffffffffL);
+		}
+
+		private void writeVarLong(long v) throws IOException {
+			while ((v & ~0x7fL) != 0) {
+				out.writeByte((int) (v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			out.writeByte((int) v);
+		}
+	}
+}
@@ -0,0 +1,566 @@
+package btree;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import global.*;
+
+/**
+ * BufferedBTree runs a BTreeFile as a B-epsilon tree: each index page has a
+ * buffer of pending insert and delete messages for the keys below it. Writes
+ * go into the root's buffer. When a buffer fills, its messages move down in
+ * batches, each time to the child that most of them go to. A batch that
+ * reaches a leaf is applied in one sorted pass (see
+ * BTreeFile.insertSorted), so one leaf pin covers many updates.
+ * <p>
+ * The page layout belongs to BTIndexPage, so the buffers are kept in memory
+ * next to their pages, capacity messages each, rather than in space taken
+ * from the page. BTreeFile reports its index page splits here, and the
+ * messages for the keys that moved go to the new page's buffer.
+ * <p>
+ * A message is a [key, rid] pair with a net count, as in DeltaBTree. Keys go
+ * to the child findRunStart would descend to, so all messages for a key lie
+ * on its root-to-leaf path. lookup and Delete add up the messages on that
+ * path. new_scan reads through all the buffers (see DeltaFileScan). While
+ * scans are open, messages stay where they are and the tree does not
+ * change under them. The index must only be written through this object
+ * while it is open. Messages still buffered are lost if the process stops
+ * before flush() or close().
+ */
+public class BufferedBTree extends IndexFile implements GlobalConst {
+
+	/** the default number of messages an index page's buffer holds */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private final BTreeFile file;
+	private final int capacity;
+	private final HashMap<Integer, TreeMap<DeltaBTree.DeltaKey, Integer>> buffers = new HashMap<Integer, TreeMap<DeltaBTree.DeltaKey, Integer>>();
+	private final AtomicInteger openScans = new AtomicInteger();
+	private long leafBatches;
+	private long leafMessages;
+
+	/**
+	 * @param file
+	 *            the index to buffer writes for; it stays open, and the
+	 *            caller closes it after this
+	 */
+	public BufferedBTree(BTreeFile file) {
+		this(file, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param file
+	 *            the index to buffer writes for; it stays open, and the
+	 *            caller closes it after this
+	 * @param capacity
+	 *            the number of messages that fills a buffer; half are moved
+	 *            down when it is full
+	 */
+	public BufferedBTree(BTreeFile file, int capacity) {
+		if (file.buffered != null)
+			throw new IllegalStateException("the index is buffered already");
+		this.file = file;
+		this.capacity = Math.max(2, capacity);
+		file.buffered = this;
+	}
+
+	/** @return the index under the buffers */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/** @return the number of [key, rid] pairs with messages buffered */
+	public synchronized int getPendingCount() {
+		int n = 0;
+		for (TreeMap<DeltaBTree.DeltaKey, Integer> buffer : buffers.values())
+			n += buffer.size();
+		return n;
+	}
+
+	/** @return the number of pages with messages buffered */
+	public synchronized int getBufferCount() {
+		int n = 0;
+		for (TreeMap<DeltaBTree.DeltaKey, Integer> buffer : buffers.values())
+			if (!buffer.isEmpty())
+				n++;
+		return n;
+	}
+
+	/** @return the number of batches of messages applied to leaves */
+	public synchronized long getLeafBatches() {
+		return leafBatches;
+	}
+
+	/** @return the number of messages applied to leaves */
+	public synchronized long getLeafMessages() {
+		return leafMessages;
+	}
+
+	/**
+	 * buffer an insert of the given key and rid at the root. The key is
+	 * checked as insert would check it first, so applying the message does
+	 * not fail on it; on an index with IndexFlags.UNIQUE that takes a lookup
+	 * in the index.
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when moving messages down, or key already in a
+	 *                unique index
+	 */
+	public synchronized void insert(KeyClass key, RID rid)
+			throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, ConvertException, DeleteRecException,
+			IndexSearchException, IteratorException, LeafDeleteException,
+			InsertException, IOException {
+		int root = file.rootPid();
+		if (root == INVALID_PAGE) {
+			file.insert(key, rid); // the first leaf
+			return;
+		}
+		file.checkKey(key);
+		KeyClass stored = BTreeFile.storedKey(key, false);
+		if ((file.getFlags() & IndexFlags.UNIQUE) != 0 && entries(stored) > 0)
+			throw new InsertException(null, "duplicate key " + key);
+		add(root, new DeltaBTree.DeltaKey(stored, rid), 1);
+		try {
+			pushIfFull(root);
+		} catch (IOException e) {
+			throw e;
+		} catch (InsertException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new InsertException(e, "");
+		}
+	}
+
+	/**
+	 * delete leaf entry given its <key, rid> pair: buffer the delete at the
+	 * root if the pair is in the index or its messages
+	 *
+	 * @param key
+	 *            the key in pair <key, rid>. Input Parameter.
+	 * @param rid
+	 *            the rid in pair <key, rid>. Input Parameter.
+	 * @return true if deleted. false if no such record.
+	 * @exception DeleteFashionException
+	 *                neither full delete nor naive delete
+	 * @exception LeafRedistributeException
+	 *                redistribution error in leaf pages
+	 * @exception RedistributeException
+	 *                redistribution error in index pages
+	 * @exception InsertRecException
+	 *                error when insert in index page
+	 * @exception KeyNotMatchException
+	 *                key is neither integer key nor string key
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception IndexInsertRecException
+	 *                error when insert in index page
+	 * @exception FreePageException
+	 *                error in BT page constructor
+	 * @exception RecordNotFoundException
+	 *                error delete a record in a BT page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception IndexFullDeleteException
+	 *                fill delete error
+	 * @exception LeafDeleteException
+	 *                delete error in leaf page
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception DeleteRecException
+	 *                error when moving messages down
+	 * @exception IndexSearchException
+	 *                error in search in index pages
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public synchronized boolean Delete(KeyClass key, RID rid)
+			throws DeleteFashionException, LeafRedistributeException,
+			RedistributeException, InsertRecException, KeyNotMatchException,
+			UnpinPageException, IndexInsertRecException, FreePageException,
+			RecordNotFoundException, PinPageException,
+			IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IndexSearchException,
+			IOException {
+		DeltaBTree.DeltaKey pair = new DeltaBTree.DeltaKey(BTreeFile
+				.storedKey(key, false), rid);
+		int root = file.rootPid();
+		if (root == INVALID_PAGE)
+			return false;
+		int[] net = pathChanges(pair.key).get(pair);
+		if (DeltaBTree.inFile(file, pair) + (net == null ? 0 : net[0]) <= 0)
+			return false;
+		add(root, pair, -1);
+		try {
+			pushIfFull(root);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new DeleteRecException(e, "");
+		}
+		return true;
+	}
+
+	/**
+	 * find the rids of the entries with the given key, counting the messages
+	 * buffered on the key's path
+	 *
+	 * @param key
+	 *            the key to look up
+	 * @return the rids, those in the index first
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public synchronized List<RID> lookup(KeyClass key) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		List<RID> rids = new ArrayList<RID>();
+		if (file.rootPid() == INVALID_PAGE)
+			return rids;
+		TreeMap<DeltaBTree.DeltaKey, int[]> changes = pathChanges(BTreeFile
+				.storedKey(key, false));
+		openScans.incrementAndGet();
+		DeltaFileScan scan = new DeltaFileScan(this, file.new_scan(key, key),
+				changes, openScans);
+		try {
+			for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan
+					.get_next())
+				rids.add(((LeafData) entry.data).getData());
+		} catch (ScanIteratorException e) {
+			throw new IteratorException(e, "");
+		} finally {
+			try {
+				scan.DestroyBTreeFileScan();
+			} catch (Exception e) {
+				throw new UnpinPageException(e, "");
+			}
+		}
+		return rids;
+	}
+
+	/**
+	 * create a scan of the entries with keys in [lo_key, hi_key] as the
+	 * index and its buffers together have them; null leaves that end of the
+	 * range open. The messages in the range are copied when the scan starts,
+	 * and none move down until it is destroyed.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @return the scan
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public synchronized DeltaFileScan new_scan(KeyClass lo_key,
+			KeyClass hi_key) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		TreeMap<DeltaBTree.DeltaKey, int[]> changes = new TreeMap<DeltaBTree.DeltaKey, int[]>();
+		for (TreeMap<DeltaBTree.DeltaKey, Integer> buffer : buffers.values())
+			DeltaBTree.collect(DeltaBTree.range(buffer, lo_key, hi_key),
+					changes);
+		BTFileScan scan = file.new_scan(lo_key, hi_key);
+		openScans.incrementAndGet();
+		return new DeltaFileScan(this, scan, changes, openScans);
+	}
+
+	/**
+	 * Apply every buffered message to the leaves, inserts in one sorted
+	 * batch; put off while scans are open.
+	 *
+	 * @return false if it was put off
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InsertException
+	 *                applying the messages failed
+	 */
+	public synchronized boolean flush() throws IOException, InsertException {
+		if (openScans.get() > 0)
+			return false;
+		TreeMap<DeltaBTree.DeltaKey, Integer> all = new TreeMap<DeltaBTree.DeltaKey, Integer>();
+		for (TreeMap<DeltaBTree.DeltaKey, Integer> buffer : buffers.values())
+			for (Map.Entry<DeltaBTree.DeltaKey, Integer> message : buffer
+					.entrySet())
+				all.merge(message.getKey(), message.getValue(),
+						DeltaBTree.SUM);
+		buffers.clear();
+		try {
+			apply(all);
+		} catch (IOException e) {
+			throw e;
+		} catch (InsertException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new InsertException(e, "");
+		} finally {
+			restore(all);
+		}
+		return true;
+	}
+
+	/**
+	 * Flush the buffered messages and stop buffering. Scans must be destroyed
+	 * first; the index itself stays open.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InsertException
+	 *                a scan is open, or the flush failed
+	 */
+	public synchronized void close() throws IOException, InsertException {
+		if (!flush())
+			throw new InsertException(null, "scans are open");
+		file.buffered = null;
+	}
+
+	/*
+	 * BTreeFile split index page page, moving the keys from separator on to
+	 * newPage; the messages that now go through newPage follow. Called with
+	 * this object locked, from the write that caused the split.
+	 */
+	void indexSplit(int page, int newPage, KeyClass separator) {
+		TreeMap<DeltaBTree.DeltaKey, Integer> buffer = buffers.get(Integer
+				.valueOf(page));
+		if (buffer == null)
+			return;
+		// keys equal to the separator still go left
+		NavigableMap<DeltaBTree.DeltaKey, Integer> moved = buffer.tailMap(
+				new DeltaBTree.DeltaKey(separator, DeltaBTree.DeltaKey.HIGHEST),
+				false);
+		if (moved.isEmpty())
+			return;
+		buffer(newPage).putAll(moved);
+		moved.clear();
+	}
+
+	/*
+	 * the entries with a stored key in the index and the buffers together
+	 */
+	private int entries(KeyClass key) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		int n = file.containsKey(key) ? 1 : 0; // the index is unique
+		for (int[] count : pathChanges(key).values())
+			n += count[0];
+		return n;
+	}
+
+	/*
+	 * the messages for key on its path, summed per pair
+	 */
+	private TreeMap<DeltaBTree.DeltaKey, int[]> pathChanges(KeyClass key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		TreeMap<DeltaBTree.DeltaKey, int[]> changes = new TreeMap<DeltaBTree.DeltaKey, int[]>();
+		DeltaBTree.DeltaKey lo = new DeltaBTree.DeltaKey(key,
+				DeltaBTree.DeltaKey.LOWEST);
+		DeltaBTree.DeltaKey hi = new DeltaBTree.DeltaKey(key,
+				DeltaBTree.DeltaKey.HIGHEST);
+		int pid = file.rootPid();
+		while (true) {
+			TreeMap<DeltaBTree.DeltaKey, Integer> buffer = buffers.get(Integer
+					.valueOf(pid));
+			if (buffer != null)
+				DeltaBTree.collect(buffer.subMap(lo, true, hi, true), changes);
+			DecodedPageCache.View view = file.view(pid);
+			if (view.type != NodeType.INDEX)
+				return changes;
+			pid = view.child(view.search(key));
+		}
+	}
+
+	/*
+	 * move messages down from a full buffer
+	 */
+	private void pushIfFull(int pid) throws Exception {
+		TreeMap<DeltaBTree.DeltaKey, Integer> buffer = buffers.get(Integer
+				.valueOf(pid));
+		if (buffer != null && buffer.size() >= capacity
+				&& openScans.get() == 0)
+			push(pid);
+	}
+
+	/*
+	 * Move messages from the buffer of page pid down until it is half empty,
+	 * the largest batch for one child first. Batches for a leaf are applied;
+	 * the whole buffer is, if the root is a leaf.
+	 */
+	private void push(int pid) throws Exception {
+		Integer page = Integer.valueOf(pid);
+		TreeMap<DeltaBTree.DeltaKey, Integer> buffer = buffers.get(page);
+		if (file.view(pid).type != NodeType.INDEX) {
+			buffers.remove(page);
+			try {
+				apply(buffer);
+			} finally {
+				restore(buffer);
+			}
+			return;
+		}
+		while (buffer.size() > capacity / 2) {
+			DecodedPageCache.View view = file.view(pid);
+			int slot = heaviestChild(view, buffer);
+			NavigableMap<DeltaBTree.DeltaKey, Integer> range = buffer;
+			if (slot > 0)
+				range = range.tailMap(new DeltaBTree.DeltaKey(
+						view.keys[slot - 1], DeltaBTree.DeltaKey.HIGHEST), false);
+			if (slot < view.keys.length)
+				range = range.headMap(new DeltaBTree.DeltaKey(view.keys[slot],
+						DeltaBTree.DeltaKey.HIGHEST), false);
+			TreeMap<DeltaBTree.DeltaKey, Integer> batch = new TreeMap<DeltaBTree.DeltaKey, Integer>(
+					range);
+			range.clear();
+			int child = view.child(slot);
+			if (file.view(child).type == NodeType.INDEX) {
+				TreeMap<DeltaBTree.DeltaKey, Integer> target = buffer(child);
+				for (Map.Entry<DeltaBTree.DeltaKey, Integer> message : batch
+						.entrySet())
+					target.merge(message.getKey(), message.getValue(),
+							DeltaBTree.SUM);
+				if (target.isEmpty())
+					buffers.remove(Integer.valueOf(child));
+				else
+					pushIfFull(child);
+			} else {
+				try {
+					apply(batch);
+				} finally {
+					restore(batch);
+				}
+			}
+		}
+		if (buffer.isEmpty())
+			buffers.remove(page);
+	}
+
+	/*
+	 * apply messages that reached the leaves
+	 */
+	private void apply(Map<DeltaBTree.DeltaKey, Integer> batch)
+			throws Exception {
+		if (batch.isEmpty())
+			return;
+		leafBatches++;
+		leafMessages += batch.size();
+		DeltaBTree.apply(file, batch);
+	}
+
+	/*
+	 * Put the messages an error left unapplied back in, at the root, which
+	 * is on every key's path; the leaves they were headed for may have split
+	 * meanwhile. DeltaBTree.apply takes the others out as it goes.
+	 */
+	private void restore(Map<DeltaBTree.DeltaKey, Integer> rest)
+			throws IOException {
+		if (rest.isEmpty())
+			return;
+		int root = file.rootPid();
+		TreeMap<DeltaBTree.DeltaKey, Integer> target = buffer(root);
+		for (Map.Entry<DeltaBTree.DeltaKey, Integer> message : rest.entrySet())
+			target.merge(message.getKey(), message.getValue(), DeltaBTree.SUM);
+		if (target.isEmpty())
+			buffers.remove(Integer.valueOf(root));
+	}
+
+	/*
+	 * add count to the message for pair in page pid's buffer
+	 */
+	private void add(int pid, DeltaBTree.DeltaKey pair, int count) {
+		TreeMap<DeltaBTree.DeltaKey, Integer> buffer = buffer(pid);
+		buffer.merge(pair, Integer.valueOf(count), DeltaBTree.SUM);
+		if (buffer.isEmpty())
+			buffers.remove(Integer.valueOf(pid));
+	}
+
+	private TreeMap<DeltaBTree.DeltaKey, Integer> buffer(int pid) {
+		Integer page = Integer.valueOf(pid);
+		TreeMap<DeltaBTree.DeltaKey, Integer> buffer = buffers.get(page);
+		if (buffer == null) {
+			buffer = new TreeMap<DeltaBTree.DeltaKey, Integer>();
+			buffers.put(page, buffer);
+		}
+		return buffer;
+	}
+
+	/*
+	 * the child slot, 0 for the leftmost child, most of the buffered
+	 * messages go to; as in findRunStart, keys equal to a separator go left
+	 */
+	private static int heaviestChild(DecodedPageCache.View view,
+			TreeMap<DeltaBTree.DeltaKey, Integer> buffer)
+			throws KeyNotMatchException {
+		int best = 0, most = 0;
+		int slot = 0, count = 0;
+		for (DeltaBTree.DeltaKey pair : buffer.keySet()) {
+			while (slot < view.keys.length
+					&& BT.keyCompare(pair.key, view.keys[slot]) > 0) {
+				if (count > most) {
+					best = slot;
+					most = count;
+				}
+				slot++;
+				count = 0;
+			}
+			count++;
+		}
+		return count > most ? slot : best;
+	}
+}
@@ -0,0 +1,191 @@
+package btree;
+
+import java.io.UnsupportedEncodingException;
+
+import global.*;
+
+/**
+ * CompositeKey is a multi-column key for an index created with
+ * KeyType.attrComposite. Columns are appended in order and kept in an
+ * order-preserving byte encoding, so two keys compare as unsigned byte strings
+ * without decoding any column:
+ * <ul>
+ * <li>integers: 4 bytes big endian with the sign bit flipped</li>
+ * <li>strings: UTF-8 with 0x00 escaped as 0x00 0xFF, terminated by 0x00 0x01</li>
+ * </ul>
+ * Every column encoding is self-delimiting, so a key with fewer columns is a
+ * prefix of, and sorts before, all keys that extend it. Passed as the hi_key of
+ * BTreeFile.new_scan, such a prefix includes all of its extensions, which
+ * gives prefix scans on the leading columns.
+ */
+public class CompositeKey extends KeyClass {
+
+	private byte[] key;
+	private int length;
+
+	public String toString() {
+		StringBuffer buf = new StringBuffer();
+		for (int i = 0; i < length; i++) {
+			int b = key[i] & 0xff;
+			buf.append(Character.forDigit(b >> 4, 16));
+			buf.append(Character.forDigit(b & 0xf, 16));
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * Class constructor, an empty key to append columns to
+	 */
+	public CompositeKey() {
+		key = new byte[16];
+		length = 0;
+	}
+
+	/**
+	 * Class constructor
+	 *
+	 * @param encoded
+	 *            a key encoding as returned by getKey
+	 */
+	public CompositeKey(byte[] encoded) {
+		key = encoded.clone();
+		length = key.length;
+	}
+
+	/**
+	 * append an integer column
+	 *
+	 * @param value
+	 *            the column value
+	 * @return this key
+	 */
+	public CompositeKey appendInt(int value) {
+		ensure(4);
+		value ^= 0x80000000;
+		key[length++] = (byte) (value >>> 24);
+		key[length++] = (byte) (value >>> 16);
+		key[length++] = (byte) (value >>> 8);
+		key[length++] = (byte) value;
+		return this;
+	}
+
+	/**
+	 * append a string column
+	 *
+	 * @param value
+	 *            the column value
+	 * @return this key
+	 */
+	public CompositeKey appendString(String value) {
+		byte[] utf = utf8(value);
+		ensure(utf.length * 2 + 2);
+		for (int i = 0; i < utf.length; i++) {
+			key[length++] = utf[i];
+			if (utf[i] == 0)
+				key[length++] = (byte) 0xff;
+		}
+		key[length++] = 0;
+		key[length++] = 1;
+		return this;
+	}
+
+	/**
+	 * decode the columns of this key
+	 *
+	 * @param types
+	 *            the column types, AttrType.attrInteger or AttrType.attrString;
+	 *            may cover only the leading columns
+	 * @return an Integer or String per column
+	 * @exception KeyNotMatchException
+	 *                the encoding does not match the types
+	 */
+	public Object[] decode(AttrType[] types) throws KeyNotMatchException {
+		Object[] columns = new Object[types.length];
+		int pos = 0;
+		for (int c = 0; c < types.length; c++) {
+			switch (types[c].attrType) {
+			case AttrType.attrInteger:
+				if (pos + 4 > length)
+					throw new KeyNotMatchException(null, "key too short");
+				int value = ((key[pos] & 0xff) << 24)
+						| ((key[pos + 1] & 0xff) << 16)
+						| ((key[pos + 2] & 0xff) << 8) | (key[pos + 3] & 0xff);
+				columns[c] = Integer.valueOf(value ^ 0x80000000);
+				pos += 4;
+				break;
+			case AttrType.attrString:
+				byte[] utf = new byte[length - pos];
+				int n = 0;
+				while (true) {
+					if (pos + 1 >= length)
+						throw new KeyNotMatchException(null, "unterminated string");
+					if (key[pos] == 0 && key[pos + 1] == 1) {
+						pos += 2;
+						break;
+					}
+					utf[n++] = key[pos];
+					pos += key[pos] == 0 ? 2 : 1;
+				}
+				try {
+					columns[c] = new String(utf, 0, n, "UTF-8");
+				} catch (UnsupportedEncodingException e) {
+					throw new KeyNotMatchException(e, "");
+				}
+				break;
+			default:
+				throw new KeyNotMatchException(null, "unsupported column type");
+			}
+		}
+		return columns;
+	}
+
+	/**
+	 * @return a copy of the order-preserving encoding of this key
+	 */
+	public byte[] getKey() {
+		byte[] copy = new byte[length];
+		System.arraycopy(key, 0, copy, 0, length);
+		return copy;
+	}
+
+	/**
+	 * unsigned byte comparison of the encodings
+	 *
+	 * @return negative, zero or positive as this key sorts before, equal to or
+	 *         after other
+	 */
+	public int compareTo(CompositeKey other) {
+		return NormalizedKey.compare(key, length, other.key, other.length);
+	}
+
+	public boolean equals(Object o) {
+		return o instanceof CompositeKey && compareTo((CompositeKey) o) == 0;
+	}
+
+	public int hashCode() {
+		int h = 1;
+		for (int i = 0; i < length; i++)
+			h = 31 * h + key[i];
+		return h;
+	}
+
+	StringKey toStringKey(boolean upperBound) {
+		return NormalizedKey.toStringKey(key, length, upperBound);
+	}
+
+	private void ensure(int extra) {
+		if (length + extra > key.length) {
+			byte[] grown = new byte[Math.max(key.length * 2, length + extra)];
+			System.arraycopy(key, 0, grown, 0, length);
+			key = grown;
+		}
+	}
+
+	private static byte[] utf8(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+}
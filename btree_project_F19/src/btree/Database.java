@@ -0,0 +1,181 @@
+package btree;
+
+import java.io.IOException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * Database is one Minibase database file with a buffer pool of its own.
+ * Several can be open in one process, each sized to its working set, and an
+ * index is opened in one by passing it to the BTreeFile constructor.
+ * <p>
+ * The library under BTreeFile (the page classes, BufMgr and DB) finds the
+ * buffer pool and the file only through SystemDefs.JavabaseBM and
+ * SystemDefs.JavabaseDB. So BTreeFile and its scans enter the Database of
+ * their index for each operation: they take a lock shared by all databases
+ * and swap the Database's pool and file into SystemDefs, and put the
+ * previous ones back when they leave. Indexes in different databases can
+ * be used from different threads, their operations interleaving one at a
+ * time; BufMgr is not thread safe anyway. An index opened without a Database
+ * uses whatever SystemDefs holds, under the same lock.
+ */
+public class Database implements GlobalConst {
+
+	private static final ReentrantLock lock = new ReentrantLock();
+	private static Database bound; // null: SystemDefs as its owner set it
+
+	/* what enter() swapped out, for exit() to put back */
+	static final class Binding {
+		final BufMgr bufmgr;
+		final DB db;
+		final Database database;
+
+		Binding(BufMgr bufmgr, DB db, Database database) {
+			this.bufmgr = bufmgr;
+			this.db = db;
+			this.database = database;
+		}
+	}
+
+	private static final Binding UNCHANGED = new Binding(null, null, null);
+
+	private final String name;
+	private final BufMgr bufmgr;
+	private final DB db;
+	private boolean closed;
+
+	/**
+	 * Create a database file, or open it if numPages is 0.
+	 *
+	 * @param path
+	 *            the database file
+	 * @param numPages
+	 *            pages of the new file; 0 to open an existing one
+	 * @param bufPoolSize
+	 *            frames of its buffer pool
+	 * @param replacer
+	 *            the replacement policy: Clock, LRU or MRU
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InvalidPageNumberException
+	 *                error from the lower layer
+	 * @exception FileIOException
+	 *                error from the lower layer
+	 * @exception DiskMgrException
+	 *                error from the lower layer
+	 */
+	public Database(String path, int numPages, int bufPoolSize,
+			String replacer) throws IOException, InvalidPageNumberException,
+			FileIOException, DiskMgrException {
+		this(path, numPages, new BufMgr(bufPoolSize, replacer), new DB());
+	}
+
+	/**
+	 * Create or open a database file with the given buffer manager and DB,
+	 * a MeteredBufMgr and an OffHeapDB for instance. Both must be new.
+	 *
+	 * @param path
+	 *            the database file
+	 * @param numPages
+	 *            pages of the new file; 0 to open an existing one
+	 * @param bufmgr
+	 *            its buffer manager
+	 * @param db
+	 *            its DB, not opened yet
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InvalidPageNumberException
+	 *                error from the lower layer
+	 * @exception FileIOException
+	 *                error from the lower layer
+	 * @exception DiskMgrException
+	 *                error from the lower layer
+	 */
+	public Database(String path, int numPages, BufMgr bufmgr, DB db)
+			throws IOException, InvalidPageNumberException, FileIOException,
+			DiskMgrException {
+		this.name = path;
+		this.bufmgr = bufmgr;
+		this.db = db;
+		Binding saved = enter(this);
+		try {
+			// DB reads and writes its space map through SystemDefs.JavabaseBM
+			if (numPages == 0)
+				db.openDB(path);
+			else
+				db.openDB(path, numPages);
+		} finally {
+			exit(saved);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public BufMgr getBufMgr() {
+		return bufmgr;
+	}
+
+	public DB getDB() {
+		return db;
+	}
+
+	/**
+	 * Write out the dirty pages and close the file. The indexes in the
+	 * database must be closed first.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception BufMgrException
+	 *                a page is still pinned, or another buffer manager error
+	 */
+	public void close() throws IOException, BufMgrException {
+		Binding saved = enter(this);
+		try {
+			bufmgr.flushAllPages();
+			db.closeDB();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new BufMgrException(e, "");
+		} finally {
+			closed = true;
+			exit(saved);
+		}
+	}
+
+	/*
+	 * Take the lock and make database the one SystemDefs points to; null
+	 * leaves SystemDefs as it is. Reentrant; every enter needs an exit with
+	 * what it returned.
+	 */
+	static Binding enter(Database database) {
+		lock.lock();
+		if (database == null || database == bound)
+			return UNCHANGED;
+		if (database.closed) {
+			lock.unlock();
+			throw new IllegalStateException("database " + database.name
+					+ " is closed");
+		}
+		Binding saved = new Binding(SystemDefs.JavabaseBM,
+				SystemDefs.JavabaseDB, bound);
+		SystemDefs.JavabaseBM = database.bufmgr;
+		SystemDefs.JavabaseDB = database.db;
+		bound = database;
+		return saved;
+	}
+
+	static void exit(Binding saved) {
+		if (saved != UNCHANGED) {
+			SystemDefs.JavabaseBM = saved.bufmgr;
+			SystemDefs.JavabaseDB = saved.db;
+			bound = saved.database;
+		}
+		lock.unlock();
+	}
+}
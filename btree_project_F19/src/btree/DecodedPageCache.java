@@ -0,0 +1,497 @@
+package btree;
+
+import java.io.IOException;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * DecodedPageCache keeps the decoded entries of recently visited B+ tree
+ * pages, so that a descent through hot index pages and leaves compares keys
+ * instead of decoding every slot again through BT.getEntryFromBytes. A view
+ * holds a page's keys and, for each, the child page (index pages) or the
+ * slot number (leaves), plus the page's type and links.
+ * <p>
+ * Pages carry no LSN, so a view is valid until its page changes: BTreeFile
+ * drops it whenever it unpins the page dirty or frees it, and the scans
+ * new_scan hands out drop it on delete_current. Views are evicted least
+ * recently used first once their estimated size exceeds the memory budget.
+ * Views are kept per DB, the SystemDefs.JavabaseDB in place when they were
+ * made, so the indexes of several Databases share the cache; the views of a
+ * DB that is no longer used age out. Hits and misses are counted in
+ * BTreeMetrics. The changes are also counted per page, views or not, as a
+ * version that AdaptiveHashIndex checks its hints against.
+ * <p>
+ * The Minibase page header has no room for fence keys, so they are kept on
+ * the views instead: a descent gives each page it reaches the separators
+ * around it in its parent, and as a view goes whenever its page changes,
+ * its fences can not outlive the page they were true for. The high fence
+ * of a leaf bounds the first key of the next one, so a scan or delete can
+ * tell its range has ended without pinning it. That holds only while the
+ * leaf's view is cached: a view made again, after its page changed or it
+ * aged out, has no fences until a descent passes its parent, and until
+ * then scans and deletes pin the next leaf as they would without fences. A
+ * page whose keys are outside them is counted in BTreeMetrics as a fence
+ * violation.
+ * <p>
+ * A view also lays its keys out again for searching, apart from the child
+ * pages, so that a descent touches few cache lines a level. The keys of an
+ * integer page are kept as an int array in blocks of 16, one cache line
+ * each, with the first key of every block in a small array of its own: a
+ * search binary searches the block heads, then counts the keys below the
+ * key in one block without branching. When the keys are close to evenly
+ * spread, a search instead interpolates the key's slot between the first
+ * and last key, and binary searches only the few slots the page's keys were
+ * found to stray from that line, so a dense id space takes about two probes
+ * a page. A string page keeps the start all its keys share, and the next
+ * four chars of each packed into a long array; a search compares the key
+ * with the shared start once, binary searches the longs, and compares whole
+ * keys only among those whose four chars tie with the key's.
+ */
+public final class DecodedPageCache implements GlobalConst {
+
+	/** the default memory budget, 4 MB */
+	public static final long DEFAULT_BUDGET = 4L << 20;
+
+	/* rough heap cost of a view and of each of its entries */
+	private static final int VIEW_OVERHEAD = 96;
+	private static final int ENTRY_OVERHEAD = 64;
+
+	/*
+	 * interpolation pays when the slots to search around the interpolated
+	 * one are at most this fraction of the page
+	 */
+	private static final int UNIFORM_FRACTION = 4;
+	/* ints in a key block: one 64-byte cache line */
+	private static final int BLOCK = 16;
+	/* page change counts kept, shared by hash; a power of two */
+	private static final int VERSION_STRIPES = 8192;
+
+	private static volatile boolean interpolation = true;
+	private static long budget = DEFAULT_BUDGET;
+	private static long bytes;
+	private static final WeakHashMap<DB, Integer> dbIds = new WeakHashMap<DB, Integer>();
+	private static int nextId;
+	private static final LinkedHashMap<Long, View> views = new LinkedHashMap<Long, View>(
+			64, 0.75f, true);
+	private static final long[] versions = new long[VERSION_STRIPES];
+
+	private DecodedPageCache() {
+	}
+
+	/**
+	 * @param limit
+	 *            bytes the cached views may take, estimated; 0 turns the
+	 *            cache off
+	 */
+	public static synchronized void setMemoryBudget(long limit) {
+		budget = Math.max(0, limit);
+		evict();
+	}
+
+	public static synchronized long getMemoryBudget() {
+		return budget;
+	}
+
+	/**
+	 * @param on
+	 *            interpolate in integer pages whose keys are evenly spread;
+	 *            false searches every page by binary search
+	 */
+	public static void setInterpolation(boolean on) {
+		interpolation = on;
+	}
+
+	public static boolean getInterpolation() {
+		return interpolation;
+	}
+
+	/** @return the estimated bytes the cached views take */
+	public static synchronized long getMemoryUsed() {
+		return bytes;
+	}
+
+	/** @return the number of pages with a cached view */
+	public static synchronized int size() {
+		return views.size();
+	}
+
+	/** drop all views */
+	public static synchronized void clear() {
+		views.clear();
+		bytes = 0;
+	}
+
+	/*
+	 * the view of a pinned page, decoded now if it is not cached
+	 */
+	static synchronized View get(PageId pageno, Page page, int keyType)
+			throws IOException, IteratorException, ConstructPageException {
+		Long key = key(pageno);
+		View view = views.get(key);
+		if (view != null) {
+			BTreeMetrics.pageCacheHits.increment();
+			return view;
+		}
+		BTreeMetrics.pageCacheMisses.increment();
+		view = new View(new BTSortedPage(page, keyType), keyType);
+		if (view.bytes <= budget) {
+			views.put(key, view);
+			bytes += view.bytes;
+			evict();
+		}
+		return view;
+	}
+
+	/*
+	 * a number that changes whenever the page changes or is freed, whether
+	 * or not it has a view. Pages share the numbers by a hash, so it may
+	 * change when the page did not, but never stays when the page changed.
+	 */
+	static synchronized long version(PageId pageno) {
+		return versions[stripe(key(pageno))];
+	}
+
+	/*
+	 * the page changed or was freed
+	 */
+	static synchronized void invalidate(PageId pageno) {
+		Long key = key(pageno);
+		versions[stripe(key)]++;
+		View view = views.remove(key);
+		if (view != null)
+			bytes -= view.bytes;
+	}
+
+	/*
+	 * the page in the database SystemDefs points to
+	 */
+	private static Long key(PageId pageno) {
+		Integer id = dbIds.get(SystemDefs.JavabaseDB);
+		if (id == null) {
+			id = Integer.valueOf(++nextId);
+			dbIds.put(SystemDefs.JavabaseDB, id);
+		}
+		return Long.valueOf(((long) id.intValue() << 32)
+				| (pageno.pid & 0xffffffffL));
+	}
+
+	private static int stripe(Long key) {
+		long h = key.longValue() * 0x9e3779b97f4a7c15L;
+		return (int) (h >>> 32) & (VERSION_STRIPES - 1);
+	}
+
+	private static void evict() {
+		Iterator<View> it = views.values().iterator();
+		while (bytes > budget && it.hasNext()) {
+			bytes -= it.next().bytes;
+			it.remove();
+		}
+	}
+
+	/*
+	 * The decoded entries of one page, in slot order, with the keys laid out
+	 * again for searching
+	 */
+	static final class View {
+		final short type;
+		final int prevPage; // leftmost child of an index page
+		final int nextPage;
+		final KeyClass[] keys;
+		final int[] values; // child page, or slot number on a leaf
+		final int bytes;
+		final int[] ints; // the keys of an integer page, or null
+		final int[] heads; // ints[0], ints[BLOCK], ints[2 * BLOCK], ...
+		/*
+		 * the most any key's slot differs from the one interpolated from its
+		 * value; -1 if the keys are too unevenly spread to interpolate
+		 */
+		final int stray;
+		final String common; // the start all keys of a string page share
+		final long[] prefixes; // the next chars of each, packed; or null
+		/*
+		 * the separators around the page in its parent, or further up, as a
+		 * descent passed them: all its keys are within them, and the next
+		 * leaf starts at highFence or later. null is no bound. Not known
+		 * until fenced is set.
+		 */
+		KeyClass lowFence;
+		KeyClass highFence;
+		boolean fenced;
+
+		View(BTSortedPage page, int keyType) throws IOException,
+				IteratorException, ConstructPageException {
+			type = page.getType();
+			prevPage = page.getPrevPage().pid;
+			nextPage = page.getNextPage().pid;
+			int n = page.getSlotCnt();
+			KeyClass[] k = new KeyClass[n];
+			int[] v = new int[n];
+			int size = VIEW_OVERHEAD;
+			int i = 0;
+			RID rid = new RID();
+			if (type == NodeType.INDEX) {
+				BTIndexPage index = new BTIndexPage(page, keyType);
+				for (KeyDataEntry entry = index.getFirst(rid); entry != null; entry = index
+						.getNext(rid)) {
+					k[i] = entry.key;
+					v[i++] = ((IndexData) entry.data).getData().pid;
+					size += ENTRY_OVERHEAD + page.getSlotLength(rid.slotNo);
+				}
+			} else {
+				BTLeafPage leaf = new BTLeafPage(page, keyType);
+				for (KeyDataEntry entry = leaf.getFirst(rid); entry != null; entry = leaf
+						.getNext(rid)) {
+					k[i] = entry.key;
+					v[i++] = rid.slotNo;
+					size += ENTRY_OVERHEAD + page.getSlotLength(rid.slotNo);
+				}
+			}
+			keys = i == n ? k : Arrays.copyOf(k, i);
+			values = i == n ? v : Arrays.copyOf(v, i);
+			if (keyType == AttrType.attrInteger) {
+				ints = new int[i];
+				for (int j = 0; j < i; j++)
+					ints[j] = ((IntegerKey) keys[j]).getKey().intValue();
+				heads = new int[(i + BLOCK - 1) / BLOCK];
+				for (int b = 0; b < heads.length; b++)
+					heads[b] = ints[b * BLOCK];
+				size += 4 * (i + heads.length);
+				stray = stray(ints);
+				common = null;
+				prefixes = null;
+			} else {
+				ints = null;
+				heads = null;
+				stray = -1;
+				common = i == 0 ? "" : commonStart(
+						((StringKey) keys[0]).getKey(),
+						((StringKey) keys[i - 1]).getKey());
+				prefixes = new long[i];
+				for (int j = 0; j < i; j++)
+					prefixes[j] = prefix(((StringKey) keys[j]).getKey(),
+							common.length());
+				size += 8 * i + 2 * common.length();
+			}
+			bytes = size;
+		}
+
+		/*
+		 * a descent reached the page between the separators low and high;
+		 * false, and counted, if its keys are not all within them
+		 */
+		boolean fence(KeyClass low, KeyClass high) throws KeyNotMatchException {
+			if (fenced)
+				return true;
+			int n = keys.length;
+			if (n > 0
+					&& (low != null && BT.keyCompare(keys[0], low) < 0 || high != null
+							&& BT.keyCompare(keys[n - 1], high) > 0)) {
+				BTreeMetrics.fenceViolations.increment();
+				return false;
+			}
+			lowFence = low;
+			highFence = high;
+			fenced = true;
+			return true;
+		}
+
+		/*
+		 * the least key the next leaf on the chain can start with, by the
+		 * fences of this leaf; null if they do not tell. The leaves of a
+		 * run of equal keys may be chained in another order than their
+		 * separators, so the high fence bounds the next leaf only if this
+		 * one has a key above its low fence.
+		 */
+		KeyClass nextLeafBound() throws KeyNotMatchException {
+			int n = keys.length;
+			if (!fenced || highFence == null || nextPage == INVALID_PAGE
+					|| n == 0 || lowFence != null
+					&& BT.keyCompare(keys[n - 1], lowFence) <= 0)
+				return null;
+			return highFence;
+		}
+
+		/*
+		 * the child of an index page left of key slot; slot 0 is prevPage
+		 */
+		int child(int slot) {
+			return slot == 0 ? prevPage : values[slot - 1];
+		}
+
+		/*
+		 * index of the first key >= key; keys.length if there is none
+		 */
+		int search(KeyClass key) throws KeyNotMatchException {
+			return search(key, false);
+		}
+
+		/*
+		 * index of the first key > key if above, else of the first key >=
+		 * key; keys.length if there is none
+		 */
+		int search(KeyClass key, boolean above) throws KeyNotMatchException {
+			if (ints != null && key instanceof IntegerKey) {
+				int k = ((IntegerKey) key).getKey().intValue();
+				if (!above)
+					return search(k);
+				return k == Integer.MAX_VALUE ? ints.length : search(k + 1);
+			}
+			if (prefixes != null && key instanceof StringKey)
+				return search(((StringKey) key).getKey(), above);
+			throw new KeyNotMatchException(null, "key type does not match the page");
+		}
+
+		private int search(int key) {
+			int n = ints.length, probes;
+			int slot;
+			if (n == 0) {
+				probes = 0;
+				slot = 0;
+			} else if (stray >= 0 && interpolation) {
+				// the slot must be within stray of the interpolated one
+				probes = 2;
+				int low = 0, high = n;
+				if (key <= ints[0])
+					high = 0;
+				else if (key > ints[n - 1])
+					low = n;
+				else {
+					int guess = interpolate(key);
+					low = Math.max(0, guess - stray);
+					high = Math.min(n, guess + stray + 1);
+				}
+				while (low < high) {
+					int mid = (low + high) >>> 1;
+					probes++;
+					if (ints[mid] < key)
+						low = mid + 1;
+					else
+						high = mid;
+				}
+				slot = low;
+			} else {
+				// the last block starting below key, then the keys below it
+				// in that block, counted without branches over one cache line
+				int low = 0, high = heads.length;
+				probes = 1;
+				while (low < high) {
+					int mid = (low + high) >>> 1;
+					probes++;
+					if (heads[mid] < key)
+						low = mid + 1;
+					else
+						high = mid;
+				}
+				if (low == 0) {
+					slot = 0;
+				} else {
+					int from = (low - 1) * BLOCK;
+					int to = Math.min(n, from + BLOCK);
+					int below = 0;
+					for (int j = from; j < to; j++)
+						below += ints[j] < key ? 1 : 0;
+					slot = from + below;
+				}
+			}
+			BTreeMetrics.pageSearches.increment();
+			BTreeMetrics.pageSearchProbes.add(probes);
+			return slot;
+		}
+
+		private int search(String key, boolean above) {
+			int n = prefixes.length, probes = 0;
+			int low = 0, high = n;
+			int start = common.length();
+			int differ = 0;
+			while (differ < start && differ < key.length()
+					&& key.charAt(differ) == common.charAt(differ))
+				differ++;
+			if (differ < start) {
+				// key is before or after every key of the page
+				if (differ < key.length()
+						&& key.charAt(differ) > common.charAt(differ))
+					low = n;
+				high = low;
+			} else {
+				// the keys whose next chars tie with key's, by the packed
+				// prefixes; only those are compared whole
+				long p = prefix(key, start);
+				while (low < high) {
+					int mid = (low + high) >>> 1;
+					probes++;
+					if (prefixes[mid] < p)
+						low = mid + 1;
+					else
+						high = mid;
+				}
+				high = n;
+				int end = low;
+				while (end < high) {
+					int mid = (end + high) >>> 1;
+					probes++;
+					if (prefixes[mid] <= p)
+						end = mid + 1;
+					else
+						high = mid;
+				}
+				high = end;
+				while (low < high) {
+					int mid = (low + high) >>> 1;
+					probes++;
+					int cmp = ((StringKey) keys[mid]).getKey().compareTo(key);
+					if (cmp < 0 || above && cmp == 0)
+						low = mid + 1;
+					else
+						high = mid;
+				}
+			}
+			BTreeMetrics.pageSearches.increment();
+			BTreeMetrics.pageSearchProbes.add(probes);
+			return low;
+		}
+
+		/*
+		 * the slot key would have if the keys were evenly spread between the
+		 * first and the last
+		 */
+		private int interpolate(int key) {
+			long first = ints[0], last = ints[ints.length - 1];
+			if (last == first)
+				return 0;
+			return (int) ((key - first) * (ints.length - 1) / (last - first));
+		}
+
+		/*
+		 * how far the keys stray from their interpolated slots; -1 if too far
+		 * for interpolation to save probes
+		 */
+		private int stray(int[] ints) {
+			int most = 0;
+			for (int j = 0; j < ints.length; j++)
+				most = Math.max(most, Math.abs(j - interpolate(ints[j])));
+			return (2 * most + 1) * UNIFORM_FRACTION <= ints.length ? most
+					: -1;
+		}
+
+		private static String commonStart(String first, String last) {
+			int n = 0;
+			while (n < first.length() && n < last.length()
+					&& first.charAt(n) == last.charAt(n))
+				n++;
+			return first.substring(0, n);
+		}
+
+		/*
+		 * the four chars of s from start on, 0 past its end, packed so that
+		 * comparing the longs compares the chars
+		 */
+		private static long prefix(String s, int start) {
+			long p = 0;
+			for (int j = start; j < start + 4; j++)
+				p = p << 16 | (j < s.length() ? s.charAt(j) : 0);
+			return p ^ Long.MIN_VALUE;
+		}
+	}
+}
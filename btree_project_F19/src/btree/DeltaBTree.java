@@ -0,0 +1,552 @@
+package btree;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+
+import global.*;
+
+/**
+ * DeltaBTree puts a write buffer in front of a BTreeFile. Inserts and
+ * deletes land in an in-memory delta, a concurrent skip list of pending
+ * changes in key order, where they cost no page pins; once it holds the
+ * given number of changes it is flushed into the tree in one sorted pass
+ * (see BTreeFile.insertSorted), which takes a descent per leaf touched rather
+ * than per key. new_scan reads through both layers (see DeltaFileScan).
+ * <p>
+ * The delta maps each [key, rid] pair to its pending count: positive for
+ * inserts not yet in the tree, negative for deletes of entries that are.
+ * Inserts from several threads go into the skip list concurrently; deletes
+ * check the tree and are serialized. A flush waits for the writes in
+ * flight and is put off while scans are open, so the tree does not change
+ * under them; only inserts set one off. Changes still in the delta are
+ * lost if the process stops before flush() or close().
+ */
+public class DeltaBTree extends IndexFile implements GlobalConst {
+
+	/** the default number of pending changes that triggers a flush */
+	public static final int DEFAULT_CAPACITY = 65536;
+
+	/* sums pending counts; null removes a pair that cancels out */
+	static final BiFunction<Integer, Integer, Integer> SUM = new BiFunction<Integer, Integer, Integer>() {
+		public Integer apply(Integer a, Integer b) {
+			int sum = a.intValue() + b.intValue();
+			return sum == 0 ? null : Integer.valueOf(sum);
+		}
+	};
+
+	private final BTreeFile file;
+	private final int capacity;
+	private final ConcurrentSkipListMap<DeltaKey, Integer> delta = new ConcurrentSkipListMap<DeltaKey, Integer>();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicInteger openScans = new AtomicInteger();
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * @param file
+	 *            the index to buffer writes for; it stays open, and the
+	 *            caller closes it after this
+	 */
+	public DeltaBTree(BTreeFile file) {
+		this(file, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param file
+	 *            the index to buffer writes for; it stays open, and the
+	 *            caller closes it after this
+	 * @param capacity
+	 *            the number of pending changes that triggers a flush
+	 */
+	public DeltaBTree(BTreeFile file, int capacity) {
+		this.file = file;
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/** @return the index under the delta */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/** @return the number of [key, rid] pairs with changes pending */
+	public int getPendingCount() {
+		return delta.size();
+	}
+
+	/**
+	 * record an insert of the given key and rid; it reaches the index with
+	 * the next flush. The key is checked as insert would check it first, so
+	 * the flush does not fail on it; on an index with IndexFlags.UNIQUE that
+	 * takes a lookup in the index.
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when insert in index, or key already in a unique
+	 *                index
+	 */
+	public void insert(KeyClass key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		file.checkKey(key);
+		DeltaKey pair = new DeltaKey(BTreeFile.storedKey(key, false), rid);
+		lock.readLock().lock();
+		try {
+			delta.merge(pair, Integer.valueOf(1), SUM);
+			// two threads inserting the key at once may both be refused
+			if ((file.getFlags() & IndexFlags.UNIQUE) != 0
+					&& entries(key) > 1) {
+				delta.merge(pair, Integer.valueOf(-1), SUM);
+				throw new InsertException(null, "duplicate key " + key);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (pending.incrementAndGet() >= capacity)
+			flushIfIdle();
+	}
+
+	/**
+	 * delete leaf entry given its <key, rid> pair: cancel a pending insert
+	 * of it, or record the delete of an entry in the index
+	 *
+	 * @param key
+	 *            the key in pair <key, rid>. Input Parameter.
+	 * @param rid
+	 *            the rid in pair <key, rid>. Input Parameter.
+	 * @return true if deleted. false if no such record.
+	 * @exception DeleteFashionException
+	 *                neither full delete nor naive delete
+	 * @exception LeafRedistributeException
+	 *                redistribution error in leaf pages
+	 * @exception RedistributeException
+	 *                redistribution error in index pages
+	 * @exception InsertRecException
+	 *                error when insert in index page
+	 * @exception KeyNotMatchException
+	 *                key is neither integer key nor string key
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception IndexInsertRecException
+	 *                error when insert in index page
+	 * @exception FreePageException
+	 *                error in BT page constructor
+	 * @exception RecordNotFoundException
+	 *                error delete a record in a BT page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception IndexFullDeleteException
+	 *                fill delete error
+	 * @exception LeafDeleteException
+	 *                delete error in leaf page
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error in search in index pages
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public boolean Delete(KeyClass key, RID rid) throws DeleteFashionException,
+			LeafRedistributeException, RedistributeException,
+			InsertRecException, KeyNotMatchException, UnpinPageException,
+			IndexInsertRecException, FreePageException,
+			RecordNotFoundException, PinPageException,
+			IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IndexSearchException,
+			IOException {
+		DeltaKey pair = new DeltaKey(BTreeFile.storedKey(key, false), rid);
+		lock.writeLock().lock();
+		try {
+			Integer count = delta.get(pair);
+			int net = count == null ? 0 : count.intValue();
+			if (net <= 0 && inFile(file, pair) + net <= 0)
+				return false;
+			delta.merge(pair, Integer.valueOf(-1), SUM);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		pending.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * create a scan of the entries with keys in [lo_key, hi_key] as the
+	 * index and the delta together have them; null leaves that end of the
+	 * range open. The changes pending in the range are copied when the scan
+	 * starts, and flushes wait until it is destroyed.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @return the scan
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public DeltaFileScan new_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		lock.readLock().lock();
+		try {
+			TreeMap<DeltaKey, int[]> changes = new TreeMap<DeltaKey, int[]>();
+			collect(range(delta, lo_key, hi_key), changes);
+			BTFileScan scan = file.new_scan(lo_key, hi_key);
+			openScans.incrementAndGet();
+			return new DeltaFileScan(this, scan, changes, openScans);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Apply the pending changes to the index, inserts in one sorted batch;
+	 * put off while scans are open.
+	 *
+	 * @return false if it was put off
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when insert in index page
+	 * @exception DeleteFashionException
+	 *                neither full delete nor naive delete
+	 * @exception LeafRedistributeException
+	 *                redistribution error in leaf pages
+	 * @exception RedistributeException
+	 *                redistribution error in index pages
+	 * @exception InsertRecException
+	 *                error when insert in index page
+	 * @exception FreePageException
+	 *                error in BT page constructor
+	 * @exception RecordNotFoundException
+	 *                error delete a record in a BT page
+	 * @exception IndexFullDeleteException
+	 *                fill delete error
+	 */
+	public boolean flush() throws IOException, KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			DeleteFashionException, LeafRedistributeException,
+			RedistributeException, InsertRecException, FreePageException,
+			RecordNotFoundException, IndexFullDeleteException {
+		lock.writeLock().lock();
+		try {
+			if (openScans.get() > 0)
+				return false;
+			apply(file, delta);
+			pending.set(0);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Flush the pending changes. Scans must be destroyed first; the index
+	 * itself stays open.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InsertException
+	 *                a scan is open, or the flush failed
+	 */
+	public void close() throws IOException, InsertException {
+		try {
+			if (!flush())
+				throw new InsertException(null, "scans are open");
+		} catch (IOException e) {
+			throw e;
+		} catch (InsertException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new InsertException(e, "");
+		}
+	}
+
+	/*
+	 * flush unless another writer just did or scans are open; the errors
+	 * only a delete can cause are reported as InsertExceptions
+	 */
+	private void flushIfIdle() throws IOException, KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException {
+		if (openScans.get() > 0 || pending.get() < capacity)
+			return;
+		try {
+			flush();
+		} catch (DeleteFashionException e) {
+			throw new InsertException(e, "");
+		} catch (LeafRedistributeException e) {
+			throw new InsertException(e, "");
+		} catch (RedistributeException e) {
+			throw new InsertException(e, "");
+		} catch (InsertRecException e) {
+			throw new InsertException(e, "");
+		} catch (FreePageException e) {
+			throw new InsertException(e, "");
+		} catch (RecordNotFoundException e) {
+			throw new InsertException(e, "");
+		} catch (IndexFullDeleteException e) {
+			throw new InsertException(e, "");
+		}
+	}
+
+	/*
+	 * the entries with key in the index and the delta together
+	 */
+	private int entries(KeyClass key) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		int n = file.containsKey(key) ? 1 : 0; // the index is unique
+		for (Integer count : range(delta, key, key).values())
+			n += count.intValue();
+		return n;
+	}
+
+	/*
+	 * Apply pending changes to the index: the deletes one by one, then the
+	 * inserts in one sorted batch. Each change leaves the map once it is
+	 * applied, so after an error the map holds what is left to do.
+	 */
+	static void apply(BTreeFile file, Map<DeltaKey, Integer> changes)
+			throws IOException, KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, ConvertException, DeleteRecException,
+			IndexSearchException, IteratorException, LeafDeleteException,
+			InsertException, DeleteFashionException,
+			LeafRedistributeException, RedistributeException,
+			InsertRecException, FreePageException, RecordNotFoundException,
+			IndexFullDeleteException {
+		int inserts = 0;
+		Iterator<Map.Entry<DeltaKey, Integer>> it = changes.entrySet()
+				.iterator();
+		while (it.hasNext()) {
+			Map.Entry<DeltaKey, Integer> change = it.next();
+			int count = change.getValue().intValue();
+			if (count > 0) {
+				inserts += count;
+				continue;
+			}
+			DeltaKey pair = change.getKey();
+			for (; count < 0; count++) {
+				file.Delete(pair.key, pair.rid());
+				if (count < -1)
+					changes.put(pair, Integer.valueOf(count + 1));
+			}
+			it.remove();
+		}
+
+		DeltaKey[] pairs = new DeltaKey[inserts];
+		KeyClass[] keys = new KeyClass[inserts];
+		RID[] rids = new RID[inserts];
+		int n = 0;
+		for (Map.Entry<DeltaKey, Integer> change : changes.entrySet())
+			for (int count = change.getValue().intValue(); count > 0; count--) {
+				pairs[n] = change.getKey();
+				keys[n] = pairs[n].key;
+				rids[n] = pairs[n].rid();
+				n++;
+			}
+		if ((file.getFlags() & (IndexFlags.UNIQUE | IndexFlags.POSTING_LISTS)) == 0) {
+			file.insertSorted(keys, rids, n);
+			changes.clear();
+			return;
+		}
+		// insertSorted would insert these one by one too
+		for (int i = 0; i < n; i++) {
+			file.insert(keys[i], rids[i]);
+			changes.merge(pairs[i], Integer.valueOf(-1), SUM);
+		}
+	}
+
+	/*
+	 * the pending changes with keys in [lo_key, hi_key]; null leaves that
+	 * end of the range open
+	 */
+	static NavigableMap<DeltaKey, Integer> range(
+			NavigableMap<DeltaKey, Integer> changes, KeyClass lo_key,
+			KeyClass hi_key) {
+		if (lo_key != null)
+			changes = changes.tailMap(new DeltaKey(BTreeFile.storedKey(lo_key,
+					false), DeltaKey.LOWEST), true);
+		if (hi_key != null)
+			changes = changes.headMap(new DeltaKey(BTreeFile.storedKey(hi_key,
+					true), DeltaKey.HIGHEST), true);
+		return changes;
+	}
+
+	/*
+	 * add pending counts to a scan's copy of the changes
+	 */
+	static void collect(Map<DeltaKey, Integer> changes,
+			TreeMap<DeltaKey, int[]> into) {
+		for (Map.Entry<DeltaKey, Integer> change : changes.entrySet()) {
+			int[] count = into.get(change.getKey());
+			if (count == null)
+				into.put(change.getKey(), new int[] { change.getValue()
+						.intValue() });
+			else
+				count[0] += change.getValue().intValue();
+		}
+	}
+
+	/*
+	 * how often the pair is in the index
+	 */
+	static int inFile(BTreeFile file, DeltaKey pair) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		BTFileScan scan = file.new_scan(pair.key, pair.key);
+		int count = 0;
+		try {
+			for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan
+					.get_next())
+				if (pair.matches(((LeafData) entry.data).getData()))
+					count++;
+		} catch (ScanIteratorException e) {
+			throw new IteratorException(e, "");
+		} finally {
+			try {
+				scan.DestroyBTreeFileScan();
+			} catch (Exception e) {
+				throw new UnpinPageException(e, "");
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * A [key, rid] pair in the delta, ordered by key, then rid
+	 */
+	static final class DeltaKey implements Comparable<DeltaKey> {
+		static final int LOWEST = -1;
+		static final int HIGHEST = 1;
+
+		final KeyClass key; // as stored
+		final int pageNo;
+		final int slotNo;
+		private final int bound; // LOWEST or HIGHEST sorts around every rid
+
+		DeltaKey(KeyClass key, RID rid) {
+			this.key = key;
+			this.pageNo = rid.pageNo.pid;
+			this.slotNo = rid.slotNo;
+			this.bound = 0;
+		}
+
+		DeltaKey(KeyClass key, int bound) {
+			this.key = key;
+			this.pageNo = 0;
+			this.slotNo = 0;
+			this.bound = bound;
+		}
+
+		RID rid() {
+			return new RID(new PageId(pageNo), slotNo);
+		}
+
+		boolean matches(RID rid) {
+			return rid.pageNo.pid == pageNo && rid.slotNo == slotNo;
+		}
+
+		public int compareTo(DeltaKey other) {
+			int cmp;
+			try {
+				cmp = BT.keyCompare(key, other.key);
+			} catch (KeyNotMatchException e) {
+				// the keys of an index share one type
+				throw new IllegalStateException(e);
+			}
+			if (cmp != 0)
+				return cmp;
+			if (bound != other.bound)
+				return bound < other.bound ? -1 : 1;
+			if (pageNo != other.pageNo)
+				return pageNo < other.pageNo ? -1 : 1;
+			return slotNo < other.slotNo ? -1 : slotNo == other.slotNo ? 0 : 1;
+		}
+	}
+}
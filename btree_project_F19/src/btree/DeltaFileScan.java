@@ -0,0 +1,156 @@
+package btree;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * DeltaFileScan is the scan DeltaBTree.new_scan and BufferedBTree.new_scan
+ * hand out. It merges a BTFileScan of the index with the changes pending in
+ * the range, copied when the scan started: an entry of the index is skipped while a pending
+ * delete of its [key, rid] pair is left, and pending inserts come out after
+ * the index's entries with the same key.
+ */
+public class DeltaFileScan extends IndexFileScan {
+
+	private final IndexFile owner;
+	private final AtomicInteger openScans;
+	private final BTFileScan scan;
+	private final TreeMap<DeltaBTree.DeltaKey, int[]> changes;
+	private final Iterator<Map.Entry<DeltaBTree.DeltaKey, int[]>> inserts;
+	private DeltaBTree.DeltaKey insert; // the next pending insert
+	private int insertsLeft; // of its pair
+	private KeyDataEntry head; // the next entry of the index
+	private KeyDataEntry current;
+	private boolean closed;
+
+	/*
+	 * owner counts the scan in openScans, and writes through it hold off
+	 * until the scan is destroyed
+	 */
+	DeltaFileScan(IndexFile owner, BTFileScan scan,
+			TreeMap<DeltaBTree.DeltaKey, int[]> changes, AtomicInteger openScans) {
+		this.owner = owner;
+		this.openScans = openScans;
+		this.scan = scan;
+		this.changes = changes;
+		inserts = changes.entrySet().iterator();
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		if (closed)
+			return null;
+		while (true) {
+			if (head == null)
+				head = scan.get_next();
+			while (insertsLeft == 0 && inserts.hasNext()) {
+				Map.Entry<DeltaBTree.DeltaKey, int[]> change = inserts.next();
+				insert = change.getKey();
+				insertsLeft = Math.max(0, change.getValue()[0]);
+			}
+			if (insertsLeft == 0)
+				insert = null;
+
+			if (head != null
+					&& (insert == null || compare(head.key, insert.key) <= 0)) {
+				KeyDataEntry entry = head;
+				head = null;
+				RID rid = ((LeafData) entry.data).getData();
+				int[] count = changes.get(new DeltaBTree.DeltaKey(entry.key,
+						rid));
+				if (count != null && count[0] < 0) {
+					count[0]++; // deleted, not flushed yet
+					continue;
+				}
+				current = entry;
+				return entry;
+			}
+			if (insert != null) {
+				insertsLeft--;
+				current = new KeyDataEntry(insert.key, insert.rid());
+				return current;
+			}
+			current = null;
+			try {
+				DestroyBTreeFileScan();
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new ScanIteratorException(e, "");
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry, through
+	 * the index that handed out the scan.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (current == null)
+			throw new ScanDeleteException(null, "no current entry");
+		try {
+			owner.Delete(current.key, ((LeafData) current.data).getData());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException(e, "");
+		}
+	}
+
+	/**
+	 * @return the maximum key size of the index
+	 */
+	public int keysize() {
+		return scan.keysize();
+	}
+
+	/**
+	 * destructor. unpin the leaf the index scan holds, and let the index
+	 * that handed out the scan flush again. The scan destroys itself when it runs out of
+	 * entries.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			scan.DestroyBTreeFileScan();
+		} finally {
+			openScans.decrementAndGet();
+		}
+	}
+
+	private static int compare(KeyClass a, KeyClass b)
+			throws ScanIteratorException {
+		try {
+			return BT.keyCompare(a, b);
+		} catch (KeyNotMatchException e) {
+			throw new ScanIteratorException(e, "");
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package btree;
+
+/**
+ * FixedBytesKey is the key of an index created with KeyType.attrFixedBytes,
+ * for UUIDs, hashes and other binary values of one fixed width. The width is
+ * the keysize the index was created with. Keys order as unsigned byte
+ * strings, and are stored as normalized keys in that same order.
+ */
+public class FixedBytesKey extends KeyClass {
+
+	private byte[] key;
+
+	public String toString() {
+		StringBuffer buf = new StringBuffer();
+		for (int i = 0; i < key.length; i++) {
+			int b = key[i] & 0xff;
+			buf.append(Character.forDigit(b >> 4, 16));
+			buf.append(Character.forDigit(b & 0xf, 16));
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * Class constructor
+	 *
+	 * @param value
+	 *            the bytes of the key, copied
+	 */
+	public FixedBytesKey(byte[] value) {
+		key = value.clone();
+	}
+
+	/**
+	 * get a copy of the key bytes
+	 *
+	 * @return the reference of the copy
+	 */
+	public byte[] getKey() {
+		return key.clone();
+	}
+
+	/**
+	 * @return the width of the key in bytes
+	 */
+	public int length() {
+		return key.length;
+	}
+
+	/**
+	 * unsigned byte comparison
+	 *
+	 * @return negative, zero or positive as this key sorts before, equal to or
+	 *         after other
+	 */
+	public int compareTo(FixedBytesKey other) {
+		return NormalizedKey.compare(key, key.length, other.key,
+				other.key.length);
+	}
+
+	public boolean equals(Object o) {
+		return o instanceof FixedBytesKey
+				&& compareTo((FixedBytesKey) o) == 0;
+	}
+
+	public int hashCode() {
+		int h = 1;
+		for (int i = 0; i < key.length; i++)
+			h = 31 * h + key[i];
+		return h;
+	}
+
+	StringKey toStringKey(boolean upperBound) {
+		return NormalizedKey.toStringKey(key, key.length, upperBound);
+	}
+}
@@ -0,0 +1,12 @@
+package btree;
+
+/**
+ * Options a BTreeFile can be created with. They are or-ed together and kept
+ * in the header page.
+ */
+public class IndexFlags {
+	/** store the RIDs of a duplicated key once, in a posting list */
+	public static final int POSTING_LISTS = 1;
+	/** reject a second entry with the same key; overrides POSTING_LISTS */
+	public static final int UNIQUE = 2;
+}
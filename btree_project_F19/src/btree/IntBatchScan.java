@@ -0,0 +1,184 @@
+package btree;
+
+import java.io.IOException;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * IntBatchScan scans an index on integer keys into caller-provided arrays,
+ * many entries per call, instead of one KeyDataEntry per get_next. Entries
+ * are decoded straight from the bytes of the pinned leaf: the slot directory
+ * gives each record's offset, the key is the first four bytes and the RID the
+ * last eight (slot number, then page number), all big-endian. Apart from the
+ * page pins, a call allocates nothing.
+ * <p>
+ * Like a BTFileScan, the scan keeps its current leaf pinned until it ends or
+ * is closed, and each call enters the Database of the index. The RIDs of a
+ * posting list (IndexFlags.POSTING_LISTS) are read in one go when the scan
+ * reaches them.
+ */
+public class IntBatchScan implements GlobalConst, AutoCloseable {
+
+	private final Database database;
+	private final int hi;
+	private final boolean postings;
+	private final PageId pageno = new PageId(INVALID_PAGE);
+	private final Page page = new Page();
+	private byte[] data;
+	private int slot;
+	private int slotCount;
+	private RID[] pending;
+	private int pendingKey;
+	private int pendingPos;
+
+	/*
+	 * start at the leaf findRunStart pinned, positioned on startrid
+	 */
+	IntBatchScan(Database database, BTLeafPage leaf, RID startrid, int hi,
+			boolean postings) throws IOException {
+		this.database = database;
+		this.hi = hi;
+		this.postings = postings;
+		if (leaf != null) {
+			pageno.pid = leaf.getCurPage().pid;
+			page.setpage(leaf.getpage());
+			data = page.getpage();
+			slot = startrid.slotNo;
+			slotCount = leaf.getSlotCnt();
+		}
+	}
+
+	/**
+	 * Fill the arrays with the next entries, up to the length of the shortest.
+	 *
+	 * @param keys
+	 *            the keys. Output parameter.
+	 * @param pageNos
+	 *            the page numbers of the RIDs. Output parameter.
+	 * @param slotNos
+	 *            the slot numbers of the RIDs. Output parameter.
+	 * @return the number of entries filled in; 0 once the scan is done
+	 * @exception ScanIteratorException
+	 *                error reading a page
+	 */
+	public int next(int[] keys, int[] pageNos, int[] slotNos)
+			throws ScanIteratorException {
+		int max = Math.min(keys.length, Math.min(pageNos.length,
+				slotNos.length));
+		int n = 0;
+		Database.Binding saved = Database.enter(database);
+		try {
+			while (n < max) {
+				if (pending != null) {
+					n = drainPending(keys, pageNos, slotNos, n, max);
+					continue;
+				}
+				if (data == null)
+					break;
+				if (slot >= slotCount) {
+					nextLeaf();
+					continue;
+				}
+
+				byte[] d = data;
+				int s = slot;
+				int end = slotCount;
+				while (s < end && n < max) {
+					int dir = HFPage.DPFIXED + s * HFPage.SIZE_OF_SLOT;
+					int length = (short) (((d[dir] & 0xff) << 8) | (d[dir + 1] & 0xff));
+					int offset = (short) (((d[dir + 2] & 0xff) << 8) | (d[dir + 3] & 0xff));
+					s++;
+					if (length < 0)
+						continue; // empty slot
+					int key = getInt(d, offset);
+					if (key > hi) {
+						slot = s;
+						close();
+						return n;
+					}
+					int slotNo = getInt(d, offset + length - 8);
+					int pageNo = getInt(d, offset + length - 4);
+					if (postings && slotNo == PostingList.POSTING_SLOT) {
+						pending = PostingList.rids(new PageId(pageNo));
+						pendingKey = key;
+						pendingPos = 0;
+						break;
+					}
+					keys[n] = key;
+					pageNos[n] = pageNo;
+					slotNos[n] = slotNo;
+					n++;
+				}
+				slot = s;
+			}
+		} catch (ScanIteratorException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		} finally {
+			Database.exit(saved);
+		}
+		return n;
+	}
+
+	/**
+	 * Unpin the current leaf, if any; the scan is then done.
+	 *
+	 * @exception ScanIteratorException
+	 *                error from the buffer manager
+	 */
+	public void close() throws ScanIteratorException {
+		pending = null;
+		if (data == null)
+			return;
+		data = null;
+		Database.Binding saved = Database.enter(database);
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		} finally {
+			Database.exit(saved);
+		}
+	}
+
+	private int drainPending(int[] keys, int[] pageNos, int[] slotNos, int n,
+			int max) {
+		while (pendingPos < pending.length && n < max) {
+			keys[n] = pendingKey;
+			pageNos[n] = pending[pendingPos].pageNo.pid;
+			slotNos[n] = pending[pendingPos].slotNo;
+			pendingPos++;
+			n++;
+		}
+		if (pendingPos == pending.length)
+			pending = null;
+		return n;
+	}
+
+	/*
+	 * move to the next leaf of the chain, reusing pageno and page
+	 */
+	private void nextLeaf() throws Exception {
+		int next = getInt(data, HFPage.NEXT_PAGE);
+		SystemDefs.JavabaseBM.unpinPage(pageno, false);
+		data = null;
+		if (next == INVALID_PAGE)
+			return;
+		pageno.pid = next;
+		SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+		data = page.getpage();
+		slot = 0;
+		slotCount = (short) (((data[HFPage.SLOT_CNT] & 0xff) << 8) | (data[HFPage.SLOT_CNT + 1] & 0xff));
+		BTreeMetrics.scanLeaves.increment();
+	}
+
+	private static int getInt(byte[] d, int at) {
+		return ((d[at] & 0xff) << 24) | ((d[at + 1] & 0xff) << 16)
+				| ((d[at + 2] & 0xff) << 8) | (d[at + 3] & 0xff);
+	}
+}
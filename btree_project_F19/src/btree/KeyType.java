@@ -0,0 +1,12 @@
+package btree;
+
+/**
+ * Key types a BTreeFile can be created with besides AttrType.attrInteger and
+ * AttrType.attrString. Keys of these types are stored in the pages as
+ * order-preserving StringKeys, see NormalizedKey and LongKey.
+ */
+public class KeyType {
+	public static final int attrComposite = 10;
+	public static final int attrLong = 11;
+	public static final int attrFixedBytes = 12;
+}
@@ -0,0 +1,96 @@
+package btree;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyRecorder keeps a histogram of operation latencies in nanoseconds for
+ * BTreeMetrics. Buckets are log-linear, 16 per power of two, so a percentile is
+ * within about 6% of the true value. Recording is one atomic add and does not
+ * allocate. The bucket layout is public for the histograms of the
+ * benchmarks (see bench.LatencyHistogram).
+ */
+public class LatencyRecorder {
+
+	private static final int SUB_BUCKETS = 16;
+	private static final int SUB_BITS = 4;
+
+	/** the number of buckets */
+	public static final int BUCKETS = 64 * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+
+	LatencyRecorder() {
+	}
+
+	void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(bucket(nanos));
+		total.increment();
+		sum.add(nanos);
+	}
+
+	void reset() {
+		for (int i = 0; i < counts.length(); i++)
+			counts.set(i, 0);
+		total.reset();
+		sum.reset();
+	}
+
+	long count() {
+		return total.sum();
+	}
+
+	long totalNanos() {
+		return sum.sum();
+	}
+
+	/*
+	 * upper bound of the bucket holding the p-th percentile, p in [0, 100]
+	 */
+	long percentile(double p) {
+		long n = 0;
+		for (int i = 0; i < counts.length(); i++)
+			n += counts.get(i);
+		if (n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(n * p / 100.0));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return upperBound(i);
+		}
+		return upperBound(counts.length() - 1);
+	}
+
+	/**
+	 * @param v
+	 *            a latency in nanoseconds, not negative
+	 * @return the bucket it falls in
+	 */
+	public static int bucket(long v) {
+		if (v < SUB_BUCKETS)
+			return (int) v;
+		int msb = 63 - Long.numberOfLeadingZeros(v);
+		int sub = (int) (v >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (msb - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @param bucket
+	 *            a bucket, below BUCKETS
+	 * @return the largest latency in it
+	 */
+	public static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int msb = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		int sub = bucket % SUB_BUCKETS;
+		long base = (1L << msb) | ((long) sub << (msb - SUB_BITS));
+		return base + (1L << (msb - SUB_BITS)) - 1;
+	}
+}
@@ -0,0 +1,191 @@
+package btree;
+
+import java.util.*;
+
+/**
+ * LeafBloomFilters keeps a Bloom filter of the keys of each leaf of a
+ * BTreeFile, by leaf page number, so that BTreeFile.containsKey can tell
+ * from the index page above that a key is not on a leaf without pinning it.
+ * <p>
+ * The filters live in memory beside the tree and are not stored with it. A
+ * leaf gets its filter when a lookup reads it, or when
+ * BTreeFile.setBloomFilters builds them all. Inserts made through the
+ * BTreeFile add their keys. A split leaves both halves a copy of the
+ * filter, which still holds all their keys. Deletes leave their keys in,
+ * which only costs false positives. A filter is sized for half again the
+ * keys its leaf had; one that has taken more keys than that is dropped, and
+ * rebuilt the next time its leaf is read.
+ * <p>
+ * The BTreeFile runs its operations one at a time (see Database.enter), so
+ * the filters are not locked.
+ */
+final class LeafBloomFilters {
+
+	/* keys a filter is sized for at least, so that inserts fit */
+	private static final int MIN_KEYS = 16;
+	/* rough heap cost of a filter besides its bits */
+	private static final int FILTER_OVERHEAD = 80;
+
+	private final int bitsPerKey;
+	private final int hashes;
+	private final HashMap<Integer, Filter> filters = new HashMap<Integer, Filter>();
+	private long bytes;
+	private long negatives;
+	private long falsePositives;
+
+	/*
+	 * bitsPerKey bits of filter per key; 10 gives about 1% false positives
+	 */
+	LeafBloomFilters(int bitsPerKey) {
+		this.bitsPerKey = bitsPerKey;
+		hashes = Math.max(1, Math.min(8, (int) Math.round(bitsPerKey
+				* Math.log(2))));
+	}
+
+	/*
+	 * does leaf pid have a filter
+	 */
+	boolean has(int pid) {
+		return filters.containsKey(Integer.valueOf(pid));
+	}
+
+	/*
+	 * true if leaf pid has a filter and key is certainly not in it
+	 */
+	boolean absent(int pid, KeyClass key) {
+		Filter filter = filters.get(Integer.valueOf(pid));
+		if (filter == null || filter.mightContain(hash(key)))
+			return false;
+		negatives++;
+		return true;
+	}
+
+	/*
+	 * the filter of leaf pid let a key through that the leaf does not have
+	 */
+	void falsePositive() {
+		falsePositives++;
+	}
+
+	/*
+	 * make the filter of leaf pid from its keys
+	 */
+	void build(int pid, KeyClass[] keys) {
+		remove(pid);
+		Filter filter = new Filter(Math.max(MIN_KEYS, keys.length * 3 / 2));
+		for (int i = 0; i < keys.length; i++)
+			filter.add(hash(keys[i]));
+		filters.put(Integer.valueOf(pid), filter);
+		bytes += filter.bytes();
+	}
+
+	/*
+	 * key was inserted on leaf pid
+	 */
+	void add(int pid, KeyClass key) {
+		Filter filter = filters.get(Integer.valueOf(pid));
+		if (filter == null)
+			return;
+		if (filter.count >= filter.capacity)
+			remove(pid);
+		else
+			filter.add(hash(key));
+	}
+
+	/*
+	 * leaf pid split, some of its keys going to newPid, and then key was
+	 * inserted on one of them
+	 */
+	void split(int pid, int newPid, KeyClass key) {
+		Filter filter = filters.get(Integer.valueOf(pid));
+		remove(newPid);
+		if (filter == null)
+			return;
+		Filter copy = new Filter(filter);
+		filters.put(Integer.valueOf(newPid), copy);
+		bytes += copy.bytes();
+		add(pid, key);
+		add(newPid, key);
+	}
+
+	/*
+	 * leaf pid was freed
+	 */
+	void remove(int pid) {
+		Filter filter = filters.remove(Integer.valueOf(pid));
+		if (filter != null)
+			bytes -= filter.bytes();
+	}
+
+	/*
+	 * put the counts in stats
+	 */
+	void report(BTreeStats stats) {
+		stats.bloomFilters = filters.size();
+		stats.bloomBytes = bytes;
+		stats.bloomNegatives = negatives;
+		stats.bloomFalsePositives = falsePositives;
+	}
+
+	/*
+	 * the key's hash: its value or string hash, bits spread by the finalizer
+	 * of MurmurHash3
+	 */
+	private static long hash(KeyClass key) {
+		long h = key instanceof IntegerKey ? ((IntegerKey) key).getKey()
+				.intValue() : ((StringKey) key).getKey().hashCode();
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb93fe5e3b53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/*
+	 * The bits of one leaf's filter; a power of two of them, probed by
+	 * double hashing
+	 */
+	private final class Filter {
+		final long[] bits;
+		final int capacity; // keys it was sized for
+		int count; // keys added
+
+		Filter(int keys) {
+			int m = Integer.highestOneBit(Math.max(64, keys * bitsPerKey - 1)) << 1;
+			bits = new long[m >>> 6];
+			capacity = keys;
+		}
+
+		Filter(Filter other) {
+			bits = other.bits.clone();
+			capacity = other.capacity;
+			count = other.count;
+		}
+
+		void add(long h) {
+			int mask = (bits.length << 6) - 1;
+			int h1 = (int) h, h2 = (int) (h >>> 32) | 1;
+			for (int i = 0; i < hashes; i++) {
+				int bit = (h1 + i * h2) & mask;
+				bits[bit >>> 6] |= 1L << bit;
+			}
+			count++;
+		}
+
+		boolean mightContain(long h) {
+			int mask = (bits.length << 6) - 1;
+			int h1 = (int) h, h2 = (int) (h >>> 32) | 1;
+			for (int i = 0; i < hashes; i++) {
+				int bit = (h1 + i * h2) & mask;
+				if ((bits[bit >>> 6] & (1L << bit)) == 0)
+					return false;
+			}
+			return true;
+		}
+
+		long bytes() {
+			return FILTER_OVERHEAD + 8L * bits.length;
+		}
+	}
+}
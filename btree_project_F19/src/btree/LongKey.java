@@ -0,0 +1,92 @@
+package btree;
+
+/**
+ * LongKey is the key of an index created with KeyType.attrLong, for 64-bit
+ * ids. It is stored as a StringKey of 10 base-127 digits of the value with
+ * its sign bit flipped, most significant first, digit d as the character
+ * d + 1. The stored form orders like the signed value and takes 10 bytes of
+ * a page, as the characters 1..127 take one byte each.
+ */
+public class LongKey extends KeyClass {
+
+	/** the digits of the stored form; 127^10 > 2^64 */
+	private static final int DIGITS = 10;
+
+	private long key;
+
+	public String toString() {
+		return Long.toString(key);
+	}
+
+	/**
+	 * Class constructor
+	 *
+	 * @param value
+	 *            the value of the long key to be set
+	 */
+	public LongKey(long value) {
+		key = value;
+	}
+
+	/**
+	 * get a copy of the long key
+	 *
+	 * @return the reference of the copy
+	 */
+	public long getKey() {
+		return key;
+	}
+
+	/**
+	 * set the long key value
+	 */
+	public void setKey(long value) {
+		key = value;
+	}
+
+	/**
+	 * @return negative, zero or positive as this key sorts before, equal to or
+	 *         after other
+	 */
+	public int compareTo(LongKey other) {
+		return key < other.key ? -1 : (key == other.key ? 0 : 1);
+	}
+
+	public boolean equals(Object o) {
+		return o instanceof LongKey && ((LongKey) o).key == key;
+	}
+
+	public int hashCode() {
+		return (int) (key ^ (key >>> 32));
+	}
+
+	/*
+	 * Every stored long key has the same length, so an upper bound needs
+	 * nothing past the digits.
+	 */
+	StringKey toStringKey(boolean upperBound) {
+		char[] chars = new char[DIGITS];
+		long value = key ^ Long.MIN_VALUE;
+		chars[DIGITS - 1] = (char) (Long.remainderUnsigned(value, 127) + 1);
+		value = Long.divideUnsigned(value, 127);
+		for (int i = DIGITS - 2; i >= 0; i--) {
+			chars[i] = (char) (value % 127 + 1);
+			value /= 127;
+		}
+		return new StringKey(new String(chars));
+	}
+
+	static LongKey fromStringKey(StringKey key) throws KeyNotMatchException {
+		String s = key.getKey();
+		if (s.length() != DIGITS)
+			throw new KeyNotMatchException(null, "not a long key");
+		long value = 0;
+		for (int i = 0; i < DIGITS; i++)
+			value = value * 127 + (s.charAt(i) - 1);
+		LongKey decoded = new LongKey(value ^ Long.MIN_VALUE);
+		// digits out of range, or a value past 2^64, do not encode back
+		if (!decoded.toStringKey(false).getKey().equals(s))
+			throw new KeyNotMatchException(null, "not a long key");
+		return decoded;
+	}
+}
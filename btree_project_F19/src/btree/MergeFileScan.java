@@ -0,0 +1,147 @@
+package btree;
+
+import java.io.IOException;
+import java.util.*;
+
+import bufmgr.*;
+
+/**
+ * MergeFileScan is the scan PartitionedBTree.new_scan hands out: a k-way
+ * merge of one BTFileScan per shard holding keys in the range. The heads of
+ * the shard scans are kept in a heap ordered by key, ties going to the shard
+ * that comes first, so the entries come out in key order. A shard scan is
+ * moved on only when the next entry is asked for, which leaves it on the
+ * entry just returned for delete_current.
+ */
+public class MergeFileScan extends IndexFileScan {
+
+	/* the current entry of a shard scan */
+	private static final class Head {
+		final BTFileScan scan;
+		final int order;
+		KeyDataEntry entry;
+
+		Head(BTFileScan scan, int order) {
+			this.scan = scan;
+			this.order = order;
+		}
+	}
+
+	private static final Comparator<Head> ORDER = new Comparator<Head>() {
+		public int compare(Head a, Head b) {
+			try {
+				int cmp = BT.keyCompare(a.entry.key, b.entry.key);
+				return cmp != 0 ? cmp : a.order - b.order;
+			} catch (KeyNotMatchException e) {
+				// the shards of an index share one key type
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final PartitionedBTree owner;
+	private final List<BTFileScan> scans;
+	private final PriorityQueue<Head> heap;
+	private final int keysize;
+	private Head current; // returned last, not moved on yet
+	private boolean closed;
+
+	/*
+	 * merge the given scans, positioned before their first entries; they
+	 * belong to the merge from now on
+	 */
+	MergeFileScan(PartitionedBTree owner, List<BTFileScan> scans, int keysize)
+			throws ScanIteratorException {
+		this.owner = owner;
+		this.scans = scans;
+		this.keysize = keysize;
+		heap = new PriorityQueue<Head>(Math.max(1, scans.size()), ORDER);
+		for (int i = 0; i < scans.size(); i++)
+			advance(new Head(scans.get(i), i));
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		if (current != null) {
+			advance(current);
+			current = null;
+		}
+		current = heap.poll();
+		if (current == null) {
+			try {
+				DestroyBTreeFileScan();
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new ScanIteratorException(e, "");
+			}
+			return null;
+		}
+		return current.entry;
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (current == null)
+			throw new ScanDeleteException(null, "no current entry");
+		current.scan.delete_current();
+	}
+
+	/**
+	 * @return the maximum key size of the index
+	 */
+	public int keysize() {
+		return keysize;
+	}
+
+	/**
+	 * destructor. unpin the pages the shard scans still hold; the merge is
+	 * done after this. The scan destroys itself when it runs out of entries.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (closed)
+			return;
+		closed = true;
+		heap.clear();
+		current = null;
+		try {
+			for (BTFileScan scan : scans)
+				scan.DestroyBTreeFileScan();
+		} finally {
+			owner.scanClosed();
+		}
+	}
+
+	/*
+	 * move a shard scan to its next entry and back into the heap, if it has
+	 * one
+	 */
+	private void advance(Head head) throws ScanIteratorException {
+		head.entry = head.scan.get_next();
+		if (head.entry != null)
+			heap.add(head);
+	}
+}
@@ -0,0 +1,45 @@
+package btree;
+
+import java.io.IOException;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * MeteredBufMgr is a BufMgr that counts pins, unpins, hits and misses in
+ * BTreeMetrics. A pin is a miss if it had to read the page from disk, which
+ * it can only tell when SystemDefs.JavabaseDB is a MeteredDB; pages that are
+ * allocated or pinned as empty are neither. BufMgr.newPage pins the new page
+ * through pinPage, so that pin is counted there.
+ */
+public class MeteredBufMgr extends BufMgr {
+
+	public MeteredBufMgr(int numbufs, String replacerArg) {
+		super(numbufs, replacerArg);
+	}
+
+	public void pinPage(PageId pin_pgid, Page page, boolean emptyPage)
+			throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException {
+		DB db = SystemDefs.JavabaseDB;
+		long reads = db instanceof MeteredDB ? ((MeteredDB) db).reads : -1;
+		super.pinPage(pin_pgid, page, emptyPage);
+		BTreeMetrics.pins.increment();
+		if (reads < 0 || emptyPage)
+			return;
+		if (((MeteredDB) db).reads == reads)
+			BTreeMetrics.hits.increment();
+		else
+			BTreeMetrics.misses.increment();
+	}
+
+	public void unpinPage(PageId PageId_in_a_DB, boolean dirty)
+			throws ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException, InvalidFrameNumberException {
+		super.unpinPage(PageId_in_a_DB, dirty);
+		BTreeMetrics.unpins.increment();
+	}
+}
@@ -0,0 +1,30 @@
+package btree;
+
+import java.io.IOException;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * MeteredDB is a DB that counts the pages it reads and writes in
+ * BTreeMetrics. BTreeMetrics.install() opens one on the database file in
+ * place of SystemDefs.JavabaseDB.
+ */
+public class MeteredDB extends DB {
+
+	/* reads so far, for MeteredBufMgr to tell hits from misses */
+	long reads;
+
+	public void read_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		super.read_page(pageno, apage);
+		reads++;
+		BTreeMetrics.diskReads.increment();
+	}
+
+	public void write_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		super.write_page(pageno, apage);
+		BTreeMetrics.diskWrites.increment();
+	}
+}
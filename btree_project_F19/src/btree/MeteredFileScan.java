@@ -0,0 +1,128 @@
+package btree;
+
+import java.io.IOException;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * MeteredFileScan is the BTFileScan new_scan hands out. It counts the leaf
+ * pages the scan moves onto in BTreeMetrics, and drops the cached view of a
+ * leaf it deletes from. Each call enters the Database of the index.
+ * <p>
+ * Once the entries of a leaf are used up, the scan ends there if the high
+ * fence of the leaf (see DecodedPageCache) is past the end key, rather than
+ * pinning the next leaf to find its first key past it.
+ */
+class MeteredFileScan extends BTFileScan {
+
+	Database database;
+	private BTLeafPage viewed; // the leaf leafView is of
+	private DecodedPageCache.View leafView;
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		Database.Binding saved = Database.enter(database);
+		try {
+			if (leafPage != null && endkey != null && rangeEnds()) {
+				BTreeMetrics.fenceStops.increment();
+				SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+				leafPage = null;
+				return null;
+			}
+			BTLeafPage before = leafPage;
+			KeyDataEntry entry = super.get_next();
+			if (leafPage != before && leafPage != null)
+				BTreeMetrics.scanLeaves.increment();
+			return entry;
+		} catch (ScanIteratorException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		} finally {
+			Database.exit(saved);
+		}
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		Database.Binding saved = Database.enter(database);
+		try {
+			super.delete_current();
+			if (leafPage != null)
+				DecodedPageCache.invalidate(leafPage.getCurPage());
+			leafView = null;
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new ScanDeleteException(e, "");
+		} finally {
+			Database.exit(saved);
+		}
+	}
+
+	/**
+	 * destructor. unpin some pages if they are not unpinned already. and do
+	 * some clearing work.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		Database.Binding saved = Database.enter(database);
+		try {
+			super.DestroyBTreeFileScan();
+		} finally {
+			Database.exit(saved);
+		}
+	}
+
+	/*
+	 * true if the scan has used up the entries of its leaf, and the next
+	 * leaf, which starts at the high fence or later, is past endkey
+	 */
+	private boolean rangeEnds() throws IOException, IteratorException,
+			ConstructPageException, KeyNotMatchException {
+		int next = didfirst && !deletedcurrent ? curRid.slotNo + 1
+				: curRid.slotNo;
+		if (viewed == leafPage && leafView != null && left(leafView, next))
+			return false;
+		// at the end as last decoded; check on the page as it is now
+		leafView = DecodedPageCache.get(leafPage.getCurPage(), leafPage,
+				keyType);
+		viewed = leafPage;
+		if (left(leafView, next))
+			return false;
+		KeyClass bound = leafView.nextLeafBound();
+		return bound != null && BT.keyCompare(endkey, bound) < 0;
+	}
+
+	/*
+	 * does the leaf have an entry in slot next or after
+	 */
+	private static boolean left(DecodedPageCache.View view, int next) {
+		int n = view.values.length;
+		return n > 0 && view.values[n - 1] >= next;
+	}
+}
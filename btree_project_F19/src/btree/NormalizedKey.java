@@ -0,0 +1,112 @@
+package btree;
+
+import global.*;
+
+/**
+ * NormalizedKey maps keys with an order-preserving byte encoding onto the
+ * StringKey format the BT pages know how to store and compare. The bytes are
+ * read as a string of bits and cut into 6-bit digits, the last one padded
+ * with zeros, and digit d becomes the character d + 1. Pages store the
+ * characters 1..127 in one byte each, so n bytes take (8n + 5) / 6 bytes of
+ * a page, where the plain UTF form of the bytes would take between n and 2n.
+ * String.compareTo on the stored key orders exactly like an unsigned byte
+ * comparison of the encodings, shorter prefix first, and compares at most a
+ * third more characters than there are bytes.
+ */
+final class NormalizedKey {
+
+	/** sorts after every character an encoding can produce */
+	private static final char UPPER_BOUND = '\uffff';
+
+	private NormalizedKey() {
+	}
+
+	/**
+	 * @return the key type the pages of an index of the given type use
+	 */
+	static int storedType(int keyType) {
+		switch (keyType) {
+		case KeyType.attrComposite:
+		case KeyType.attrLong:
+		case KeyType.attrFixedBytes:
+			return AttrType.attrString;
+		default:
+			return keyType;
+		}
+	}
+
+	/**
+	 * @return true if keys of this index type go through NormalizedKey
+	 */
+	static boolean isNormalized(int keyType) {
+		return keyType == KeyType.attrComposite
+				|| keyType == KeyType.attrLong
+				|| keyType == KeyType.attrFixedBytes;
+	}
+
+	/**
+	 * @param upperBound
+	 *            if true, the result sorts after every key that starts with
+	 *            bytes; used for the inclusive high end of a prefix scan
+	 */
+	static StringKey toStringKey(byte[] bytes, int length, boolean upperBound) {
+		int digits = (8 * length + 5) / 6;
+		char[] chars = new char[upperBound ? digits + 1 : digits];
+		int bits = 0; // the bits not yet in a digit
+		int held = 0; // how many
+		int d = 0;
+		for (int i = 0; i < length; i++) {
+			bits = bits << 8 | (bytes[i] & 0xff);
+			for (held += 8; held >= 6; held -= 6)
+				chars[d++] = (char) ((bits >>> (held - 6) & 0x3f) + 1);
+			bits &= (1 << held) - 1;
+		}
+		if (held > 0) {
+			// an upper bound pads with ones, so that the last digit is at
+			// least that of every key going on from here
+			int pad = upperBound ? (1 << (6 - held)) - 1 : 0;
+			chars[d++] = (char) ((bits << (6 - held) | pad) + 1);
+		}
+		if (upperBound)
+			chars[d] = UPPER_BOUND;
+		return new StringKey(new String(chars));
+	}
+
+	static byte[] fromStringKey(StringKey key) throws KeyNotMatchException {
+		String s = key.getKey();
+		byte[] bytes = new byte[6 * s.length() / 8];
+		if ((8 * bytes.length + 5) / 6 != s.length())
+			throw new KeyNotMatchException(null, "not a normalized key");
+		int bits = 0;
+		int held = 0;
+		int b = 0;
+		for (int i = 0; i < s.length(); i++) {
+			int c = s.charAt(i) - 1;
+			if (c < 0 || c > 0x3f)
+				throw new KeyNotMatchException(null, "not a normalized key");
+			bits = bits << 6 | c;
+			held += 6;
+			if (held >= 8) {
+				held -= 8;
+				bytes[b++] = (byte) (bits >>> held);
+				bits &= (1 << held) - 1;
+			}
+		}
+		if (bits != 0) // the padding
+			throw new KeyNotMatchException(null, "not a normalized key");
+		return bytes;
+	}
+
+	/**
+	 * unsigned lexicographic comparison, shorter prefix first
+	 */
+	static int compare(byte[] a, int alen, byte[] b, int blen) {
+		int n = Math.min(alen, blen);
+		for (int i = 0; i < n; i++) {
+			int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+			if (cmp != 0)
+				return cmp;
+		}
+		return alen - blen;
+	}
+}
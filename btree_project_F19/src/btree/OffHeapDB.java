@@ -0,0 +1,245 @@
+package btree;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * OffHeapDB is a DB with a second page pool below the buffer manager, kept
+ * off the Java heap in direct ByteBuffers. BufMgr frames are byte arrays the
+ * page classes work on, so they stay on the heap; the idea is to give BufMgr
+ * a small pool and this one the memory, where the garbage collector never
+ * looks at it.
+ * <p>
+ * A page missing from the arena is read with a positional FileChannel read
+ * straight into its arena slot, then copied into the frame; a page found
+ * there is only copied. Writes go into the arena and on to the file from
+ * there (write-through), so the arena never holds the only copy of a page
+ * and evicting from it, by CLOCK, is free. Arena hits are buffer pool misses
+ * but not disk reads in BTreeMetrics.
+ * <p>
+ * install() opens one on the database file in place of SystemDefs.JavabaseDB.
+ */
+public class OffHeapDB extends MeteredDB {
+
+	/* direct buffers are limited to 2 GB; the arena is cut into chunks */
+	private static final int CHUNK_PAGES = (1 << 30) / MINIBASE_PAGESIZE;
+
+	private final ByteBuffer[] chunks;
+	private final int slots;
+	private int[] pageOf; // page held by each slot, INVALID_PAGE if none
+	private boolean[] referenced;
+	private int hand;
+	private int[] slotOf; // slot of each page of the database, -1 if none
+	private FileChannel channel;
+
+	/**
+	 * @param arenaBytes
+	 *            the size of the off-heap pool, rounded down to whole pages
+	 */
+	public OffHeapDB(long arenaBytes) {
+		long pages = Math.max(1, arenaBytes / MINIBASE_PAGESIZE);
+		if (pages > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("arena too large");
+		slots = (int) pages;
+		chunks = new ByteBuffer[(slots + CHUNK_PAGES - 1) / CHUNK_PAGES];
+		for (int i = 0; i < chunks.length; i++)
+			chunks[i] = ByteBuffer.allocateDirect(Math.min(CHUNK_PAGES, slots
+					- i * CHUNK_PAGES)
+					* MINIBASE_PAGESIZE);
+		pageOf = new int[slots];
+		referenced = new boolean[slots];
+		java.util.Arrays.fill(pageOf, INVALID_PAGE);
+	}
+
+	/**
+	 * Replace SystemDefs.JavabaseDB with an OffHeapDB on the same file. Call
+	 * it right after new SystemDefs(), while no page is pinned; BTreeMetrics
+	 * may be installed before or after.
+	 *
+	 * @param arenaBytes
+	 *            the size of the off-heap pool
+	 * @exception IllegalStateException
+	 *                a page is pinned
+	 * @exception Exception
+	 *                error from the lower layer
+	 */
+	public static void install(long arenaBytes) throws Exception {
+		if (SystemDefs.JavabaseDB instanceof OffHeapDB)
+			return;
+		if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != SystemDefs.JavabaseBM
+				.getNumBuffers())
+			throw new IllegalStateException(
+					"install the off-heap pool before any page is pinned");
+		SystemDefs.JavabaseBM.flushAllPages();
+		String name = SystemDefs.JavabaseDB.db_name();
+		SystemDefs.JavabaseDB.closeDB();
+		// openDB reads its space map through the buffer manager, which
+		// reads through SystemDefs.JavabaseDB
+		OffHeapDB db = new OffHeapDB(arenaBytes);
+		SystemDefs.JavabaseDB = db;
+		db.openDB(name);
+	}
+
+	/** @return the number of pages the arena holds */
+	public int getArenaPages() {
+		return slots;
+	}
+
+	public synchronized void openDB(String fname) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		super.openDB(fname);
+		attach(fname);
+	}
+
+	public synchronized void openDB(String fname, int num_pgs)
+			throws IOException, InvalidPageNumberException, FileIOException,
+			DiskMgrException {
+		super.openDB(fname, num_pgs);
+		attach(fname);
+	}
+
+	public synchronized void closeDB() throws IOException {
+		detach();
+		super.closeDB();
+	}
+
+	public synchronized void DBDestroy() throws IOException {
+		detach();
+		super.DBDestroy();
+	}
+
+	public synchronized void read_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		if (channel == null) {
+			super.read_page(pageno, apage);
+			return;
+		}
+		check(pageno);
+		int slot = slotOf[pageno.pid];
+		if (slot >= 0) {
+			referenced[slot] = true;
+			BTreeMetrics.offHeapHits.increment();
+		} else {
+			slot = claim(pageno.pid);
+			ByteBuffer target = slice(slot);
+			long position = (long) pageno.pid * MINIBASE_PAGESIZE;
+			try {
+				while (target.hasRemaining())
+					if (channel.read(target, position + target.position()) < 0)
+						throw new FileIOException(null,
+								"page past end of file");
+			} catch (IOException e) {
+				drop(pageno.pid);
+				throw e;
+			} catch (FileIOException e) {
+				drop(pageno.pid);
+				throw e;
+			}
+			BTreeMetrics.diskReads.increment();
+		}
+		slice(slot).get(apage.getpage(), 0, MINIBASE_PAGESIZE);
+		reads++;
+	}
+
+	public synchronized void write_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		if (channel == null) {
+			super.write_page(pageno, apage);
+			return;
+		}
+		check(pageno);
+		int slot = slotOf[pageno.pid];
+		if (slot < 0)
+			slot = claim(pageno.pid);
+		referenced[slot] = true;
+		slice(slot).put(apage.getpage(), 0, MINIBASE_PAGESIZE);
+		ByteBuffer source = slice(slot);
+		long position = (long) pageno.pid * MINIBASE_PAGESIZE;
+		while (source.hasRemaining())
+			channel.write(source, position + source.position());
+		BTreeMetrics.diskWrites.increment();
+	}
+
+	public synchronized void deallocate_page(PageId start_page_num,
+			int run_size) throws InvalidRunSizeException,
+			InvalidPageNumberException, IOException, FileIOException,
+			DiskMgrException {
+		super.deallocate_page(start_page_num, run_size);
+		if (slotOf != null)
+			for (int pid = start_page_num.pid; pid < start_page_num.pid
+					+ run_size && pid < slotOf.length; pid++)
+				drop(pid);
+	}
+
+	private void attach(String fname) throws IOException {
+		channel = new RandomAccessFile(fname, "rw").getChannel();
+		slotOf = new int[db_num_pages()];
+		java.util.Arrays.fill(slotOf, -1);
+		java.util.Arrays.fill(pageOf, INVALID_PAGE);
+		java.util.Arrays.fill(referenced, false);
+	}
+
+	private void detach() throws IOException {
+		if (channel != null)
+			channel.close();
+		channel = null;
+		slotOf = null;
+	}
+
+	private void check(PageId pageno) throws InvalidPageNumberException {
+		if (pageno.pid < 0 || pageno.pid >= slotOf.length)
+			throw new InvalidPageNumberException(null, "BAD_PAGE_NUMBER");
+	}
+
+	/*
+	 * a slot for pid, taken from the page the clock hand finds first
+	 * without its reference bit
+	 */
+	private int claim(int pid) {
+		while (referenced[hand]) {
+			referenced[hand] = false;
+			hand = (hand + 1) % slots;
+		}
+		int slot = hand;
+		hand = (hand + 1) % slots;
+		if (pageOf[slot] != INVALID_PAGE)
+			slotOf[pageOf[slot]] = -1;
+		pageOf[slot] = pid;
+		slotOf[pid] = slot;
+		referenced[slot] = true;
+		return slot;
+	}
+
+	private void drop(int pid) {
+		int slot = slotOf[pid];
+		if (slot < 0)
+			return;
+		slotOf[pid] = -1;
+		pageOf[slot] = INVALID_PAGE;
+		referenced[slot] = false;
+	}
+
+	private ByteBuffer chunk(int slot) {
+		return chunks[slot / CHUNK_PAGES];
+	}
+
+	private static int offset(int slot) {
+		return (slot % CHUNK_PAGES) * MINIBASE_PAGESIZE;
+	}
+
+	/*
+	 * the slot's page as a buffer of its own, positioned at its start; the
+	 * chunk's position and limit are left alone
+	 */
+	private ByteBuffer slice(int slot) {
+		ByteBuffer page = chunk(slot).duplicate();
+		page.position(offset(slot));
+		page.limit(offset(slot) + MINIBASE_PAGESIZE);
+		return page.slice();
+	}
+}
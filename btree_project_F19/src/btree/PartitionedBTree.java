@@ -0,0 +1,783 @@
+package btree;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * PartitionedBTree range-partitions one index across several BTreeFiles,
+ * its shards, which may live in different Databases. Shard i holds the keys
+ * from its low key up to the next shard's; the first shard has no low key
+ * and holds everything below the second's. Inserts and deletes go to the
+ * one shard that holds the key, and new_scan merges the scans of the shards
+ * a range touches into one in key order (see MergeFileScan).
+ * <p>
+ * The shards are recorded in a catalog, a BTreeFile under the index name in
+ * the first Database, mapping the low key of each shard after the first to
+ * its number (the page number of the RID) and the index of its Database
+ * (the slot number). Shard n is the BTreeFile named name.n; the first shard
+ * is always name.0 in the first Database, since a split leaves the lower
+ * half where it is.
+ * <p>
+ * split() cuts a shard in two at its median key while the index stays in
+ * use. The new upper shard is entered in the catalog first and takes the
+ * inserts for its range at once; the entries already there are then moved
+ * over in batches, each under a write lock, so that inserts, deletes and
+ * scans go on between them. Until the move is done the old shard is
+ * consulted for the upper range too. Opening an index, or the next split,
+ * finishes a split that was cut short. A batch waits until the scans open
+ * on the index are closed, so a thread must not split while it has a scan
+ * open.
+ */
+public class PartitionedBTree extends IndexFile implements GlobalConst {
+
+	/* entries moved per write lock while splitting */
+	private static final int SPLIT_BATCH = 1024;
+
+	/* one BTreeFile of the index */
+	private static final class Shard {
+		final int id;
+		final int database;
+		final KeyClass lo; // as stored; null for the first shard
+		final BTreeFile file;
+		final LongAdder ops = new LongAdder();
+		Shard source; // the shard still moving entries of this one's range
+
+		Shard(int id, int database, KeyClass lo, BTreeFile file) {
+			this.id = id;
+			this.database = database;
+			this.lo = lo;
+			this.file = file;
+		}
+	}
+
+	private final Database[] databases;
+	private final String name;
+	private final BTreeFile catalog;
+	private final ArrayList<Shard> shards = new ArrayList<Shard>();
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(
+			true);
+	private final AtomicInteger openScans = new AtomicInteger();
+	private final Object scanMonitor = new Object();
+	private int nextId;
+	private boolean splitting;
+	private int keyType;
+	private int keysize;
+	private int deleteFashion;
+	private int flags;
+
+	/**
+	 * Open an existing partitioned index, finishing a split that was cut
+	 * short.
+	 *
+	 * @param databases
+	 *            the Databases of the shards, in the order the index was
+	 *            created with; null entries stand for the one SystemDefs
+	 *            holds. Input parameter.
+	 * @param name
+	 *            the index name. Input parameter.
+	 * @exception Exception
+	 *                error from the catalog or a shard
+	 */
+	public PartitionedBTree(Database[] databases, String name)
+			throws Exception {
+		this.databases = databases.clone();
+		this.name = name;
+		catalog = new BTreeFile(this.databases[0], name);
+		load();
+	}
+
+	/**
+	 * Open the partitioned index, or create it with one shard more than
+	 * there are split keys. The shards are placed on the Databases in turn.
+	 *
+	 * @param databases
+	 *            the Databases the shards may live in; null entries stand
+	 *            for the one SystemDefs holds. Input parameter.
+	 * @param name
+	 *            the index name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter.
+	 * @param flags
+	 *            IndexFlags or-ed together, for every shard. Input parameter.
+	 * @param splitKeys
+	 *            the low keys of the shards after the first, ascending;
+	 *            ignored if the index exists. Input parameter.
+	 * @exception Exception
+	 *                error from the catalog or a shard
+	 */
+	public PartitionedBTree(Database[] databases, String name, int keytype,
+			int keysize, int delete_fashion, int flags, KeyClass[] splitKeys)
+			throws Exception {
+		this.databases = databases.clone();
+		this.name = name;
+		boolean exists;
+		Database.Binding saved = Database.enter(this.databases[0]);
+		try {
+			exists = SystemDefs.JavabaseDB.get_file_entry(name) != null;
+		} finally {
+			Database.exit(saved);
+		}
+		catalog = new BTreeFile(this.databases[0], name, keytype, keysize,
+				delete_fashion, 0);
+		if (exists) {
+			load();
+			return;
+		}
+
+		for (int i = 0; i <= splitKeys.length; i++) {
+			KeyClass lo = i == 0 ? null : BTreeFile.storedKey(
+					splitKeys[i - 1], false);
+			if (i > 1 && BT.keyCompare(shards.get(i - 1).lo, lo) >= 0)
+				throw new IllegalArgumentException(
+						"split keys must be ascending");
+			int database = i % this.databases.length;
+			BTreeFile file = new BTreeFile(this.databases[database], name
+					+ "." + i, keytype, keysize, delete_fashion, flags);
+			if (i > 0)
+				catalog.insert(lo, new RID(new PageId(i), database));
+			shards.add(new Shard(i, database, lo, file));
+		}
+		nextId = shards.size();
+		readShape();
+	}
+
+	/** @return the number of shards */
+	public int getShardCount() {
+		lock.readLock().lock();
+		try {
+			return shards.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param i
+	 *            a shard, in key order
+	 * @return its BTreeFile
+	 */
+	public BTreeFile getShard(int i) {
+		lock.readLock().lock();
+		try {
+			return shards.get(i).file;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param i
+	 *            a shard, in key order
+	 * @return its low key, as stored (see BTreeFile.decodeKey); null for
+	 *         the first shard
+	 */
+	public KeyClass getShardLowKey(int i) {
+		lock.readLock().lock();
+		try {
+			return shards.get(i).lo;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param i
+	 *            a shard, in key order
+	 * @return the inserts and deletes it served since it was opened
+	 *         or last split
+	 */
+	public long getShardOps(int i) {
+		lock.readLock().lock();
+		try {
+			return shards.get(i).ops.sum();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** @return the shard that served the most operations, in key order */
+	public int hottestShard() {
+		lock.readLock().lock();
+		try {
+			int hottest = 0;
+			for (int i = 1; i < shards.size(); i++)
+				if (shards.get(i).ops.sum() > shards.get(hottest).ops.sum())
+					hottest = i;
+			return hottest;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Map a key returned by a scan back to the key class it was inserted
+	 * with; see BTreeFile.decodeKey.
+	 */
+	public KeyClass decodeKey(KeyClass key) throws KeyNotMatchException,
+			IOException {
+		return getShard(0).decodeKey(key);
+	}
+
+	/**
+	 * insert record with the given key and rid into the shard that holds the
+	 * key
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when insert in index, or key already in a unique
+	 *                index
+	 */
+	public void insert(KeyClass key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		lock.readLock().lock();
+		try {
+			Shard shard = shards.get(route(BTreeFile.storedKey(key, false)));
+			shard.ops.increment();
+			// the key may not have been moved over yet
+			if ((flags & IndexFlags.UNIQUE) != 0 && shard.source != null
+					&& shard.source.file.containsKey(key))
+				throw new InsertException(null, "duplicate key " + key);
+			shard.file.insert(key, rid);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * delete leaf entry given its <key, rid> pair from the shard that holds
+	 * the key
+	 *
+	 * @param key
+	 *            the key in pair <key, rid>. Input Parameter.
+	 * @param rid
+	 *            the rid in pair <key, rid>. Input Parameter.
+	 * @return true if deleted. false if no such record.
+	 * @exception DeleteFashionException
+	 *                neither full delete nor naive delete
+	 * @exception LeafRedistributeException
+	 *                redistribution error in leaf pages
+	 * @exception RedistributeException
+	 *                redistribution error in index pages
+	 * @exception InsertRecException
+	 *                error when insert in index page
+	 * @exception KeyNotMatchException
+	 *                key is neither integer key nor string key
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception IndexInsertRecException
+	 *                error when insert in index page
+	 * @exception FreePageException
+	 *                error in BT page constructor
+	 * @exception RecordNotFoundException
+	 *                error delete a record in a BT page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception IndexFullDeleteException
+	 *                fill delete error
+	 * @exception LeafDeleteException
+	 *                delete error in leaf page
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error in search in index pages
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public boolean Delete(KeyClass key, RID rid) throws DeleteFashionException,
+			LeafRedistributeException, RedistributeException,
+			InsertRecException, KeyNotMatchException, UnpinPageException,
+			IndexInsertRecException, FreePageException,
+			RecordNotFoundException, PinPageException,
+			IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IndexSearchException,
+			IOException {
+		lock.readLock().lock();
+		try {
+			Shard shard = shards.get(route(BTreeFile.storedKey(key, false)));
+			shard.ops.increment();
+			if (shard.source == null)
+				return shard.file.Delete(key, rid);
+			return deleteFrom(shard.file, key, rid)
+					|| deleteFrom(shard.source.file, key, rid);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * create a scan of the entries with keys in [lo_key, hi_key], merged in
+	 * key order from the shards the range touches; null leaves that end of
+	 * the range open. The shard scans hold their leaves pinned until the
+	 * scan is done or destroyed, and splits wait for it.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @return the merged scan
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception ScanIteratorException
+	 *                error reading the first entries
+	 */
+	public MergeFileScan new_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException,
+			ScanIteratorException {
+		lock.readLock().lock();
+		List<BTFileScan> scans = new ArrayList<BTFileScan>();
+		openScans.incrementAndGet();
+		boolean opened = false;
+		try {
+			for (BTreeFile file : files(lo_key, hi_key))
+				scans.add(file.new_scan(lo_key, hi_key));
+			MergeFileScan scan = new MergeFileScan(this, scans, keysize);
+			opened = true;
+			return scan;
+		} finally {
+			if (!opened) {
+				for (BTFileScan scan : scans)
+					try {
+						scan.DestroyBTreeFileScan();
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				scanClosed();
+			}
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * estimate the number of entries with keys in [lo_key, hi_key], summed
+	 * over the shards; see BTreeFile.estimateCount
+	 *
+	 * @param lo_key
+	 *            the low end of the range, null for the first key
+	 * @param hi_key
+	 *            the high end of the range, null for the last key
+	 * @return the estimated number of entries
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public long estimateCount(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		lock.readLock().lock();
+		try {
+			long count = 0;
+			for (BTreeFile file : files(lo_key, hi_key))
+				count += file.estimateCount(lo_key, hi_key);
+			return count;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Split the shard that served the most operations; see split.
+	 *
+	 * @param database
+	 *            the index in the Databases of the one to put the new shard
+	 *            in
+	 * @return false if the shard cannot be split
+	 * @exception Exception
+	 *                error from the catalog or a shard
+	 */
+	public boolean splitHottest(int database) throws Exception {
+		return split(hottestShard(), database);
+	}
+
+	/**
+	 * Cut a shard in two at its median key, moving the upper half into a new
+	 * shard in the given Database. The index can be used from other threads
+	 * meanwhile. A shard whose keys are all equal to its low key cannot be
+	 * split, and only one split runs at a time.
+	 *
+	 * @param i
+	 *            the shard, in key order
+	 * @param database
+	 *            the index in the Databases of the one to put the new shard
+	 *            in
+	 * @return false if the shard cannot be split or another split is running
+	 * @exception Exception
+	 *                error from the catalog or a shard
+	 */
+	public boolean split(int i, int database) throws Exception {
+		if (database < 0 || database >= databases.length)
+			throw new IllegalArgumentException("no database " + database);
+		lockExclusive();
+		try {
+			if (splitting)
+				return false;
+			splitting = true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		try {
+			finishMoves();
+			Shard upper;
+			lockExclusive();
+			try {
+				Shard shard = shards.get(i);
+				KeyClass median = median(shard);
+				if (median == null)
+					return false;
+				int id = nextId++;
+				BTreeFile file = new BTreeFile(databases[database], name + "."
+						+ id, keyType, keysize, deleteFashion, flags);
+				catalog.insert(median, new RID(new PageId(id), database));
+				upper = new Shard(id, database, median, file);
+				upper.source = shard;
+				shards.add(i + 1, upper);
+			} finally {
+				lock.writeLock().unlock();
+			}
+			moveAll(upper);
+		} finally {
+			lock.writeLock().lock();
+			splitting = false;
+			lock.writeLock().unlock();
+		}
+		return true;
+	}
+
+	/**
+	 * Close the catalog and the shards. Scans must be destroyed first.
+	 *
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 */
+	public void close() throws PageUnpinnedException,
+			InvalidFrameNumberException, HashEntryNotFoundException,
+			ReplacerException {
+		lock.writeLock().lock();
+		try {
+			for (Shard shard : shards)
+				shard.file.close();
+			catalog.close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Destroy the shards and the catalog.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception DeleteFileEntryException
+	 *                failed when delete a file from DM
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 */
+	public void destroyFile() throws IOException, IteratorException,
+			UnpinPageException, FreePageException, DeleteFileEntryException,
+			ConstructPageException, PinPageException {
+		lock.writeLock().lock();
+		try {
+			for (Shard shard : shards)
+				shard.file.destroyFile();
+			shards.clear();
+			catalog.destroyFile();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * a MergeFileScan of this index was destroyed
+	 */
+	void scanClosed() {
+		if (openScans.decrementAndGet() == 0)
+			synchronized (scanMonitor) {
+				scanMonitor.notifyAll();
+			}
+	}
+
+	/*
+	 * read the shards from the catalog and finish an interrupted split
+	 */
+	private void load() throws Exception {
+		shards.add(new Shard(0, 0, null, new BTreeFile(databases[0], name
+				+ ".0")));
+		nextId = 1;
+		BTFileScan scan = catalog.new_scan(null, null);
+		try {
+			for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan
+					.get_next()) {
+				RID rid = ((LeafData) entry.data).getData();
+				int id = rid.pageNo.pid;
+				shards.add(new Shard(id, rid.slotNo, entry.key, new BTreeFile(
+						databases[rid.slotNo], name + "." + id)));
+				nextId = Math.max(nextId, id + 1);
+			}
+		} finally {
+			scan.DestroyBTreeFileScan();
+		}
+		readShape();
+
+		for (int i = 0; i + 1 < shards.size(); i++) {
+			Shard upper = shards.get(i + 1);
+			BTFileScan rest = shards.get(i).file.new_scan(upper.lo, null);
+			boolean cutShort = rest.get_next() != null;
+			rest.DestroyBTreeFileScan();
+			if (cutShort) {
+				upper.source = shards.get(i);
+				moveAll(upper);
+			}
+		}
+	}
+
+	/*
+	 * the key type, key size, delete fashion and flags new shards get
+	 */
+	private void readShape() throws IOException {
+		BTreeFile first = shards.get(0).file;
+		keyType = first.getKeyType();
+		keysize = first.getHeaderPage().get_maxKeySize();
+		deleteFashion = first.getHeaderPage().get_deleteFashion();
+		flags = first.getFlags();
+	}
+
+	/*
+	 * the shard holding a stored key
+	 */
+	private int route(KeyClass key) throws KeyNotMatchException {
+		int low = 1, high = shards.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (BT.keyCompare(shards.get(mid).lo, key) <= 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low - 1;
+	}
+
+	/*
+	 * the BTreeFiles holding keys in [lo_key, hi_key], in key order
+	 */
+	private List<BTreeFile> files(KeyClass lo_key, KeyClass hi_key)
+			throws KeyNotMatchException {
+		int first = lo_key == null ? 0 : route(BTreeFile.storedKey(lo_key,
+				false));
+		int last = hi_key == null ? shards.size() - 1 : route(BTreeFile
+				.storedKey(hi_key, true));
+		List<BTreeFile> files = new ArrayList<BTreeFile>();
+		if (first <= last && shards.get(first).source != null)
+			files.add(shards.get(first).source.file);
+		for (int i = first; i <= last; i++)
+			files.add(shards.get(i).file);
+		return files;
+	}
+
+	/*
+	 * the first key past the middle of the shard that is above its low key,
+	 * null if there is none
+	 */
+	private KeyClass median(Shard shard) throws Exception {
+		long half = shard.file.estimateCount(null, null) / 2;
+		BTFileScan scan = shard.file.new_scan(null, null);
+		try {
+			KeyDataEntry entry = scan.get_next();
+			for (long n = 0; entry != null && n < half; n++)
+				entry = scan.get_next();
+			while (entry != null && shard.lo != null
+					&& BT.keyCompare(entry.key, shard.lo) <= 0)
+				entry = scan.get_next();
+			return entry == null ? null : entry.key;
+		} finally {
+			scan.DestroyBTreeFileScan();
+		}
+	}
+
+	/*
+	 * finish the moves of splits an error cut short; until then their
+	 * sources are consulted as while they run
+	 */
+	private void finishMoves() throws Exception {
+		for (;;) {
+			Shard upper = null;
+			lock.readLock().lock();
+			try {
+				for (Shard shard : shards)
+					if (shard.source != null) {
+						upper = shard;
+						break;
+					}
+			} finally {
+				lock.readLock().unlock();
+			}
+			if (upper == null)
+				return;
+			moveAll(upper);
+		}
+	}
+
+	/*
+	 * move the entries of upper's range out of its source, a batch per write
+	 * lock. An error leaves each entry in one of the two, so the move can be
+	 * taken up again.
+	 */
+	private void moveAll(Shard upper) throws Exception {
+		int moved;
+		do {
+			lockExclusive();
+			try {
+				moved = moveBatch(upper);
+				if (moved < SPLIT_BATCH) {
+					upper.source.ops.reset();
+					upper.source = null;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		} while (moved == SPLIT_BATCH);
+	}
+
+	private int moveBatch(Shard upper) throws Exception {
+		List<KeyDataEntry> batch = new ArrayList<KeyDataEntry>(SPLIT_BATCH);
+		BTreeFile from = upper.source.file;
+		BTFileScan scan = from.new_scan(upper.lo, null);
+		try {
+			KeyDataEntry entry;
+			while (batch.size() < SPLIT_BATCH
+					&& (entry = scan.get_next()) != null)
+				batch.add(entry);
+		} finally {
+			scan.DestroyBTreeFileScan();
+		}
+		for (KeyDataEntry entry : batch) {
+			RID rid = ((LeafData) entry.data).getData();
+			upper.file.insert(entry.key, rid);
+			try {
+				from.Delete(entry.key, rid);
+			} catch (Exception e) {
+				upper.file.Delete(entry.key, rid);
+				throw e;
+			}
+		}
+		return batch.size();
+	}
+
+	/*
+	 * delete from one of the two shards of a range being moved. The new one
+	 * is empty until the first batch is in, and Delete takes an empty tree,
+	 * or a key past its last entry, for an error; here it only means the
+	 * entry is in the other.
+	 */
+	private static boolean deleteFrom(BTreeFile file, KeyClass key, RID rid)
+			throws DeleteFashionException, LeafRedistributeException,
+			RedistributeException, InsertRecException, KeyNotMatchException,
+			UnpinPageException, IndexInsertRecException, FreePageException,
+			RecordNotFoundException, PinPageException,
+			IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, IndexSearchException, IOException {
+		try {
+			return file.Delete(key, rid);
+		} catch (DeleteRecException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * take the write lock once no scan is open
+	 */
+	private void lockExclusive() throws InterruptedException {
+		lock.writeLock().lock();
+		while (openScans.get() > 0) {
+			lock.writeLock().unlock();
+			synchronized (scanMonitor) {
+				while (openScans.get() > 0)
+					scanMonitor.wait();
+			}
+			lock.writeLock().lock();
+		}
+	}
+}
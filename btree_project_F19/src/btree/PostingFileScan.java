@@ -0,0 +1,75 @@
+package btree;
+
+import global.*;
+
+/**
+ * PostingFileScan is the scan new_scan returns for an index created with
+ * IndexFlags.POSTING_LISTS. It returns one entry per RID, like a scan of a
+ * plain index, streaming the RIDs of a posting list one page at a time and
+ * reusing the key of the leaf entry for all of them.
+ */
+class PostingFileScan extends MeteredFileScan {
+
+	private KeyClass postingKey;
+	private long[] postingValues;
+	private int postingPos;
+	private PageId nextPosting;
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		Database.Binding saved = Database.enter(database);
+		try {
+			while (true) {
+				if (postingValues != null && postingPos < postingValues.length)
+					return new KeyDataEntry(postingKey, BTPostingPage
+							.toRid(postingValues[postingPos++]));
+
+				if (nextPosting != null && nextPosting.pid != INVALID_PAGE) {
+					BTPostingPage page = new BTPostingPage(nextPosting);
+					postingValues = page.getValues();
+					postingPos = 0;
+					PageId pageno = nextPosting;
+					nextPosting = page.getNextPage();
+					SystemDefs.JavabaseBM.unpinPage(pageno, false);
+					continue;
+				}
+
+				KeyDataEntry entry = super.get_next();
+				if (entry == null)
+					return null;
+				RID rid = ((LeafData) entry.data).getData();
+				if (!PostingList.isPosting(rid))
+					return entry;
+
+				postingKey = entry.key;
+				postingValues = null;
+				nextPosting = new PageId(rid.pageNo.pid);
+			}
+		} catch (ScanIteratorException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		} finally {
+			Database.exit(saved);
+		}
+	}
+
+	/**
+	 * Not supported on posting lists; use BTreeFile.Delete with the key and
+	 * RID instead.
+	 *
+	 * @exception ScanDeleteException
+	 *                always
+	 */
+	public void delete_current() throws ScanDeleteException {
+		throw new ScanDeleteException(null,
+				"delete_current is not supported on posting lists");
+	}
+}
@@ -0,0 +1,245 @@
+package btree;
+
+import java.io.*;
+import java.util.Arrays;
+
+import global.*;
+
+/**
+ * PostingList maintains the chain of BTPostingPages that holds the RIDs of a
+ * duplicated key in an index created with IndexFlags.POSTING_LISTS. The leaf
+ * entry of such a key refers to the first page of its chain through a RID
+ * whose slotNo is POSTING_SLOT; a key with a single RID keeps it inline in
+ * the leaf entry as usual.
+ */
+class PostingList implements GlobalConst {
+
+	/** slotNo of a leaf entry RID that refers to a posting list */
+	static final int POSTING_SLOT = -1;
+
+	private PostingList() {
+	}
+
+	static boolean isPosting(RID rid) {
+		return rid.slotNo == POSTING_SLOT;
+	}
+
+	static RID reference(PageId head) {
+		return new RID(new PageId(head.pid), POSTING_SLOT);
+	}
+
+	/**
+	 * start a list with two RIDs
+	 *
+	 * @return the first page of the new list
+	 */
+	static PageId create(RID a, RID b) throws ConstructPageException,
+			IOException, UnpinPageException {
+		long[] values = { BTPostingPage.toValue(a), BTPostingPage.toValue(b) };
+		Arrays.sort(values);
+		BTPostingPage page = new BTPostingPage();
+		page.setValues(values, 0, 2);
+		page.setTotal(2);
+		PageId head = page.getCurPage();
+		unpinPage(head, true);
+		return head;
+	}
+
+	/**
+	 * add rid to the list starting at head
+	 *
+	 * @return false if rid was already in the list
+	 */
+	static boolean add(PageId head, RID rid) throws ConstructPageException,
+			IOException, UnpinPageException {
+		long value = BTPostingPage.toValue(rid);
+
+		// the first page whose range reaches value, else the last one
+		PageId pageno = new PageId(head.pid);
+		BTPostingPage page = new BTPostingPage(pageno);
+		while (value > page.getMax() && page.getNextPage().pid != INVALID_PAGE) {
+			PageId next = page.getNextPage();
+			unpinPage(pageno, false);
+			pageno = next;
+			page = new BTPostingPage(pageno);
+		}
+
+		long[] values = page.getValues();
+		int pos = Arrays.binarySearch(values, value);
+		if (pos >= 0) {
+			unpinPage(pageno, false);
+			return false;
+		}
+		pos = -pos - 1;
+		long[] grown = new long[values.length + 1];
+		System.arraycopy(values, 0, grown, 0, pos);
+		grown[pos] = value;
+		System.arraycopy(values, pos, grown, pos + 1, values.length - pos);
+
+		if (!page.setValues(grown, 0, grown.length)) {
+			// split the page, the upper half goes to a new page after it
+			int half = grown.length / 2;
+			BTPostingPage newPage = new BTPostingPage();
+			PageId newPageId = newPage.getCurPage();
+			newPage.setValues(grown, half, grown.length);
+			page.setValues(grown, 0, half);
+
+			PageId next = page.getNextPage();
+			newPage.setNextPage(next);
+			newPage.setPrevPage(pageno);
+			page.setNextPage(newPageId);
+			if (next.pid != INVALID_PAGE) {
+				BTPostingPage nextPage = new BTPostingPage(next);
+				nextPage.setPrevPage(newPageId);
+				unpinPage(next, true);
+			}
+			unpinPage(newPageId, true);
+		}
+		unpinPage(pageno, true);
+
+		addTotal(head, 1);
+		return true;
+	}
+
+	/**
+	 * remove rid from the list starting at head. The first page of the list
+	 * stays in place, so the leaf entry referring to it remains valid.
+	 *
+	 * @return the number of RIDs left in the list, or -1 if rid was not in it
+	 */
+	static int remove(PageId head, RID rid) throws ConstructPageException,
+			IOException, UnpinPageException, FreePageException {
+		long value = BTPostingPage.toValue(rid);
+
+		PageId pageno = new PageId(head.pid);
+		BTPostingPage page = new BTPostingPage(pageno);
+		while (value > page.getMax() && page.getNextPage().pid != INVALID_PAGE) {
+			PageId next = page.getNextPage();
+			unpinPage(pageno, false);
+			pageno = next;
+			page = new BTPostingPage(pageno);
+		}
+
+		long[] values = page.getValues();
+		int pos = Arrays.binarySearch(values, value);
+		if (pos < 0) {
+			unpinPage(pageno, false);
+			return -1;
+		}
+		System.arraycopy(values, pos + 1, values, pos, values.length - pos - 1);
+		int count = values.length - 1;
+		PageId next = page.getNextPage();
+
+		if (count > 0 || (pageno.pid == head.pid && next.pid == INVALID_PAGE)) {
+			page.setValues(values, 0, count);
+			unpinPage(pageno, true);
+		} else if (pageno.pid != head.pid) {
+			// unlink the emptied page
+			PageId prev = page.getPrevPage();
+			unpinPage(pageno, false);
+			freePage(pageno);
+			BTPostingPage prevPage = new BTPostingPage(prev);
+			prevPage.setNextPage(next);
+			unpinPage(prev, true);
+			if (next.pid != INVALID_PAGE) {
+				BTPostingPage nextPage = new BTPostingPage(next);
+				nextPage.setPrevPage(prev);
+				unpinPage(next, true);
+			}
+		} else {
+			// the first page emptied: pull the second page into it
+			BTPostingPage nextPage = new BTPostingPage(next);
+			long[] moved = nextPage.getValues();
+			PageId after = nextPage.getNextPage();
+			unpinPage(next, false);
+			freePage(next);
+			page.setValues(moved, 0, moved.length);
+			page.setNextPage(after);
+			unpinPage(pageno, true);
+			if (after.pid != INVALID_PAGE) {
+				BTPostingPage afterPage = new BTPostingPage(after);
+				afterPage.setPrevPage(pageno);
+				unpinPage(after, true);
+			}
+		}
+
+		return addTotal(head, -1);
+	}
+
+	/**
+	 * @return the number of RIDs in the list, read from its first page
+	 */
+	static int count(PageId head) throws ConstructPageException,
+			UnpinPageException {
+		BTPostingPage page = new BTPostingPage(head);
+		int total = page.getTotal();
+		unpinPage(head, false);
+		return total;
+	}
+
+	/**
+	 * @return every RID in the list, in ascending order
+	 */
+	static RID[] rids(PageId head) throws ConstructPageException,
+			IOException, UnpinPageException {
+		BTPostingPage page = new BTPostingPage(head);
+		RID[] rids = new RID[page.getTotal()];
+		int n = 0;
+		PageId pageno = new PageId(head.pid);
+		while (true) {
+			long[] values = page.getValues();
+			for (int i = 0; i < values.length && n < rids.length; i++)
+				rids[n++] = BTPostingPage.toRid(values[i]);
+			PageId next = page.getNextPage();
+			unpinPage(pageno, false);
+			if (next.pid == INVALID_PAGE)
+				break;
+			pageno = next;
+			page = new BTPostingPage(pageno);
+		}
+		return rids;
+	}
+
+	/**
+	 * free every page of the list starting at head
+	 */
+	static void free(PageId head) throws ConstructPageException, IOException,
+			UnpinPageException, FreePageException {
+		PageId pageno = new PageId(head.pid);
+		while (pageno.pid != INVALID_PAGE) {
+			BTPostingPage page = new BTPostingPage(pageno);
+			PageId next = page.getNextPage();
+			unpinPage(pageno, false);
+			freePage(pageno);
+			pageno = next;
+		}
+	}
+
+	private static int addTotal(PageId head, int delta)
+			throws ConstructPageException, UnpinPageException {
+		BTPostingPage page = new BTPostingPage(head);
+		int total = page.getTotal() + delta;
+		page.setTotal(total);
+		unpinPage(head, true);
+		return total;
+	}
+
+	private static void unpinPage(PageId pageno, boolean dirty)
+			throws UnpinPageException {
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+
+	private static void freePage(PageId pageno) throws FreePageException {
+		try {
+			SystemDefs.JavabaseBM.freePage(pageno);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new FreePageException(e, "");
+		}
+	}
+}
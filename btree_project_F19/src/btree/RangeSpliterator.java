@@ -0,0 +1,232 @@
+package btree;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * RangeSpliterator walks the data entries of a BTreeFile whose keys lie in a
+ * range, one leaf at a time, for BTreeFile.stream and parallelScan. Having
+ * entered the index's Database, whose lock keeps the buffer manager to one
+ * thread, it pins a leaf, copies it and unpins it again; the entries are
+ * decoded from the copy without the lock, so only the page copies are
+ * serialized and a leaf stays pinned only while it is copied. Nothing is
+ * left pinned between calls, so an abandoned spliterator cannot leak pins;
+ * close() just drops what is buffered.
+ * <p>
+ * It splits at a separator key: the one in the middle of those inside the
+ * range on the highest index level that has any. The prefix part takes the
+ * keys below the separator and this one keeps the rest. Separators are the
+ * first keys of subtrees, so every part starts on a leaf boundary and a run
+ * of duplicates is never cut in two. Splitting stops once the parts would
+ * outnumber the parallelism asked for, the range lies on one leaf, or the
+ * traversal has started.
+ * <p>
+ * Like a BTFileScan, it expects the index not to change while it runs.
+ */
+class RangeSpliterator implements Spliterator<KeyDataEntry>, GlobalConst {
+
+	private final BTreeFile file;
+	private final int keyType;
+	private final boolean postings;
+	private KeyClass lo; // inclusive; null for open
+	private KeyClass hi; // null for open
+	private boolean hiInclusive;
+	private int parts; // how many parts this one may still become
+
+	private boolean started;
+	private boolean done;
+	private boolean closed;
+	private PageId nextLeaf;
+	private final ArrayDeque<KeyDataEntry> buffer = new ArrayDeque<KeyDataEntry>();
+	private long estimate = -1;
+
+	/*
+	 * lo and hi are keys as stored in the index (see BTreeFile.storedKey)
+	 */
+	RangeSpliterator(BTreeFile file, KeyClass lo, KeyClass hi,
+			boolean hiInclusive, int parts) throws java.io.IOException {
+		this.file = file;
+		this.keyType = file.getHeaderPage().get_keyType();
+		this.postings = (file.getFlags() & IndexFlags.POSTING_LISTS) != 0;
+		this.lo = lo;
+		this.hi = hi;
+		this.hiInclusive = hiInclusive;
+		this.parts = parts;
+	}
+
+	/*
+	 * stop the traversal; later calls find no more entries
+	 */
+	void close() {
+		closed = true;
+		done = true;
+		buffer.clear();
+	}
+
+	public boolean tryAdvance(Consumer<? super KeyDataEntry> action) {
+		if (closed)
+			return false;
+		while (buffer.isEmpty()) {
+			if (done)
+				return false;
+			load();
+		}
+		action.accept(buffer.poll());
+		return true;
+	}
+
+	public Spliterator<KeyDataEntry> trySplit() {
+		if (started || closed || parts <= 1)
+			return null;
+		KeyClass separator;
+		Database.Binding saved = Database.enter(file.getDatabase());
+		try {
+			separator = separator();
+		} catch (Exception e) {
+			throw failure(e);
+		} finally {
+			Database.exit(saved);
+		}
+		if (separator == null)
+			return null;
+
+		RangeSpliterator prefix;
+		try {
+			prefix = new RangeSpliterator(file, lo, separator, false, parts / 2);
+		} catch (java.io.IOException e) {
+			throw failure(e);
+		}
+		parts -= parts / 2;
+		lo = separator;
+		estimate = -1;
+		return prefix;
+	}
+
+	public long estimateSize() {
+		if (estimate < 0) {
+			try {
+				estimate = file.estimateCount(lo, hi);
+			} catch (Exception e) {
+				estimate = Long.MAX_VALUE;
+			}
+		}
+		return estimate;
+	}
+
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+
+	/*
+	 * Going down from the root, the first index page with separators strictly
+	 * inside the range gives the one in the middle of them. An index page
+	 * without any is passed by into the child whose keys start at or below
+	 * lo. Null if the range ends up on one leaf.
+	 */
+	private KeyClass separator() throws Exception {
+		PageId pageno = file.getHeaderPage().get_rootId();
+		if (pageno.pid == INVALID_PAGE)
+			return null;
+		while (true) {
+			BTSortedPage page = new BTSortedPage(pageno, keyType);
+			PageId child;
+			try {
+				if (page.getType() != NodeType.INDEX)
+					return null;
+				BTIndexPage index = new BTIndexPage(page, keyType);
+				List<KeyClass> inside = new ArrayList<KeyClass>();
+				child = index.getPrevPage();
+				RID rid = new RID();
+				for (KeyDataEntry entry = index.getFirst(rid); entry != null; entry = index
+						.getNext(rid)) {
+					if (lo != null && BT.keyCompare(entry.key, lo) <= 0) {
+						child = ((IndexData) entry.data).getData();
+						continue;
+					}
+					if (hi != null) {
+						int cmp = BT.keyCompare(entry.key, hi);
+						if (cmp > 0 || (cmp == 0 && !hiInclusive))
+							break;
+					}
+					inside.add(entry.key);
+				}
+				if (!inside.isEmpty())
+					return inside.get(inside.size() / 2);
+			} finally {
+				SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			}
+			pageno = child;
+		}
+	}
+
+	/*
+	 * Copy the next leaf under the lock and decode the entries in range into
+	 * the buffer.
+	 */
+	private void load() {
+		try {
+			Page copy;
+			Database.Binding saved = Database.enter(file.getDatabase());
+			try {
+				BTLeafPage leaf;
+				if (!started) {
+					started = true;
+					leaf = file.findRunStart(lo, new RID());
+				} else if (nextLeaf.pid == INVALID_PAGE) {
+					leaf = null;
+				} else {
+					leaf = new BTLeafPage(nextLeaf, keyType);
+				}
+				if (leaf == null) {
+					done = true;
+					return;
+				}
+				nextLeaf = leaf.getNextPage();
+				copy = new Page(leaf.getpage().clone());
+				SystemDefs.JavabaseBM.unpinPage(leaf.getCurPage(), false);
+			} finally {
+				Database.exit(saved);
+			}
+
+			BTLeafPage page = new BTLeafPage(copy, keyType);
+			RID rid = new RID();
+			for (KeyDataEntry entry = page.getFirst(rid); entry != null; entry = page
+					.getNext(rid)) {
+				if (lo != null && BT.keyCompare(entry.key, lo) < 0)
+					continue;
+				if (hi != null) {
+					int cmp = BT.keyCompare(entry.key, hi);
+					if (cmp > 0 || (cmp == 0 && !hiInclusive)) {
+						done = true;
+						break;
+					}
+				}
+				RID data = ((LeafData) entry.data).getData();
+				if (postings && PostingList.isPosting(data)) {
+					RID[] rids;
+					Database.Binding bound = Database.enter(file.getDatabase());
+					try {
+						rids = PostingList.rids(data.pageNo);
+					} finally {
+						Database.exit(bound);
+					}
+					for (int i = 0; i < rids.length; i++)
+						buffer.add(new KeyDataEntry(entry.key, rids[i]));
+				} else {
+					buffer.add(entry);
+				}
+			}
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw failure(e);
+		}
+	}
+
+	private static IllegalStateException failure(Exception e) {
+		return new IllegalStateException("B+ tree scan failed", e);
+	}
+}
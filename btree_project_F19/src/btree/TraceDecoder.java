@@ -0,0 +1,217 @@
+package btree;
+
+import java.io.*;
+
+/**
+ * TraceDecoder turns a binary trace written by BTreeTrace back into the text
+ * trace BTreeFile used to write, which drives the visualization tool:
+ * "VISIT node N" lines and the INDEX CHILDREN / LEAF CHILDREN blocks of
+ * trace_children. String keys come out in double quotes, with characters
+ * outside printable ASCII as Java unicode escapes; traces of version 1 had
+ * only their hash codes, which come out as #hash.
+ * <p>
+ * usage: java btree.TraceDecoder trace-file [-all] [-times]
+ * <p>
+ * -all also prints the events the text trace did not have (splits, root
+ * changes, dropped events); -times prefixes every line with the microseconds
+ * since tracing started.
+ */
+public class TraceDecoder {
+
+	private static final String lineSep = System.getProperty("line.separator");
+
+	private final DataInputStream in;
+	private final Writer out;
+	private final boolean all;
+	private final boolean times;
+	private long nanos;
+	private boolean firstChild;
+	private byte[] key; // the string key being read from KEY_BYTES
+	private int keyLength; // its bytes read so far
+
+	public TraceDecoder(InputStream in, Writer out, boolean all, boolean times) {
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		this.out = out;
+		this.all = all;
+		this.times = times;
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("usage: java btree.TraceDecoder trace-file [-all] [-times]");
+			Runtime.getRuntime().exit(2);
+		}
+		boolean all = false, times = false;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("-all"))
+				all = true;
+			else if (args[i].equals("-times"))
+				times = true;
+			else {
+				System.err.println("unknown option " + args[i]);
+				Runtime.getRuntime().exit(2);
+			}
+		}
+		try {
+			Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+			InputStream in = new FileInputStream(args[0]);
+			try {
+				new TraceDecoder(in, out, all, times).decode();
+			} finally {
+				in.close();
+				out.flush();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			Runtime.getRuntime().exit(1);
+		}
+	}
+
+	/**
+	 * decode the whole trace
+	 *
+	 * @exception IOException
+	 *                read or write error, or not a trace file
+	 */
+	public void decode() throws IOException {
+		if (in.readInt() != BTreeTrace.MAGIC)
+			throw new IOException("not a B+ tree trace");
+		int version = in.readUnsignedByte();
+		if (version < 1 || version > BTreeTrace.VERSION)
+			throw new IOException("unsupported trace version " + version);
+		in.readLong(); // start time
+
+		int children = 0; // CHILD or ENTRY events still owed to a block
+		int type;
+		while ((type = in.read()) >= 0) {
+			nanos += readVarLong();
+			int a = readZigZag();
+			int b = readZigZag();
+
+			if (key != null && type != BTreeTrace.KEY_BYTES)
+				writeKey(); // cut short, by dropped events
+			if (children > 0 && type != BTreeTrace.CHILD
+					&& type != BTreeTrace.ENTRY_KEY
+					&& type != BTreeTrace.ENTRY_RID
+					&& type != BTreeTrace.KEY_BYTES) {
+				// block cut short, by dropped events
+				out.write(lineSep);
+				children = 0;
+			}
+
+			switch (type) {
+			case BTreeTrace.VISIT:
+				line("VISIT node " + a);
+				break;
+			case BTreeTrace.INDEX_CHILDREN:
+				line("INDEX CHILDREN " + a + " nodes");
+				children = b;
+				firstChild = true;
+				if (children == 0)
+					out.write(lineSep);
+				break;
+			case BTreeTrace.LEAF_CHILDREN:
+				line("LEAF CHILDREN " + a + " nodes");
+				children = b;
+				if (children == 0)
+					out.write(lineSep);
+				break;
+			case BTreeTrace.CHILD:
+				// the text trace put the left link after one blank, the
+				// others after three
+				out.write(firstChild ? " " + a : "   " + a);
+				firstChild = false;
+				if (--children <= 0)
+					out.write(lineSep);
+				break;
+			case BTreeTrace.ENTRY_KEY:
+				if (b == 0)
+					out.write("   " + a);
+				else if (version == 1)
+					out.write("   #" + a);
+				else {
+					key = new byte[a];
+					keyLength = 0;
+					if (a == 0)
+						writeKey();
+				}
+				break;
+			case BTreeTrace.KEY_BYTES:
+				if (key == null)
+					break; // its ENTRY_KEY was dropped
+				for (int i = 0; i < 8 && keyLength < key.length; i++) {
+					int word = i < 4 ? a : b;
+					key[keyLength++] = (byte) (word >>> (24 - 8 * (i % 4)));
+				}
+				if (keyLength == key.length)
+					writeKey();
+				break;
+			case BTreeTrace.ENTRY_RID:
+				out.write(" [ " + a + " " + b + " ]");
+				if (--children <= 0)
+					out.write(lineSep);
+				break;
+			case BTreeTrace.LEAF_SPLIT:
+				if (all)
+					line("SPLIT leaf " + a + " into " + b);
+				break;
+			case BTreeTrace.INDEX_SPLIT:
+				if (all)
+					line("SPLIT index " + a + " into " + b);
+				break;
+			case BTreeTrace.NEW_ROOT:
+				if (all)
+					line("ROOT node " + a + " was " + b);
+				break;
+			case BTreeTrace.DROPPED:
+				if (all)
+					line("DROPPED " + a + " events");
+				break;
+			default:
+				throw new IOException("unknown event type " + type);
+			}
+		}
+	}
+
+	/*
+	 * write the string key read so far, quoted, and forget it
+	 */
+	private void writeKey() throws IOException {
+		String text = new String(key, 0, keyLength, "UTF-8");
+		StringBuilder quoted = new StringBuilder("   \"");
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if (c >= ' ' && c < 0x7f)
+				quoted.append(c);
+			else
+				quoted.append(String.format("\\u%04x", (int) c));
+		}
+		out.write(quoted.append('"').toString());
+		key = null;
+	}
+
+	private void line(String text) throws IOException {
+		if (times)
+			out.write(String.format("%.3f ", nanos / 1000.0));
+		out.write(text);
+		out.write(lineSep);
+	}
+
+	private long readVarLong() throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			v |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+		}
+		throw new IOException("bad varint");
+	}
+
+	private int readZigZag() throws IOException {
+		int v = (int) readVarLong();
+		return (v >>> 1) ^ -(v & 1);
+	}
+}
@@ -0,0 +1,650 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import diskmgr.*;
+import heap.*;
+import btree.*;
+
+/**
+ * IndexTest checks what BTreeFile does beyond the insert, delete and scan of
+ * BTTest, against a model of the entries kept in memory. Unlike BTTest it
+ * runs without a menu.
+ */
+class IndexDriver extends TestDriver implements GlobalConst {
+
+	private static final int N = 2000;
+
+	public IndexDriver() {
+		super("indextest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 20000, 100, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Index";
+	}
+
+	/*
+	 * estimateCount and estimateSelectivity: exact on one leaf, posting
+	 * lists included, nothing for an empty or backwards range, the whole tree
+	 * for an open one; on larger trees the errors against a scan are printed
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: count and selectivity estimates\n");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("ESTIMATE", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			if (file.estimateCount(null, null) != 0
+					|| file.estimateSelectivity(null, null) != 0.0) {
+				System.err.println("*** an empty index has estimates");
+				status = FAIL;
+			}
+
+			// few enough keys for the root leaf; with posting lists, the rids
+			// of each key go in its list and are counted through it
+			BTreeFile posting = new BTreeFile("ESTIMATEPOSTING",
+					AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE,
+					IndexFlags.POSTING_LISTS);
+			for (int i = 0; i < 40; i++) {
+				file.insert(new IntegerKey(i / 2), new RID(new PageId(i), 0));
+				for (int slot = 0; slot <= i % 7; slot++)
+					posting.insert(new IntegerKey(i / 2), new RID(
+							new PageId(i), slot));
+			}
+			BTreeFile[] files = { file, posting };
+			for (int f = 0; f < files.length; f++) {
+				for (int lo = -1; lo <= 21; lo++)
+					for (int hi = lo; hi <= 21; hi++) {
+						long exact = scanCount(files[f], new IntegerKey(lo),
+								new IntegerKey(hi));
+						long estimate = files[f].estimateCount(new IntegerKey(
+								lo), new IntegerKey(hi));
+						if (estimate != exact) {
+							System.err.println("*** estimate of [" + lo + ", "
+									+ hi + "] on one leaf"
+									+ (f == 0 ? "" : " of posting lists")
+									+ " is " + estimate + ", not " + exact);
+							status = FAIL;
+						}
+					}
+				files[f].close();
+			}
+
+			Random random = new Random(1);
+			for (int skewed = 0; skewed < 2; skewed++) {
+				file = new BTreeFile(skewed == 0 ? "UNIFORM" : "SKEWED",
+						AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+				for (int i = 0; i < 10 * N; i++) {
+					// skewed: most keys in a few long runs at the low end
+					int key = skewed == 0 ? random.nextInt(N) : (int) (N
+							* Math.pow(random.nextDouble(), 4));
+					file.insert(new IntegerKey(key), new RID(new PageId(i), 0));
+				}
+				if (!checkEstimates(file, skewed == 0 ? "uniform" : "skewed",
+						random))
+					status = FAIL;
+				file.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(1, status);
+		return status;
+	}
+
+	/*
+	 * posting lists: many rids per key, some deleted again, in full and
+	 * range scans
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: posting lists\n");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("POSTING", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE, IndexFlags.POSTING_LISTS);
+			TreeSet<Long> model = new TreeSet<Long>();
+			int keys = N / 10;
+			for (int slot = 0; slot < 300; slot++)
+				for (int i = 0; i < keys; i++)
+					if (slot < 10 || i % 17 == 0) {
+						file.insert(new IntegerKey(i), new RID(new PageId(i),
+								slot));
+						model.add(entry(i, slot));
+					}
+
+			for (int i = 0; i < keys; i += 3)
+				for (int slot = i % 2; slot < 300; slot += 2) {
+					boolean deleted = file.Delete(new IntegerKey(i), new RID(
+							new PageId(i), slot));
+					if (deleted != model.remove(entry(i, slot))) {
+						System.err.println("*** delete of " + i + " slot "
+								+ slot + " returned " + deleted);
+						status = FAIL;
+					}
+				}
+
+			BTFileScan scan = file.new_scan(null, null);
+			if (!sameEntries(scan, model))
+				status = FAIL;
+			scan.DestroyBTreeFileScan();
+
+			int lo = keys / 4, hi = keys / 2;
+			scan = file.new_scan(new IntegerKey(lo), new IntegerKey(hi));
+			if (!sameEntries(scan, model.subSet(entry(lo, 0), entry(hi + 1, 0))))
+				status = FAIL;
+			scan.DestroyBTreeFileScan();
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(2, status);
+		return status;
+	}
+
+	/*
+	 * unique index: insert refuses a key already there, insertIfAbsent
+	 * leaves it alone and upsert replaces its rid
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: unique index, insertIfAbsent and upsert\n");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("UNIQUE", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE, IndexFlags.UNIQUE);
+			TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+			for (int i = 0; i < N; i++) {
+				file.insert(new IntegerKey(i), new RID(new PageId(i), 0));
+				model.put(i, 0);
+			}
+
+			int refused = 0;
+			for (int i = 0; i < N; i += 7)
+				try {
+					file.insert(new IntegerKey(i), new RID(new PageId(i), 1));
+				} catch (InsertException e) {
+					refused++;
+				}
+			if (refused != (N + 6) / 7) {
+				System.err.println("*** insert took " + ((N + 6) / 7 - refused)
+						+ " keys already in the unique index");
+				status = FAIL;
+			}
+
+			for (int i = 0; i < N + 10; i += 3) {
+				boolean inserted = file.insertIfAbsent(new IntegerKey(i),
+						new RID(new PageId(i), 2));
+				if (inserted == model.containsKey(i)) {
+					System.err.println("*** insertIfAbsent of " + i
+							+ " returned " + inserted);
+					status = FAIL;
+				}
+				if (inserted)
+					model.put(i, 2);
+			}
+
+			for (int i = 0; i < N + 20; i += 2) {
+				boolean updated = file.upsert(new IntegerKey(i), new RID(
+						new PageId(i), 3));
+				if (updated != model.containsKey(i)) {
+					System.err.println("*** upsert of " + i + " returned "
+							+ updated);
+					status = FAIL;
+				}
+				model.put(i, 3);
+			}
+
+			List<Long> expected = new ArrayList<Long>();
+			for (Map.Entry<Integer, Integer> entry : model.entrySet())
+				expected.add(entry(entry.getKey(), entry.getValue()));
+			BTFileScan scan = file.new_scan(null, null);
+			if (!sameEntries(scan, expected))
+				status = FAIL;
+			scan.DestroyBTreeFileScan();
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(3, status);
+		return status;
+	}
+
+	/*
+	 * naive delete of keys the index does not hold, between its keys and
+	 * past the last leaf, finds nothing and leaves no page pinned
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: naive delete of absent keys\n");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("ABSENT", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			// even keys only, over many leaves
+			for (int i = 0; i < N; i++)
+				file.insert(new IntegerKey(2 * i), new RID(new PageId(i), 0));
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+
+			int[] absent = { -5, -1, 1, N - 1, N + 1, 2 * N - 1, 2 * N,
+					2 * N + 1, Integer.MAX_VALUE };
+			for (int i = 0; i < absent.length; i++)
+				try {
+					if (file.Delete(new IntegerKey(absent[i]), new RID(
+							new PageId(absent[i] / 2), 0))) {
+						System.err.println("*** deleted absent key " + absent[i]);
+						status = FAIL;
+					}
+				} catch (DeleteRecException e) {
+					// how a key past the last one is reported
+					if (absent[i] <= 2 * N - 2) {
+						System.err.println("*** delete of " + absent[i]
+								+ " threw " + e);
+						status = FAIL;
+					}
+				}
+			// a key that is there, under a rid that is not
+			if (file.Delete(new IntegerKey(2 * N - 2), new RID(new PageId(0), 0))) {
+				System.err.println("*** deleted an absent rid");
+				status = FAIL;
+			}
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != unpinned) {
+				System.err.println("*** deletes of absent keys left "
+						+ (unpinned - SystemDefs.JavabaseBM
+								.getNumUnpinnedBuffers()) + " pages pinned");
+				status = FAIL;
+			}
+
+			TreeSet<Long> model = new TreeSet<Long>();
+			for (int i = 0; i < N; i += 2)
+				model.add(entry(2 * i, i));
+			for (int i = 1; i < N; i += 2)
+				if (!file.Delete(new IntegerKey(2 * i), new RID(new PageId(i), 0))) {
+					System.err.println("*** delete of " + 2 * i + " found nothing");
+					status = FAIL;
+				}
+			BTFileScan scan = file.new_scan(null, null);
+			List<Long> got = new ArrayList<Long>();
+			KeyDataEntry entry;
+			while ((entry = scan.get_next()) != null)
+				got.add(entry(((IntegerKey) entry.key).getKey().intValue(),
+						((LeafData) entry.data).getData().pageNo.pid));
+			scan.DestroyBTreeFileScan();
+			if (!got.equals(new ArrayList<Long>(model))) {
+				System.err.println("*** scan after the deletes returned "
+						+ got.size() + " entries, not " + model.size());
+				status = FAIL;
+			}
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(4, status);
+		return status;
+	}
+
+	/*
+	 * an index larger than the buffer pool: pages evicted after an insert
+	 * changed them keep the change, and every key can be looked up again
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: inserts into a small buffer pool\n");
+		boolean status = OK;
+		try {
+			// long keys: a few hundred index pages, in a pool of 100 pages
+			BTreeFile file = new BTreeFile("SMALLPOOL", AttrType.attrString,
+					120, DeleteFashion.NAIVE_DELETE);
+			int n = 5 * N;
+			int[] keys = new int[n];
+			for (int i = 0; i < n; i++)
+				keys[i] = i;
+			Random random = new Random(35);
+			for (int i = n - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1), k = keys[i];
+				keys[i] = keys[j];
+				keys[j] = k;
+			}
+			for (int i = 0; i < n; i++)
+				file.insert(longKey(keys[i]), new RID(new PageId(keys[i]), 0));
+
+			int missing = 0;
+			for (int k = 0; k < n; k++)
+				if (scanCount(file, longKey(k), longKey(k)) != 1)
+					missing++;
+			if (missing != 0 || scanCount(file, null, null) != n) {
+				System.err.println("*** " + missing + " of " + n
+						+ " keys cannot be looked up");
+				status = FAIL;
+			}
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(5, status);
+		return status;
+	}
+
+	/*
+	 * page size: recorded in new indexes, another recorded size refuses the
+	 * open without leaving the header pinned, an unset slot reads as this
+	 * build's size, a header too old for the flags slot reads no flags, and
+	 * the projected height at this size is the measured one
+	 */
+	protected boolean test6() {
+		System.out.println("\n  Test 6: page size\n");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("PAGESIZE", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			Random random = new Random(41);
+			for (int n = 0; n <= 10 * N; n += n < 100 ? 100 : 10 * N - 100) {
+				while (file.stats().getEntries() < n) {
+					// BT.keyCompare subtracts, so keep the keys less than 2^31
+					// apart
+					int key = random.nextInt(1 << 30);
+					file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+				}
+				BTreeStats stats = file.stats();
+				if (stats.projectedHeight(MINIBASE_PAGESIZE) != stats.getHeight()
+						|| stats.projectedHeight(8 * MINIBASE_PAGESIZE) > stats
+								.getHeight()) {
+					System.err.println("*** " + n + " keys, height "
+							+ stats.getHeight() + ", projected "
+							+ stats.projectedHeight(MINIBASE_PAGESIZE) + " and "
+							+ stats.projectedHeight(8 * MINIBASE_PAGESIZE)
+							+ " for 8 times the page size");
+					status = FAIL;
+				}
+			}
+			if (file.getPageSize() != MINIBASE_PAGESIZE) {
+				System.err.println("*** a new index has " + file.getPageSize()
+						+ "-byte pages");
+				status = FAIL;
+			}
+			file.close();
+
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			setPageSizeSlot("PAGESIZE", 15, 1989);
+			try {
+				new BTreeFile("PAGESIZE").close();
+				System.err.println("*** an index of 32 KB pages was opened");
+				status = FAIL;
+			} catch (ConstructPageException e) {
+			}
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != unpinned) {
+				System.err.println("*** a refused open left pages pinned");
+				status = FAIL;
+			}
+
+			// as a file made before the slot was used has it
+			setPageSizeSlot("PAGESIZE", 0, 0);
+			file = new BTreeFile("PAGESIZE");
+			if (file.getPageSize() != MINIBASE_PAGESIZE
+					|| scanCount(file, null, null) != 10 * N) {
+				System.err.println("*** an index without a recorded page size"
+						+ " opens with " + file.getPageSize() + "-byte pages");
+				status = FAIL;
+			}
+			file.close();
+
+			// and one made before the flags were recorded
+			truncateSlots("PAGESIZE", 5);
+			file = new BTreeFile("PAGESIZE");
+			if (file.getFlags() != 0) {
+				System.err.println("*** an index without recorded flags has "
+						+ file.getFlags());
+				status = FAIL;
+			}
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(6, status);
+		return status;
+	}
+
+	/*
+	 * destroyFile: gives back every page the index took, with and without
+	 * posting lists, and leaves none pinned; nor does upsert keep the posting
+	 * pages of a list it replaces
+	 */
+	protected boolean test7() {
+		System.out.println("\n  Test 7: destroying an index\n");
+		boolean status = OK;
+		try {
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			int free = freePages();
+			for (int postings = 0; postings < 2; postings++) {
+				BTreeFile file = new BTreeFile("DESTROY", AttrType.attrInteger, 4,
+						DeleteFashion.NAIVE_DELETE, postings == 0 ? 0
+								: IndexFlags.POSTING_LISTS);
+				for (int i = 0; i < 10 * N; i++)
+					file.insert(new IntegerKey(i / 4), new RID(new PageId(i), i));
+				if (file.stats().getHeight() < 3) {
+					System.err.println("*** the index has "
+							+ file.stats().getHeight() + " levels");
+					status = FAIL;
+				}
+				file.destroyFile();
+				int left = free - freePages();
+				if (left != 0
+						|| SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != unpinned) {
+					System.err.println("*** destroyFile"
+							+ (postings == 0 ? "" : " with posting lists")
+							+ " left " + left + " pages allocated and "
+							+ (unpinned - SystemDefs.JavabaseBM
+									.getNumUnpinnedBuffers()) + " pinned");
+					status = FAIL;
+				}
+			}
+
+			// upsert replaces each key's posting list with one rid
+			BTreeFile file = new BTreeFile("UPSERT", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE, IndexFlags.POSTING_LISTS);
+			int keys = 20;
+			for (int i = 0; i < 300 * keys; i++)
+				file.insert(new IntegerKey(i % keys), new RID(new PageId(i), i));
+			List<Long> expected = new ArrayList<Long>();
+			for (int i = 0; i < keys; i++) {
+				file.upsert(new IntegerKey(i), new RID(new PageId(i), 0));
+				expected.add(entry(i, 0));
+			}
+			BTFileScan scan = file.new_scan(null, null);
+			if (!sameEntries(scan, expected))
+				status = FAIL;
+			scan.DestroyBTreeFileScan();
+			file.destroyFile();
+			if (freePages() != free) {
+				System.err.println("*** upsert left "
+						+ (free - freePages()) + " posting pages allocated");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(7, status);
+		return status;
+	}
+
+	/*
+	 * test7() as well as those TestDriver runs
+	 */
+	protected boolean runAllTests() {
+		boolean _passAll = super.runAllTests();
+		if (!test7())
+			_passAll = FAIL;
+		return _passAll;
+	}
+
+	/*
+	 * the number of pages the database can still allocate, counted by
+	 * allocating them one at a time and giving them back
+	 */
+	private static int freePages() throws Exception {
+		List<PageId> pages = new ArrayList<PageId>();
+		try {
+			while (true) {
+				PageId page = new PageId();
+				SystemDefs.JavabaseDB.allocate_page(page);
+				pages.add(page);
+			}
+		} catch (OutOfSpaceException e) {
+		}
+		for (int i = 0; i < pages.size(); i++)
+			SystemDefs.JavabaseDB.deallocate_page(pages.get(i));
+		return pages.size();
+	}
+
+	/*
+	 * write the header slot an index keeps its page size in, as another
+	 * build or an older one would have
+	 */
+	private static void setPageSizeSlot(String name, int length, int offset)
+			throws Exception {
+		PageId header = SystemDefs.JavabaseDB.get_file_entry(name);
+		Page page = new Page();
+		SystemDefs.JavabaseBM.pinPage(header, page, false);
+		new HFPage(page).setSlot(6, length, offset);
+		SystemDefs.JavabaseBM.unpinPage(header, true);
+	}
+
+	/*
+	 * cut the header's slot directory to count slots and leave garbage in
+	 * the slot after them, as a header older than that slot has
+	 */
+	private static void truncateSlots(String name, int count) throws Exception {
+		PageId header = SystemDefs.JavabaseDB.get_file_entry(name);
+		Page page = new Page();
+		SystemDefs.JavabaseBM.pinPage(header, page, false);
+		new HFPage(page).setSlot(count, 7, 7);
+		Convert.setShortValue((short) count, HFPage.SLOT_CNT, page.getpage());
+		SystemDefs.JavabaseBM.unpinPage(header, true);
+	}
+
+	private static StringKey longKey(int k) {
+		return new StringKey(String.format("%0100d", k));
+	}
+
+	/*
+	 * the properties every estimate has, whatever its error: none for a
+	 * backwards range, the whole index for an open one, selectivities
+	 * between 0 and 1. Prints the largest error against a scan.
+	 */
+	private boolean checkEstimates(BTreeFile file, String shape, Random random)
+			throws Exception {
+		long all = scanCount(file, null, null);
+		double open = file.estimateSelectivity(null, null);
+		if (Math.abs(open - 1.0) > 1e-9) {
+			System.err.println("*** selectivity of the whole " + shape
+					+ " index is " + open);
+			return false;
+		}
+		if (file.estimateCount(new IntegerKey(N / 2), new IntegerKey(N / 4)) != 0) {
+			System.err.println("*** backwards range has an estimate");
+			return false;
+		}
+
+		double worst = 0;
+		for (int i = 0; i < 100; i++) {
+			int lo = random.nextInt(N), hi = lo + random.nextInt(N / 2);
+			long exact = scanCount(file, new IntegerKey(lo), new IntegerKey(hi));
+			long estimate = file.estimateCount(new IntegerKey(lo),
+					new IntegerKey(hi));
+			double selectivity = file.estimateSelectivity(new IntegerKey(lo),
+					new IntegerKey(hi));
+			if (estimate < 0 || selectivity < 0 || selectivity > 1) {
+				System.err.println("*** estimates of [" + lo + ", " + hi
+						+ "] are " + estimate + " and " + selectivity);
+				return false;
+			}
+			if (exact > all / 100)
+				worst = Math.max(worst, Math.abs(estimate - exact)
+						/ (double) exact);
+		}
+		System.out.println("  " + shape + ": " + all + " entries, "
+				+ "largest count error " + Math.round(100 * worst) + "%");
+		return true;
+	}
+
+	/*
+	 * the number of entries a scan of [lo, hi] returns
+	 */
+	private static long scanCount(BTreeFile file, KeyClass lo, KeyClass hi)
+			throws Exception {
+		BTFileScan scan = file.new_scan(lo, hi);
+		long count = 0;
+		while (scan.get_next() != null)
+			count++;
+		scan.DestroyBTreeFileScan();
+		return count;
+	}
+
+	/*
+	 * the entry for key and slot, sorting by key first
+	 */
+	private static long entry(int key, int slot) {
+		return ((long) key << 32) | (slot & 0xffffffffL);
+	}
+
+	/*
+	 * true if the scan returns the expected entries, keys in order and
+	 * duplicates in any order
+	 */
+	private boolean sameEntries(IndexFileScan scan, Collection<Long> expected)
+			throws ScanIteratorException {
+		List<Long> got = new ArrayList<Long>();
+		int previous = Integer.MIN_VALUE;
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan
+				.get_next()) {
+			int key = ((IntegerKey) entry.key).getKey().intValue();
+			if (key < previous) {
+				System.err.println("*** scan returned " + key + " after "
+						+ previous);
+				return false;
+			}
+			previous = key;
+			got.add(entry(key, ((LeafData) entry.data).getData().slotNo));
+		}
+		List<Long> want = new ArrayList<Long>(expected);
+		Collections.sort(got);
+		Collections.sort(want);
+		if (!got.equals(want)) {
+			System.err.println("*** scan returned " + got.size()
+					+ " entries, not the " + want.size() + " expected");
+			return false;
+		}
+		return true;
+	}
+
+	private void report(int test, boolean status) {
+		System.out.println("  Test " + test
+				+ (status == OK ? " completed successfully." : " failed."));
+	}
+}
+
+public class IndexTest {
+
+	public static void main(String[] argvs) {
+		boolean status;
+		try {
+			status = new IndexDriver().runTests();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = TestDriver.FAIL;
+		}
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during index tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
@@ -0,0 +1,376 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * KeyTest checks the key types an index can be created with besides integers
+ * and strings: that their encodings order like the values they hold, decode
+ * back to the same values, are stored compactly, and scan in that order out
+ * of an index.
+ */
+class KeyDriver extends TestDriver implements GlobalConst {
+
+	private static final int N = 2000;
+
+	public KeyDriver() {
+		super("keytest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 5000, 100, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Key";
+	}
+
+	/*
+	 * CompositeKey: encodings order like the columns, decode to them, and a
+	 * prefix used as hi_key covers every key that extends it
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: composite keys\n");
+		boolean status = OK;
+		try {
+			AttrType[] types = { new AttrType(AttrType.attrInteger),
+					new AttrType(AttrType.attrString) };
+			Random random = new Random(27);
+			String[] names = { "", "\u0000", "a", "a\u0000", "a\u0000b", "ab",
+					"b", "\u00e9", "\uffff" };
+			int[] ints = { Integer.MIN_VALUE, -1, 0, 1, 7, Integer.MAX_VALUE };
+
+			List<Object[]> columns = new ArrayList<Object[]>();
+			for (int i = 0; i < ints.length; i++)
+				for (int j = 0; j < names.length; j++)
+					columns.add(new Object[] { Integer.valueOf(ints[i]),
+							names[j] });
+			for (int i = 0; i < columns.size(); i++) {
+				Object[] a = columns.get(i);
+				CompositeKey ka = composite(a);
+				Object[] decoded = new CompositeKey(ka.getKey()).decode(types);
+				if (!Arrays.equals(a, decoded)) {
+					System.err.println("*** " + Arrays.toString(a)
+							+ " decodes to " + Arrays.toString(decoded));
+					status = FAIL;
+				}
+				for (int j = 0; j < columns.size(); j++) {
+					Object[] b = columns.get(j);
+					if (Integer.signum(ka.compareTo(composite(b))) != Integer
+							.signum(compareColumns(a, b))) {
+						System.err.println("*** " + Arrays.toString(a) + " and "
+								+ Arrays.toString(b) + " compare wrongly");
+						status = FAIL;
+					}
+				}
+			}
+
+			BTreeFile file = new BTreeFile("COMPOSITE", KeyType.attrComposite,
+					64, DeleteFashion.NAIVE_DELETE);
+			TreeMap<String, Integer> model = new TreeMap<String, Integer>();
+			for (int i = 0; i < N; i++) {
+				int k = random.nextInt(50) - 25;
+				String name = names[random.nextInt(names.length)]
+						+ random.nextInt(10);
+				file.insert(composite(new Object[] { Integer.valueOf(k), name }),
+						new RID(new PageId(i), 0));
+				String mk = String.format("%08x", k ^ 0x80000000);
+				Integer old = model.get(mk);
+				model.put(mk, old == null ? 1 : old + 1);
+			}
+
+			// a full scan decodes in column order
+			BTFileScan scan = file.new_scan(null, null);
+			Object[] prev = null;
+			int count = 0;
+			KeyDataEntry entry;
+			while ((entry = scan.get_next()) != null) {
+				Object[] cols = ((CompositeKey) file.decodeKey(entry.key))
+						.decode(types);
+				if (prev != null && compareColumns(prev, cols) > 0) {
+					System.err.println("*** " + Arrays.toString(cols)
+							+ " scanned after " + Arrays.toString(prev));
+					status = FAIL;
+				}
+				prev = cols;
+				count++;
+			}
+			scan.DestroyBTreeFileScan();
+			if (count != N) {
+				System.err.println("*** scanned " + count + " of " + N);
+				status = FAIL;
+			}
+
+			// prefix scans on the integer column
+			for (int k = -26; k <= 25; k++) {
+				CompositeKey prefix = new CompositeKey().appendInt(k);
+				Integer expected = model.get(String.format("%08x",
+						k ^ 0x80000000));
+				int n = 0;
+				scan = file.new_scan(prefix, prefix);
+				while (scan.get_next() != null)
+					n++;
+				scan.DestroyBTreeFileScan();
+				if (n != (expected == null ? 0 : expected.intValue())) {
+					System.err.println("*** prefix " + k + " scans " + n
+							+ " keys, not " + expected);
+					status = FAIL;
+				}
+			}
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(1, status);
+		return status;
+	}
+
+	/*
+	 * LongKey and FixedBytesKey: keys compare like their values, and scan
+	 * out of an index in that order, stored compactly and decoded to the
+	 * values inserted
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: long and fixed width keys\n");
+		boolean status = OK;
+		try {
+			Random random = new Random(28);
+			long[] longs = { Long.MIN_VALUE, Long.MIN_VALUE + 1,
+					Integer.MIN_VALUE - 1L, -256, -1, 0, 1, 127, 128, 255,
+					Integer.MAX_VALUE + 1L, Long.MAX_VALUE - 1, Long.MAX_VALUE };
+			for (int i = 0; i < longs.length; i++)
+				for (int j = 0; j < longs.length; j++)
+					if (Integer.signum(new LongKey(longs[i])
+							.compareTo(new LongKey(longs[j]))) != (longs[i] < longs[j]
+							? -1 : longs[i] > longs[j] ? 1 : 0)) {
+						System.err.println("*** " + longs[i] + " and "
+								+ longs[j] + " compare wrongly");
+						status = FAIL;
+					}
+
+			BTreeFile file = new BTreeFile("LONG", KeyType.attrLong, 8,
+					DeleteFashion.NAIVE_DELETE);
+			TreeMap<Long, Integer> longModel = new TreeMap<Long, Integer>();
+			for (int i = 0; i < N; i++) {
+				long value = i < longs.length ? longs[i] : random.nextLong()
+						>> random.nextInt(64);
+				file.insert(new LongKey(value), new RID(new PageId(i), 0));
+				Integer old = longModel.get(value);
+				longModel.put(value, old == null ? 1 : old + 1);
+			}
+			List<Object> expected = new ArrayList<Object>();
+			for (Map.Entry<Long, Integer> e : longModel.entrySet())
+				for (int n = 0; n < e.getValue(); n++)
+					expected.add(e.getKey());
+			if (!scansAs(file, null, null, expected))
+				status = FAIL;
+			expected.clear();
+			for (Map.Entry<Long, Integer> e : longModel.subMap(-1000L, true,
+					1000L, true).entrySet())
+				for (int n = 0; n < e.getValue(); n++)
+					expected.add(e.getKey());
+			if (!scansAs(file, new LongKey(-1000), new LongKey(1000), expected))
+				status = FAIL;
+			file.close();
+
+			// bytes drawn mostly from the ends of the range
+			int width = 6;
+			byte[] ends = { 0, 1, 0x7f, (byte) 0x80, (byte) 0xfe, (byte) 0xff };
+			file = new BTreeFile("BYTES", KeyType.attrFixedBytes, width,
+					DeleteFashion.NAIVE_DELETE);
+			List<byte[]> bytesModel = new ArrayList<byte[]>();
+			for (int i = 0; i < N; i++) {
+				byte[] value = new byte[width];
+				for (int b = 0; b < width; b++)
+					value[b] = ends[random.nextInt(ends.length)];
+				file.insert(new FixedBytesKey(value), new RID(new PageId(i), 0));
+				bytesModel.add(value);
+			}
+			Collections.sort(bytesModel, new Comparator<byte[]>() {
+				public int compare(byte[] a, byte[] b) {
+					return compareUnsigned(a, b);
+				}
+			});
+			expected.clear();
+			for (int i = 0; i < bytesModel.size(); i++)
+				expected.add(bytesModel.get(i));
+			if (!scansAs(file, null, null, expected))
+				status = FAIL;
+			try {
+				file.insert(new FixedBytesKey(new byte[width + 1]), new RID());
+				System.err.println("*** a key of the wrong width was inserted");
+				status = FAIL;
+			} catch (KeyNotMatchException e) {
+			}
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(2, status);
+		return status;
+	}
+
+	/*
+	 * byte strings of every length up to 9, mostly of the bytes at the ends
+	 * of the range and of the 6-bit digits the stored form cuts them into:
+	 * stored in order and decoded back, and a prefix scan returns the keys
+	 * that start with the prefix, wherever it ends within a digit
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: byte strings of every length\n");
+		boolean status = OK;
+		try {
+			Random random = new Random(29);
+			byte[] ends = { 0, 1, 0x3f, 0x40, 0x7f, (byte) 0x80, (byte) 0xfe,
+					(byte) 0xff };
+			BTreeFile file = new BTreeFile("LENGTHS", KeyType.attrComposite, 9,
+					DeleteFashion.NAIVE_DELETE);
+			List<byte[]> model = new ArrayList<byte[]>();
+			for (int i = 0; i < N; i++) {
+				byte[] value = new byte[1 + random.nextInt(9)];
+				for (int b = 0; b < value.length; b++)
+					value[b] = ends[random.nextInt(ends.length)];
+				file.insert(new CompositeKey(value), new RID(new PageId(i), 0));
+				model.add(value);
+			}
+			Collections.sort(model, new Comparator<byte[]>() {
+				public int compare(byte[] a, byte[] b) {
+					return compareUnsigned(a, b);
+				}
+			});
+			if (!scansAs(file, null, null, new ArrayList<Object>(model)))
+				status = FAIL;
+
+			for (int i = 0; i < 100 && status == OK; i++) {
+				byte[] key = model.get(random.nextInt(model.size()));
+				byte[] prefix = Arrays.copyOf(key, 1 + random.nextInt(key.length));
+				List<Object> expected = new ArrayList<Object>();
+				for (int j = 0; j < model.size(); j++)
+					if (model.get(j).length >= prefix.length
+							&& compareUnsigned(Arrays.copyOf(model.get(j),
+									prefix.length), prefix) == 0)
+						expected.add(model.get(j));
+				if (!scansAs(file, new CompositeKey(prefix), new CompositeKey(
+						prefix), expected)) {
+					System.err.println("*** in the prefix scan of "
+							+ new CompositeKey(prefix));
+					status = FAIL;
+				}
+			}
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(3, status);
+		return status;
+	}
+
+	/*
+	 * a scan of [lo, hi] returns the expected values, as Longs or byte
+	 * arrays, in order, with the stored keys in order too, each character
+	 * one a page stores in one byte (1..127), and as many characters as the
+	 * encoding takes: 10 for a long, 4 for each 3 bytes otherwise
+	 */
+	private static boolean scansAs(BTreeFile file, KeyClass lo, KeyClass hi,
+			List<Object> expected) throws Exception {
+		BTFileScan scan = file.new_scan(lo, hi);
+		int i = 0;
+		boolean same = true;
+		String prev = "";
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			KeyClass key = file.decodeKey(entry.key);
+			Object value = key instanceof LongKey ? (Object) Long
+					.valueOf(((LongKey) key).getKey())
+					: key instanceof FixedBytesKey ? ((FixedBytesKey) key)
+							.getKey() : ((CompositeKey) key).getKey();
+			if (i >= expected.size() || !(value instanceof byte[] ? Arrays
+					.equals((byte[]) value, (byte[]) expected.get(i)) : value
+					.equals(expected.get(i)))) {
+				System.err.println("*** scan entry " + i + " is " + key);
+				same = false;
+				break;
+			}
+			String stored = ((StringKey) entry.key).getKey();
+			boolean oneByte = true;
+			for (int c = 0; c < stored.length(); c++)
+				oneByte &= stored.charAt(c) >= 1 && stored.charAt(c) <= 127;
+			int length = value instanceof byte[] ? (8 * ((byte[]) value).length + 5) / 6
+					: 10;
+			if (!oneByte || stored.compareTo(prev) < 0
+					|| stored.length() != length) {
+				System.err.println("*** " + key + " is stored as "
+						+ stored.length() + " characters, first "
+						+ (int) stored.charAt(0));
+				same = false;
+				break;
+			}
+			prev = stored;
+			i++;
+		}
+		scan.DestroyBTreeFileScan();
+		if (same && i != expected.size()) {
+			System.err.println("*** scanned " + i + " of " + expected.size());
+			same = false;
+		}
+		return same;
+	}
+
+	private static CompositeKey composite(Object[] columns) {
+		return new CompositeKey().appendInt(((Integer) columns[0]).intValue())
+				.appendString((String) columns[1]);
+	}
+
+	/*
+	 * signed integers, then strings by their UTF-8 bytes
+	 */
+	private static int compareColumns(Object[] a, Object[] b) {
+		int cmp = ((Integer) a[0]).compareTo((Integer) b[0]);
+		if (cmp != 0)
+			return cmp;
+		return compareUnsigned(utf8((String) a[1]), utf8((String) b[1]));
+	}
+
+	private static int compareUnsigned(byte[] a, byte[] b) {
+		for (int i = 0; i < Math.min(a.length, b.length); i++)
+			if (a[i] != b[i])
+				return (a[i] & 0xff) - (b[i] & 0xff);
+		return a.length - b.length;
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+
+	private void report(int test, boolean status) {
+		System.out.println("  Test " + test
+				+ (status == OK ? " completed successfully." : " failed."));
+	}
+}
+
+public class KeyTest {
+
+	public static void main(String[] argvs) {
+		boolean status;
+		try {
+			status = new KeyDriver().runTests();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = TestDriver.FAIL;
+		}
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during key tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
@@ -0,0 +1,544 @@
+package tests;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+import javax.management.*;
+
+import global.*;
+import bench.*;
+import btree.*;
+
+/**
+ * MonitorTest checks the classes that measure an index rather than change
+ * it: the benchmark's latency histogram and workload driver, the metrics,
+ * the operation trace and the tree statistics.
+ */
+class MonitorDriver extends TestDriver implements GlobalConst {
+
+	public MonitorDriver() {
+		super("monitortest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 5000, 100, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Monitor";
+	}
+
+	/*
+	 * LatencyHistogram: percentiles within a bucket width of the exact ones,
+	 * add and reset
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: latency histogram\n");
+		boolean status = OK;
+		Random random = new Random(31);
+		LatencyHistogram histogram = new LatencyHistogram();
+		LatencyHistogram other = new LatencyHistogram();
+		long[] values = new long[20000];
+		for (int i = 0; i < values.length; i++) {
+			// spread over several powers of two, a few far out
+			values[i] = i % 1000 == 0 ? 5000000 + random.nextInt(1000000)
+					: (long) Math.exp(random.nextDouble() * 12);
+			(i % 2 == 0 ? histogram : other).record(values[i]);
+		}
+		histogram.add(other);
+		Arrays.sort(values);
+
+		if (histogram.count() != values.length
+				|| histogram.max() != values[values.length - 1]) {
+			System.err.println("*** histogram holds " + histogram.count()
+					+ " values up to " + histogram.max());
+			status = FAIL;
+		}
+		double[] ps = { 0, 1, 50, 90, 99, 99.9, 100 };
+		for (int i = 0; i < ps.length; i++) {
+			long exact = values[Math.max(0,
+					(int) Math.ceil(values.length * ps[i] / 100.0) - 1)];
+			long reported = histogram.percentile(ps[i]);
+			// the bucket's upper bound: never below, at most 1/16 above
+			if (reported < exact || reported > exact + exact / 16 + 1) {
+				System.err.println("*** p" + ps[i] + " is " + reported
+						+ ", exact " + exact);
+				status = FAIL;
+			}
+		}
+
+		histogram.reset();
+		if (histogram.count() != 0 || histogram.percentile(50) != 0
+				|| histogram.max() != 0) {
+			System.err.println("*** reset left values in the histogram");
+			status = FAIL;
+		}
+		report(1, status);
+		return status;
+	}
+
+	/*
+	 * WorkloadDriver: a scripted workload, absent deletes included, and a
+	 * generated one run through and report every operation
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: workload driver\n");
+		boolean status = OK;
+		try {
+			File script = File.createTempFile("workload", ".txt");
+			PrintWriter out = new PrintWriter(new FileWriter(script));
+			out.println("# inserts, deletes of keys there and not, lookups, scans");
+			for (int k = 0; k < 1000; k++)
+				out.println("insert " + k);
+			for (int k = 0; k < 1000; k += 3)
+				out.println("delete " + k);
+			// deleted already
+			for (int k = 0; k < 1000; k += 6)
+				out.println("delete " + k);
+			for (int k = 0; k < 100; k++)
+				out.println("lookup " + k);
+			out.println("scan 10 500");
+			out.close();
+			if (!reports(new String[] { script.getPath(), "-pool", "50" }, new int[] { 1000, 501, 100, 1 }))
+				status = FAIL;
+
+			out = new PrintWriter(new FileWriter(script));
+			// no deletes: with several threads, a delete of a key past the
+			// last one could run first, and NaiveDelete throws for those
+			out.println("generate records=2000 ops=5000 dist=zipfian "
+					+ "read=0.6 insert=0.3 scan=0.1 scanlen=20");
+			out.close();
+			if (!reports(new String[] { script.getPath(), "-threads", "4",
+					"-replacer", "LRU" }, null))
+				status = FAIL;
+			script.delete();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		// the driver closed the database it opened in place of ours
+		new SystemDefs(dbpath, 5000, 100, "Clock");
+		report(2, status);
+		return status;
+	}
+
+	/*
+	 * BTreeMetrics: the counters of a known run of inserts, a scan and
+	 * deletes, read directly and through the MBean
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: metrics\n");
+		boolean status = OK;
+		try {
+			BTreeMetrics.install("Clock");
+			BTreeMetrics metrics = BTreeMetrics.get();
+			metrics.reset();
+			BTreeFile file = new BTreeFile("METRICS", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			int n = 5000;
+			for (int i = 0; i < n; i++)
+				file.insert(new IntegerKey(i * 7919 % n), new RID(new PageId(i),
+						0));
+			BTFileScan scan = file.new_scan(null, null);
+			while (scan.get_next() != null)
+				;
+			scan.DestroyBTreeFileScan();
+			for (int i = 0; i < n; i += 2)
+				file.Delete(new IntegerKey(i), new RID(new PageId(i), 0));
+			file.close();
+
+			long[][] expected = {
+					{ metrics.getInserts(), n },
+					{ metrics.getDeletes(), n / 2 },
+					{ metrics.getSeeks(), 1 },
+					{ metrics.getScans(), 1 },
+					// the first leaf, and one more for every split
+					{ metrics.getScanLeaves(), metrics.getLeafSplits() + 1 },
+					{ metrics.getPins(), metrics.getUnpins() } };
+			String[] names = { "inserts", "deletes", "seeks", "scans",
+					"scan leaves", "pins" };
+			for (int i = 0; i < expected.length; i++)
+				if (expected[i][0] != expected[i][1]) {
+					System.err.println("*** " + names[i] + " is "
+							+ expected[i][0] + ", not " + expected[i][1]);
+					status = FAIL;
+				}
+			// the pins of new pages are neither hits nor misses
+			if (metrics.getBufferHits() + metrics.getBufferMisses() >= metrics
+					.getPins() || metrics.getBufferHits() == 0) {
+				System.err.println("*** " + metrics.getBufferHits() + " hits and "
+						+ metrics.getBufferMisses() + " misses in "
+						+ metrics.getPins() + " pins");
+				status = FAIL;
+			}
+			if (metrics.getDescents() < n + n / 2 || metrics.getIndexSplits() < 1) {
+				System.err.println("*** " + metrics.getDescents()
+						+ " descents and " + metrics.getIndexSplits()
+						+ " index splits");
+				status = FAIL;
+			}
+
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			Object inserts = server.getAttribute(new ObjectName(
+					BTreeMetrics.OBJECT_NAME), "Inserts");
+			if (!Long.valueOf(n).equals(inserts)) {
+				System.err.println("*** the MBean reports " + inserts
+						+ " inserts");
+				status = FAIL;
+			}
+
+			metrics.reset();
+			if (metrics.getPins() != 0 || metrics.getInserts() != 0
+					|| metrics.latencyMicros("insert", 50) != 0) {
+				System.err.println("*** reset left counts behind");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(3, status);
+		return status;
+	}
+
+	/*
+	 * BTreeTrace and TraceDecoder: the trace of a run of inserts holds its
+	 * splits and descents, and an event mask keeps only the types asked for
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: binary trace\n");
+		boolean status = OK;
+		try {
+			BTreeMetrics metrics = BTreeMetrics.get();
+			File trace = File.createTempFile("trace", ".bin");
+			for (int masked = 0; masked < 2; masked++) {
+				metrics.reset();
+				BTreeTrace.setEvents(masked == 0 ? BTreeTrace.ALL_EVENTS
+						: 1 << BTreeTrace.LEAF_SPLIT);
+				// big enough that no event is dropped
+				BTreeTrace.start(trace.getPath(), 1 << 20);
+				BTreeFile file = new BTreeFile("TRACE" + masked,
+						AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+				for (int i = 0; i < 3000; i++)
+					file.insert(new IntegerKey(i * 7919 % 3000), new RID(
+							new PageId(i), 0));
+				// searches trace their descents, inserts only their splits
+				for (int i = 0; i < 500; i++) {
+					BTFileScan scan = file.new_scan(new IntegerKey(i * 6),
+							new IntegerKey(i * 6));
+					scan.get_next();
+					scan.DestroyBTreeFileScan();
+				}
+				file.close();
+				BTreeTrace.stop();
+				BTreeTrace.setEvents(BTreeTrace.ALL_EVENTS);
+
+				Map<String, Integer> lines = decode(trace, true);
+				long[][] expected = {
+						{ count(lines, "SPLIT leaf"), metrics.getLeafSplits() },
+						{ count(lines, "SPLIT index"),
+								masked == 0 ? metrics.getIndexSplits() : 0 },
+						{ count(lines, "DROPPED"), 0 },
+						// the root and a leaf for each search
+						{ count(lines, "VISIT"), masked == 0 ? 2 * 500 : 0 } };
+				for (int i = 0; i < expected.length; i++)
+					if (expected[i][0] != expected[i][1]) {
+						System.err.println("*** " + (masked == 0 ? "" : "masked ")
+								+ "trace has " + lines + " for "
+								+ metrics.getLeafSplits() + " leaf and "
+								+ metrics.getIndexSplits() + " index splits");
+						status = FAIL;
+						break;
+					}
+				if (masked == 0 && count(decode(trace, false), "SPLIT") != 0) {
+					System.err.println("*** splits decoded without -all");
+					status = FAIL;
+				}
+			}
+			trace.delete();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(4, status);
+		return status;
+	}
+
+	/*
+	 * decode a trace, counting its lines by their first two words
+	 */
+	private static Map<String, Integer> decode(File trace, boolean all)
+			throws IOException {
+		Map<String, Integer> lines = new TreeMap<String, Integer>();
+		String[] split = decodeText(trace, all).split("\\r?\\n");
+		for (int i = 0; i < split.length; i++) {
+			String[] f = split[i].trim().split("\\s+");
+			if (f[0].length() == 0)
+				continue;
+			String kind = f[0].equals("VISIT") || f[0].equals("DROPPED") ? f[0]
+					: f[0] + " " + f[1];
+			Integer n = lines.get(kind);
+			lines.put(kind, n == null ? 1 : n + 1);
+		}
+		return lines;
+	}
+
+	private static String decodeText(File trace, boolean all)
+			throws IOException {
+		StringWriter text = new StringWriter();
+		InputStream in = new FileInputStream(trace);
+		try {
+			new TraceDecoder(in, text, all, false).decode();
+		} finally {
+			in.close();
+		}
+		return text.toString();
+	}
+
+	private static long count(Map<String, Integer> lines, String kind) {
+		long n = 0;
+		for (Map.Entry<String, Integer> e : lines.entrySet())
+			if (e.getKey().startsWith(kind))
+				n += e.getValue();
+		return n;
+	}
+
+	/*
+	 * TraceDecoder: a leaf's string keys come out quoted, with quotes,
+	 * backslashes and non-ASCII characters escaped, and the hash codes of a
+	 * version 1 trace as #hash
+	 */
+	protected boolean test6() {
+		System.out.println("\n  Test 6: string keys in a trace\n");
+		boolean status = OK;
+		try {
+			File trace = File.createTempFile("trace", ".bin");
+			byte[] key = "a\"\u00e9 key\\z".getBytes("UTF-8");
+			List<int[]> events = new ArrayList<int[]>();
+			events.add(new int[] { BTreeTrace.LEAF_CHILDREN, 12, 2 });
+			events.add(new int[] { BTreeTrace.ENTRY_KEY, 7, 0 });
+			events.add(new int[] { BTreeTrace.ENTRY_RID, 3, 0 });
+			events.add(new int[] { BTreeTrace.ENTRY_KEY, key.length, 1 });
+			for (int i = 0; i < key.length; i += 8)
+				events.add(new int[] { BTreeTrace.KEY_BYTES, word(key, i),
+						word(key, i + 4) });
+			events.add(new int[] { BTreeTrace.ENTRY_RID, 4, 0 });
+			String[] expected = { "\"a\\\"\\u00e9 key\\\\z\"", "#12345" };
+			for (int version = 2; version >= 1; version--) {
+				if (version == 1) {
+					// as version 1 traced the hash code, in a
+					events.subList(3, events.size() - 1).clear();
+					events.add(3, new int[] { BTreeTrace.ENTRY_KEY, 12345, 1 });
+				}
+				writeTrace(trace, version, events);
+				String text = decodeText(trace, false);
+				if (!text.startsWith("LEAF CHILDREN 12 nodes")
+						|| !text.contains("   7") || !text.contains("   "
+						+ expected[2 - version])) {
+					System.err.println("*** version " + version
+							+ " trace decodes to " + text);
+					status = FAIL;
+				}
+			}
+			trace.delete();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(6, status);
+		return status;
+	}
+
+	/*
+	 * write a trace by hand, as BTreeTrace would: the header, then each event
+	 * of { type, a, b } with no time between them
+	 */
+	private static void writeTrace(File trace, int version, List<int[]> events)
+			throws IOException {
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(trace));
+		try {
+			out.writeInt(BTreeTrace.MAGIC);
+			out.writeByte(version);
+			out.writeLong(System.currentTimeMillis());
+			for (int i = 0; i < events.size(); i++) {
+				int[] event = events.get(i);
+				out.writeByte(event[0]);
+				out.writeByte(0);
+				for (int j = 1; j <= 2; j++) {
+					// zig-zag, then 7 bits at a time
+					long v = ((event[j] << 1) ^ (event[j] >> 31)) & 0xffffffffL;
+					for (; v >= 0x80; v >>>= 7)
+						out.writeByte((int) (v & 0x7f) | 0x80);
+					out.writeByte((int) v);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/*
+	 * four bytes from from on, big-endian, zeros past the end
+	 */
+	private static int word(byte[] bytes, int from) {
+		int w = 0;
+		for (int i = from; i < from + 4; i++)
+			w = w << 8 | (i < bytes.length ? bytes[i] & 0xff : 0);
+		return w;
+	}
+
+	/*
+	 * BTreeFile.stats: the shape, entries and duplicate runs of a tree built
+	 * to be known, read without bringing pages into the buffer pool, and only
+	 * the pages still there read through it
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: tree statistics\n");
+		boolean status = OK;
+		try {
+			BTreeMetrics metrics = BTreeMetrics.get();
+			BTreeFile file = new BTreeFile("STATS", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			if (file.stats().getEntries() != 0 || file.stats().getHeight() != 0) {
+				System.err.println("*** an empty tree has statistics");
+				status = FAIL;
+			}
+			metrics.reset();
+			// 3000 distinct keys, every fifth of them three times
+			int n = 0;
+			for (int i = 0; i < 3000; i++)
+				for (int d = 0; d < (i % 5 == 0 ? 3 : 1); d++)
+					file.insert(new IntegerKey(i * 7919 % 3000), new RID(
+							new PageId(i), n++));
+			long leafSplits = metrics.getLeafSplits();
+			long indexSplits = metrics.getIndexSplits();
+			// push the tree out of the pool
+			BTreeFile filler = new BTreeFile("FILLER", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			for (int i = 0; i < 20000; i++)
+				filler.insert(new IntegerKey(i), new RID(new PageId(i), 0));
+			filler.close();
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			long reads = metrics.getDiskReads();
+			long misses = metrics.getBufferMisses();
+
+			BTreeStats stats = file.stats();
+			long[][] expected = { { stats.getEntries(), n },
+					{ stats.getDistinctKeys(), 3000 },
+					{ stats.getDuplicatedKeys(), 600 },
+					{ stats.getMaxDuplicateRun(), 3 },
+					{ stats.getLeafPages(), leafSplits + 1 },
+					// a page for every index split and every root over the leaves
+					{ stats.getIndexPages(),
+							indexSplits + stats.getHeight() - 1 },
+					{ sum(stats.getLevelPages()),
+							stats.getLeafPages() + stats.getIndexPages() },
+					{ stats.getLevelPages().length, stats.getHeight() },
+					{ SystemDefs.JavabaseBM.getNumUnpinnedBuffers(), unpinned },
+					{ metrics.getBufferMisses(), misses } };
+			String[] names = { "entries", "distinct keys", "duplicated keys",
+					"longest run", "leaves", "index pages", "pages",
+					"levels", "unpinned frames", "buffer misses" };
+			for (int i = 0; i < expected.length; i++)
+				if (expected[i][0] != expected[i][1]) {
+					System.err.println("*** " + names[i] + " is "
+							+ expected[i][0] + ", not " + expected[i][1]);
+					status = FAIL;
+				}
+			if (!stats.isResidencyKnown()
+					|| stats.getPooledPages() >= stats.getLeafPages()) {
+				System.err.println("*** " + stats.getPooledPages()
+						+ " pages read through the pool, of a tree pushed out"
+						+ " of it; frames read: " + stats.isResidencyKnown());
+				status = FAIL;
+			}
+			if (metrics.getDiskReads() - reads < stats.getLeafPages()
+					|| stats.getMinLeafFill() <= 0
+					|| stats.getMinLeafFill() > stats.getAverageLeafFill()
+					|| stats.getAverageLeafFill() > 1) {
+				System.err.println("*** " + (metrics.getDiskReads() - reads)
+						+ " pages read for " + stats);
+				status = FAIL;
+			}
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(5, status);
+		return status;
+	}
+
+	private static long sum(int[] values) {
+		long sum = 0;
+		for (int i = 0; i < values.length; i++)
+			sum += values[i];
+		return sum;
+	}
+
+	/*
+	 * run WorkloadDriver and check its report: the operation count, and if
+	 * counts is given, the count of each of insert, delete, lookup and scan
+	 */
+	private boolean reports(String[] args, int[] counts) {
+		PrintStream stdout = System.out;
+		ByteArrayOutputStream captured = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(captured, true));
+		try {
+			WorkloadDriver.main(args);
+		} finally {
+			System.setOut(stdout);
+		}
+		String[] lines = captured.toString().split("\\r?\\n");
+		int total = 0;
+		for (int i = 0; i < lines.length; i++) {
+			String[] f = lines[i].trim().split("\\s+");
+			int o = Arrays.asList("insert", "delete", "lookup", "scan").indexOf(
+					f[0]);
+			if (o < 0)
+				continue;
+			int n = Integer.parseInt(f[1]);
+			total += n;
+			if (counts != null && n != counts[o]) {
+				System.err.println("*** " + f[0] + " ran " + n + " times, not "
+						+ counts[o]);
+				return false;
+			}
+		}
+		int expected = counts != null ? counts[0] + counts[1] + counts[2]
+				+ counts[3] : 5000;
+		boolean summary = false;
+		for (int i = 0; i < lines.length; i++)
+			summary |= lines[i].startsWith(expected + " operations");
+		if (!summary || total != expected) {
+			System.err.println("*** the report of " + expected
+					+ " operations is:\n" + captured);
+			return false;
+		}
+		return true;
+	}
+
+	private void report(int test, boolean status) {
+		System.out.println("  Test " + test
+				+ (status == OK ? " completed successfully." : " failed."));
+	}
+}
+
+public class MonitorTest {
+
+	public static void main(String[] argvs) {
+		boolean status;
+		try {
+			status = new MonitorDriver().runTests();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = TestDriver.FAIL;
+		}
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during monitor tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
@@ -0,0 +1,432 @@
+package tests;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * ScanTest checks the ways to read a range of an index besides new_scan
+ * against what new_scan returns for the same range.
+ */
+class ScanDriver extends TestDriver implements GlobalConst {
+
+	private static final int N = 20000;
+
+	/** an index of N entries on N / 4 keys, and one with posting lists */
+	private BTreeFile plain, posting;
+
+	public ScanDriver() {
+		super("scantest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 20000, 100, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Scan";
+	}
+
+	protected boolean runAllTests() {
+		boolean status = OK;
+		try {
+			plain = new BTreeFile("PLAIN", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			posting = new BTreeFile("POSTING", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE, IndexFlags.POSTING_LISTS);
+			Random random = new Random(36);
+			for (int i = 0; i < N; i++) {
+				int key = random.nextInt(N / 4);
+				plain.insert(new IntegerKey(key), new RID(new PageId(key), i));
+				posting.insert(new IntegerKey(key), new RID(new PageId(key), i));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (!super.runAllTests())
+			status = FAIL;
+		try {
+			plain.close();
+			posting.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		return status;
+	}
+
+	/*
+	 * parallelScan: the entries of new_scan, in the same key order, for any
+	 * parallelism, and split into parts when the range covers several leaves
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: parallel scans\n");
+		boolean status = OK;
+		try {
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			int[][] ranges = { { -1, -1 }, { 10, 9 }, { 100, 100 },
+					{ 0, N / 4 }, { N / 8, N / 8 + 50 }, { N / 5, N } };
+			int[] parallelism = { 1, 4, 16 };
+			BTreeFile[] files = { plain, posting };
+			for (int f = 0; f < files.length; f++)
+				for (int r = 0; r <= ranges.length; r++)
+					for (int p = 0; p < parallelism.length; p++) {
+						KeyClass lo = r == ranges.length ? null : new IntegerKey(
+								ranges[r][0]);
+						KeyClass hi = r == ranges.length ? null : new IntegerKey(
+								ranges[r][1]);
+						List<Long> expected = scan(files[f], lo, hi);
+						List<Long> got = entries(files[f].parallelScan(lo, hi,
+								parallelism[p]));
+						if (!got.equals(expected)) {
+							System.err.println("*** parallel scan of " + lo
+									+ ".." + hi + " returned " + got.size()
+									+ " entries, new_scan " + expected.size());
+							status = FAIL;
+						}
+					}
+
+			Spliterator<KeyDataEntry> whole = plain.parallelScan(null, null, 8)
+					.spliterator();
+			if (whole.trySplit() == null) {
+				System.err.println("*** a scan of the whole index did not split");
+				status = FAIL;
+			}
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != unpinned) {
+				System.err.println("*** parallel scans left pages pinned");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(1, status);
+		return status;
+	}
+
+	/*
+	 * stream: sequential and parallel streams return what new_scan does,
+	 * short-circuiting or closing one leaves nothing pinned, and splitting it
+	 * to exhaustion cuts the range into leaves without losing an entry
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: streams\n");
+		boolean status = OK;
+		try {
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			KeyClass lo = new IntegerKey(N / 10), hi = new IntegerKey(N / 5);
+			List<Long> expected = scan(posting, lo, hi);
+			if (!entries(posting.stream(lo, hi)).equals(expected)
+					|| !entries(posting.stream(lo, hi).parallel()).equals(
+							expected)
+					|| !entries(plain.stream(null, null)).equals(
+							scan(plain, null, null))) {
+				System.err.println("*** a stream differs from new_scan");
+				status = FAIL;
+			}
+
+			Optional<KeyDataEntry> first = plain.stream(lo, hi).findFirst();
+			if (!first.isPresent() || entry(first.get()) != scan(plain, lo, hi)
+					.get(0)) {
+				System.err.println("*** findFirst returned " + first);
+				status = FAIL;
+			}
+			plain.stream(null, null).limit(5).count();
+			try (Stream<KeyDataEntry> stream = plain.stream(null, null)) {
+				Iterator<KeyDataEntry> it = stream.iterator();
+				it.next();
+				it.next();
+			}
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != unpinned) {
+				System.err.println("*** a stream ended early left pages pinned");
+				status = FAIL;
+			}
+
+			List<Spliterator<KeyDataEntry>> parts;
+			parts = new ArrayList<Spliterator<KeyDataEntry>>();
+			split(plain.stream(null, null).spliterator(), parts);
+			final List<Long> joined = new ArrayList<Long>();
+			for (Spliterator<KeyDataEntry> part : parts)
+				part.forEachRemaining(new Consumer<KeyDataEntry>() {
+					public void accept(KeyDataEntry entry) {
+						joined.add(entry(entry));
+					}
+				});
+			int leaves = plain.stats().getLeafPages();
+			if (parts.size() < 2 || parts.size() > leaves
+					|| !joined.equals(scan(plain, null, null))) {
+				System.err.println("*** " + parts.size() + " parts of " + leaves
+						+ " leaves hold " + joined.size() + " entries");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(2, status);
+		return status;
+	}
+
+	/*
+	 * IntBatchScan: the entries of new_scan whatever the batch size, with
+	 * open and empty ranges, and nothing left pinned once closed
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: batch scans\n");
+		boolean status = OK;
+		try {
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			int[][] ranges = { { Integer.MIN_VALUE, Integer.MAX_VALUE },
+					{ 10, 9 }, { -5, -1 }, { 100, 100 }, { N / 8, N / 8 + 50 },
+					{ N / 5, Integer.MAX_VALUE } };
+			int[] sizes = { 1, 7, 1000 };
+			BTreeFile[] files = { plain, posting };
+			for (int f = 0; f < files.length; f++)
+				for (int r = 0; r < ranges.length; r++)
+					for (int b = 0; b < sizes.length; b++) {
+						int lo = ranges[r][0], hi = ranges[r][1];
+						// BT.keyCompare subtracts, so leave new_scan's ends open
+						List<Long> expected = scan(files[f],
+								lo == Integer.MIN_VALUE ? null : new IntegerKey(lo),
+								hi == Integer.MAX_VALUE ? null : new IntegerKey(hi));
+						List<Long> got = new ArrayList<Long>();
+						// slotNos is the shortest array, and sets the batch size
+						int[] keys = new int[sizes[b] + 3];
+						int[] pageNos = new int[sizes[b] + 1];
+						int[] slotNos = new int[sizes[b]];
+						try (IntBatchScan scan = files[f].batchScan(lo, hi)) {
+							int n;
+							while ((n = scan.next(keys, pageNos, slotNos)) > 0) {
+								if (n > sizes[b]) {
+									System.err.println("*** a batch of " + n);
+									status = FAIL;
+								}
+								for (int i = 0; i < n; i++) {
+									if (pageNos[i] != keys[i])
+										status = FAIL;
+									got.add(((long) keys[i] << 32) | slotNos[i]);
+								}
+							}
+						}
+						if (!got.equals(expected)) {
+							System.err.println("*** batch scan of " + lo + ".."
+									+ hi + " returned " + got.size()
+									+ " entries, new_scan " + expected.size());
+							status = FAIL;
+						}
+					}
+
+			// closed half way
+			IntBatchScan scan = posting.batchScan(Integer.MIN_VALUE,
+					Integer.MAX_VALUE);
+			scan.next(new int[10], new int[10], new int[10]);
+			scan.close();
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != unpinned) {
+				System.err.println("*** batch scans left pages pinned");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(3, status);
+		return status;
+	}
+
+	/*
+	 * fences: short scans and deletes return what a scan without an end key
+	 * and the model say, and only end early on a fence while the views the
+	 * descent fenced stay cached, not once the cache is cleared under an
+	 * open scan or kept empty; a page outside its fences is counted
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: leaf fences\n");
+		boolean status = OK;
+		BTreeMetrics metrics = BTreeMetrics.get();
+		try {
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			BTreeFile[] files = { plain, posting };
+			String[] states = { "warm", "cleared", "off" };
+			for (int state = 0; state < states.length; state++) {
+				if (state == 2)
+					DecodedPageCache.setMemoryBudget(0);
+				metrics.reset();
+				for (int f = 0; f < files.length; f++) {
+					// a scan with no end key never stops on a fence
+					List<Long> all = scan(files[f], null, null);
+					for (int k = 0; k < N / 4; k += 7) {
+						BTFileScan scan = files[f].new_scan(new IntegerKey(k),
+								new IntegerKey(k + 1));
+						List<Long> got = new ArrayList<Long>();
+						KeyDataEntry entry;
+						while ((entry = scan.get_next()) != null) {
+							got.add(entry(entry));
+							if (state == 1 && got.size() == 1)
+								DecodedPageCache.clear();
+						}
+						scan.DestroyBTreeFileScan();
+						if (!got.equals(between(all, k, k + 1))) {
+							System.err.println("*** " + states[state]
+									+ " scan of " + k + ".." + (k + 1)
+									+ " returned " + got.size() + " entries");
+							status = FAIL;
+						}
+					}
+				}
+				long stops = metrics.getFenceStops();
+				if (state == 0 ? stops == 0 : stops != 0) {
+					System.err.println("*** " + stops + " fence stops with the"
+							+ " cache " + states[state]);
+					status = FAIL;
+				}
+			}
+			DecodedPageCache.setMemoryBudget(DecodedPageCache.DEFAULT_BUDGET);
+
+			// deletes of pairs the index holds and does not, warm and off
+			List<Long> all = scan(plain, null, null);
+			Set<Long> model = new TreeSet<Long>(all);
+			for (int state = 0; state < 2; state++) {
+				if (state == 1)
+					DecodedPageCache.setMemoryBudget(0);
+				metrics.reset();
+				for (int i = state; i < all.size(); i += 50) {
+					long pair = all.get(i);
+					int key = (int) (pair >> 32);
+					for (int slot = (int) pair - 1; slot <= (int) pair; slot++)
+						if (plain.Delete(new IntegerKey(key), new RID(
+								new PageId(key), slot)) != model.remove(
+								((long) key << 32) | slot)) {
+							System.err.println("*** delete of " + key + " slot "
+									+ slot + " disagrees with the model");
+							status = FAIL;
+						}
+				}
+				if (!new TreeSet<Long>(scan(plain, null, null)).equals(model)) {
+					System.err.println("*** the index differs from the model"
+							+ " after deletes with the cache " + states[2 * state]);
+					status = FAIL;
+				}
+				if (state == 0 && metrics.getFenceStops() == 0) {
+					System.err.println("*** no delete stopped before the next leaf");
+					status = FAIL;
+				}
+			}
+			DecodedPageCache.setMemoryBudget(DecodedPageCache.DEFAULT_BUDGET);
+			if (metrics.getFenceViolations() != 0) {
+				System.err.println("*** " + metrics.getFenceViolations()
+						+ " pages outside their fences");
+				status = FAIL;
+			}
+
+			// BT.keyCompare puts Integer.MIN_VALUE after the positive keys of
+			// its leaf, and so past the high fence
+			BTreeFile file = new BTreeFile("FENCED", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			for (int i = 0; i < N / 10; i++)
+				file.insert(new IntegerKey(i), new RID(new PageId(i), 0));
+			file.insert(new IntegerKey(Integer.MIN_VALUE), new RID());
+			DecodedPageCache.clear();
+			scan(file, new IntegerKey(0), new IntegerKey(1));
+			if (metrics.getFenceViolations() == 0) {
+				System.err.println("*** a leaf outside its fences was not"
+						+ " counted");
+				status = FAIL;
+			}
+			file.destroyFile();
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != unpinned) {
+				System.err.println("*** scans or deletes left pages pinned");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		DecodedPageCache.setMemoryBudget(DecodedPageCache.DEFAULT_BUDGET);
+		report(4, status);
+		return status;
+	}
+
+	/*
+	 * split spliterator until no part splits further, adding the parts in
+	 * key order
+	 */
+	private static void split(Spliterator<KeyDataEntry> spliterator,
+			List<Spliterator<KeyDataEntry>> parts) {
+		Spliterator<KeyDataEntry> prefix = spliterator.trySplit();
+		if (prefix == null) {
+			parts.add(spliterator);
+			return;
+		}
+		split(prefix, parts);
+		split(spliterator, parts);
+	}
+
+	/*
+	 * the entries new_scan returns for [lo, hi], in order
+	 */
+	private static List<Long> scan(BTreeFile file, KeyClass lo, KeyClass hi)
+			throws Exception {
+		List<Long> entries = new ArrayList<Long>();
+		BTFileScan scan = file.new_scan(lo, hi);
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null)
+			entries.add(entry(entry));
+		scan.DestroyBTreeFileScan();
+		return entries;
+	}
+
+	/*
+	 * the entries of all with keys in [lo, hi]
+	 */
+	private static List<Long> between(List<Long> all, int lo, int hi) {
+		List<Long> entries = new ArrayList<Long>();
+		for (int i = 0; i < all.size(); i++) {
+			int key = (int) (all.get(i) >> 32);
+			if (key >= lo && key <= hi)
+				entries.add(all.get(i));
+		}
+		return entries;
+	}
+
+	private static List<Long> entries(Stream<KeyDataEntry> stream) {
+		List<Long> entries = new ArrayList<Long>();
+		for (KeyDataEntry entry : stream.collect(Collectors.toList()))
+			entries.add(entry(entry));
+		return entries;
+	}
+
+	/*
+	 * key and slot of an entry, sorting by key first
+	 */
+	private static long entry(KeyDataEntry entry) {
+		return ((long) ((IntegerKey) entry.key).getKey().intValue() << 32)
+				| ((LeafData) entry.data).getData().slotNo;
+	}
+
+	private void report(int test, boolean status) {
+		System.out.println("  Test " + test
+				+ (status == OK ? " completed successfully." : " failed."));
+	}
+}
+
+public class ScanTest {
+
+	public static void main(String[] argvs) {
+		boolean status;
+		try {
+			status = new ScanDriver().runTests();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = TestDriver.FAIL;
+		}
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during scan tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
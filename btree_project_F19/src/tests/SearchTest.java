@@ -0,0 +1,517 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * SearchTest checks the structures that speed up finding a key, against a
+ * model of the entries kept in memory: whatever they cache or skip, a lookup
+ * must find just the entries the model holds.
+ */
+class SearchDriver extends TestDriver implements GlobalConst {
+
+	private static final int N = 2000;
+
+	public SearchDriver() {
+		super("searchtest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 20000, 100, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Search";
+	}
+
+	/*
+	 * DecodedPageCache: random inserts, deletes and lookups agree with the
+	 * model with the cache off, smaller than the tree and holding all of it
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: decoded page cache\n");
+		boolean status = OK;
+		long[] budgets = { 0, 10 << 10, DecodedPageCache.DEFAULT_BUDGET };
+		try {
+			BTreeMetrics metrics = BTreeMetrics.get();
+			for (int b = 0; b < budgets.length; b++)
+				for (int postings = 0; postings < 2; postings++) {
+					DecodedPageCache.setMemoryBudget(budgets[b]);
+					metrics.reset();
+					BTreeFile file = new BTreeFile("CACHE" + b + postings,
+							AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE,
+							postings == 0 ? 0 : IndexFlags.POSTING_LISTS);
+					TreeSet<Long> model = new TreeSet<Long>();
+					if (!churn(file, model, new Random(39), 10 * N)
+							|| !sameLookups(file, model)) {
+						System.err.println("*** with a budget of " + budgets[b]
+								+ (postings == 0 ? "" : " and posting lists"));
+						status = FAIL;
+					}
+					long hits = metrics.getPageCacheHits();
+					if (budgets[b] == 0 ? hits != 0
+							|| DecodedPageCache.size() != 0 : hits == 0
+							|| DecodedPageCache.getMemoryUsed() > budgets[b]) {
+						System.err.println("*** " + hits + " hits and "
+								+ DecodedPageCache.getMemoryUsed()
+								+ " bytes cached with a budget of " + budgets[b]);
+						status = FAIL;
+					}
+					file.close();
+				}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		DecodedPageCache.setMemoryBudget(DecodedPageCache.DEFAULT_BUDGET);
+		report(1, status);
+		return status;
+	}
+
+	/*
+	 * Bloom filters: containsKey answers as the model does for keys present
+	 * and absent, with a run of one key over two leaves, as inserts,
+	 * splits and deletes change the leaves, and leaves nothing pinned
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: containsKey with Bloom filters\n");
+		boolean status = OK;
+		try {
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			BTreeFile file = new BTreeFile("BLOOM", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			TreeSet<Long> model = new TreeSet<Long>();
+			Random random = new Random(46);
+			if (!churn(file, model, random, 5 * N))
+				status = FAIL;
+			// a run over two leaves; with more, a split inside the run can
+			// put its separator out of leaf order among the equal ones
+			for (int i = 4; i < 40; i++) {
+				file.insert(new IntegerKey(N / 2), new RID(new PageId(N / 2), i));
+				model.add(entry(N / 2, i));
+			}
+			file.setBloomFilters(10);
+			BTreeStats stats = file.stats();
+			if (stats.getBloomFilters() != stats.getLeafPages()) {
+				System.err.println("*** " + stats.getBloomFilters()
+						+ " filters for " + stats.getLeafPages() + " leaves");
+				status = FAIL;
+			}
+			if (!sameKeys(file, model) || !churn(file, model, random, 10 * N)
+					|| !sameKeys(file, model))
+				status = FAIL;
+
+			stats = file.stats();
+			if (stats.getBloomNegatives() == 0
+					|| stats.getBloomFalsePositiveRate() > 0.05) {
+				System.err.println("*** " + stats.getBloomNegatives()
+						+ " absent keys answered by a filter, false positive"
+						+ " rate " + stats.getBloomFalsePositiveRate());
+				status = FAIL;
+			}
+			file.close();
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != unpinned) {
+				System.err.println("*** containsKey left pages pinned");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(2, status);
+		return status;
+	}
+
+	/*
+	 * interpolation: a scan from any key starts where a plain binary search
+	 * of the keys says, with interpolation on and off, on an empty tree, a
+	 * single key, evenly spread keys with emptied leaves, keys at either end
+	 * of the int range, and a skewed leaf, where it must fall back to binary
+	 * search; evenly spread keys are interpolated
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: interpolation search\n");
+		boolean status = OK;
+		try {
+			BTreeMetrics metrics = BTreeMetrics.get();
+			String[] shapes = { "empty", "single", "dense", "low", "high",
+					"skewed" };
+			for (int s = 0; s < shapes.length; s++) {
+				BTreeFile file = new BTreeFile("INTERPOLATE" + s,
+						AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+				List<Integer> keys = new ArrayList<Integer>();
+				int key = 0;
+				int count = s == 0 ? 0 : s == 1 ? 1 : s == 5 ? 40 : 10 * N;
+				for (int i = 0; i < count; i++) {
+					switch (s) {
+					case 1:
+						key = 7;
+						break;
+					case 2:
+						key = 3 * i;
+						break;
+					case 3:
+						key = Integer.MIN_VALUE + 5 * i;
+						break;
+					case 4:
+						key = Integer.MAX_VALUE - 5 * i;
+						break;
+					default:
+						// one leaf, evenly spread but for its last key
+						key = i < count - 1 ? i : 1000000;
+					}
+					file.insert(new IntegerKey(key), new RID(new PageId(i), 0));
+					keys.add(key);
+				}
+				if (s == 2)
+					// naive deletes leave the leaves of the range empty
+					for (int k = 3 * N; k < 9 * N; k += 3) {
+						file.Delete(new IntegerKey(k), new RID(new PageId(k / 3), 0));
+						keys.remove(Integer.valueOf(k));
+					}
+				Collections.sort(keys);
+
+				long[] probes = new long[2];
+				for (int on = 0; on < 2; on++) {
+					DecodedPageCache.setInterpolation(on == 1);
+					metrics.reset();
+					if (!sameLowerBounds(file, keys, probes(keys))) {
+						System.err.println("*** with " + shapes[s] + " keys"
+								+ (on == 1 ? "" : " and interpolation off"));
+						status = FAIL;
+					}
+					probes[on] = metrics.getPageSearchProbes();
+				}
+				if (s == 2 && probes[1] == probes[0] || s == 5
+						&& probes[1] != probes[0]) {
+					System.err.println("*** " + shapes[s] + " keys took "
+							+ probes[1] + " probes interpolating, "
+							+ probes[0] + " not");
+					status = FAIL;
+				}
+				file.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		DecodedPageCache.setInterpolation(true);
+		report(3, status);
+		return status;
+	}
+
+	/*
+	 * key blocks: a scan from any key starts where a plain binary search of
+	 * the keys says, with interpolation on and off, for runs of one key
+	 * across the edges of 16-int blocks, Integer.MAX_VALUE repeated, and
+	 * strings whose first chars after a shared start tie
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: key block search\n");
+		boolean status = OK;
+		try {
+			Random random = new Random(48);
+			for (int s = 0; s < 3; s++) {
+				BTreeFile file = new BTreeFile("BLOCKS" + s, s == 2
+						? AttrType.attrString : AttrType.attrInteger, 20,
+						DeleteFashion.NAIVE_DELETE);
+				List<Integer> ints = new ArrayList<Integer>();
+				List<String> strings = new ArrayList<String>();
+				for (int i = 0; i < 3 * N; i++)
+					if (s == 0)
+						// runs of three, and one of 17
+						ints.add(i < 17 ? N : 2 * (i / 3));
+					else if (s == 1)
+						ints.add(Integer.MAX_VALUE - i / 3);
+					else
+						strings.add("k" + (i % 2 == 0 ? "ABCD" : "ABCE")
+								+ String.format("%05d", i / 4));
+				Collections.shuffle(ints, random);
+				Collections.shuffle(strings, random);
+				for (int i = 0; i < ints.size(); i++)
+					file.insert(new IntegerKey(ints.get(i)), new RID(new PageId(
+							i), 0));
+				for (int i = 0; i < strings.size(); i++)
+					file.insert(new StringKey(strings.get(i)), new RID(
+							new PageId(i), 0));
+				Collections.sort(ints);
+				Collections.sort(strings);
+
+				List<String> probes = new ArrayList<String>(Arrays.asList("",
+						"a", "k", "kABC", "kABCD", "kABCE", "kABCF", "z"));
+				for (int i = 0; i < strings.size(); i++) {
+					String key = strings.get(i);
+					probes.add(key);
+					probes.add(key.substring(0, key.length() - 1));
+					probes.add(key + "0");
+				}
+				for (int on = 0; on < 2; on++) {
+					DecodedPageCache.setInterpolation(on == 1);
+					if (!(s == 2 ? sameLowerBounds(file, strings, probes)
+							: sameLowerBounds(file, ints, probes(ints)))) {
+						System.err.println("*** in index " + s
+								+ (on == 1 ? "" : " with interpolation off"));
+						status = FAIL;
+					}
+				}
+				file.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		DecodedPageCache.setInterpolation(true);
+		report(4, status);
+		return status;
+	}
+
+	/*
+	 * adaptive hash index, with the Bloom filters off and on: containsKey
+	 * answers as the model does while changes split leaves and delete hot
+	 * keys between rounds of lookups, hints go stale rather than wrong, and
+	 * no more keys are hinted than asked for
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: containsKey with the adaptive hash index\n");
+		boolean status = OK;
+		int hot = N / 20;
+		try {
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			for (int bloom = 0; bloom < 2; bloom++) {
+				BTreeFile file = new BTreeFile("HASH" + bloom,
+						AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+				TreeSet<Long> model = new TreeSet<Long>();
+				Random random = new Random(49);
+				if (!churn(file, model, random, 5 * N))
+					status = FAIL;
+				if (bloom == 1)
+					file.setBloomFilters(10);
+				file.setAdaptiveHashIndex(hot);
+
+				for (int round = 0; round < 20 && status == OK; round++) {
+					// the same few keys again and again, then changes
+					for (int i = 0; i < 5 * hot; i++) {
+						int key = i % hot;
+						if (file.containsKey(new IntegerKey(key)) == model
+								.subSet(entry(key, 0), entry(key + 1, 0))
+								.isEmpty()) {
+							System.err.println("*** containsKey of " + key
+									+ " disagrees with the model in round "
+									+ round);
+							status = FAIL;
+							break;
+						}
+					}
+					if (!churn(file, model, random, N / 2))
+						status = FAIL;
+				}
+				if (!sameKeys(file, model))
+					status = FAIL;
+
+				BTreeStats stats = file.stats();
+				if (stats.getHashIndexHits() == 0
+						|| stats.getHashIndexStale() == 0
+						|| stats.getHashIndexKeys() > hot) {
+					System.err.println("*** " + stats.getHashIndexHits()
+							+ " hits, " + stats.getHashIndexStale()
+							+ " stale hints, " + stats.getHashIndexKeys()
+							+ " keys hinted" + (bloom == 1 ? " with filters" : ""));
+					status = FAIL;
+				}
+				file.close();
+			}
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != unpinned) {
+				System.err.println("*** containsKey left pages pinned");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(5, status);
+		return status;
+	}
+
+	/*
+	 * count random inserts, deletes and lookups on file, made in model too;
+	 * false at the first result that differs from the model's
+	 */
+	private static boolean churn(BTreeFile file, TreeSet<Long> model,
+			Random random, int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			int key = random.nextInt(N);
+			int slot = random.nextInt(4);
+			RID rid = new RID(new PageId(key), slot);
+			switch (model.isEmpty() ? 0 : random.nextInt(3)) {
+			case 0:
+				if (!model.contains(entry(key, slot))) {
+					file.insert(new IntegerKey(key), rid);
+					model.add(entry(key, slot));
+				}
+				break;
+			case 1:
+				// a key the index holds: past the last one, Delete throws
+				Long held = model.ceiling(entry(key, 0));
+				key = (int) ((held == null ? model.last() : held) >> 32);
+				rid = new RID(new PageId(key), slot);
+				if (file.Delete(new IntegerKey(key), rid) != model
+						.remove(entry(key, slot))) {
+					System.err.println("*** delete of " + key + " slot " + slot
+							+ " disagrees with the model");
+					return false;
+				}
+				break;
+			default:
+				if (!lookup(file, key).equals(model.subSet(entry(key, 0),
+						entry(key + 1, 0)))) {
+					System.err.println("*** lookup of " + key
+							+ " disagrees with the model");
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * true if a lookup of every key from below the first to past the last
+	 * finds the entries of model
+	 */
+	private static boolean sameLookups(BTreeFile file, TreeSet<Long> model)
+			throws Exception {
+		for (int key = -1; key <= N; key++)
+			if (!lookup(file, key).equals(model.subSet(entry(key, 0), entry(
+					key + 1, 0)))) {
+				System.err.println("*** lookup of " + key
+						+ " disagrees with the model");
+				return false;
+			}
+		return true;
+	}
+
+	/*
+	 * true if containsKey finds just the keys of model, for every key from
+	 * below the first to twice the last
+	 */
+	private static boolean sameKeys(BTreeFile file, TreeSet<Long> model)
+			throws Exception {
+		for (int key = -1; key <= 2 * N; key++)
+			if (file.containsKey(new IntegerKey(key)) == model.subSet(entry(key,
+					0), entry(key + 1, 0)).isEmpty()) {
+				System.err.println("*** containsKey of " + key
+						+ " disagrees with the model");
+				return false;
+			}
+		return true;
+	}
+
+	/*
+	 * true if a scan from each probe on starts at the first key a plain
+	 * binary search of sorted finds, and returns all of its run; the keys
+	 * are Integers or Strings
+	 */
+	private static <T extends Comparable<T>> boolean sameLowerBounds(
+			BTreeFile file, List<T> sorted, List<T> probes) throws Exception {
+		for (int i = 0; i < probes.size(); i++) {
+			T probe = probes.get(i);
+			int low = 0, high = sorted.size();
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (sorted.get(mid).compareTo(probe) < 0)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			int run = 0;
+			while (low + run < sorted.size()
+					&& sorted.get(low + run).equals(sorted.get(low)))
+				run++;
+
+			// BT.keyCompare subtracts, so leave the scan's hi_key open
+			BTFileScan scan = file.new_scan(probe instanceof Integer
+					? (KeyClass) new IntegerKey((Integer) probe) : new StringKey(
+							(String) probe), null);
+			KeyDataEntry entry = scan.get_next();
+			Object first = entry == null ? null : value(entry.key);
+			int found = 0;
+			while (entry != null && value(entry.key).equals(first)) {
+				found++;
+				entry = scan.get_next();
+			}
+			scan.DestroyBTreeFileScan();
+			if (found != run || run > 0 && !first.equals(sorted.get(low))) {
+				System.err.println("*** a scan from " + probe + " starts at "
+						+ found + " of " + first + ", not " + run + " of "
+						+ (run > 0 ? sorted.get(low) : "nothing"));
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * each key of sorted and the ones next to it, and both ends of the int
+	 * range
+	 */
+	private static List<Integer> probes(List<Integer> sorted) {
+		List<Integer> probes = new ArrayList<Integer>();
+		probes.add(Integer.MIN_VALUE);
+		probes.add(Integer.MAX_VALUE);
+		for (int i = 0; i < sorted.size(); i++)
+			for (long p = sorted.get(i) - 1L; p <= sorted.get(i) + 1L; p++)
+				if (p >= Integer.MIN_VALUE && p <= Integer.MAX_VALUE)
+					probes.add((int) p);
+		return probes;
+	}
+
+	private static Object value(KeyClass key) {
+		return key instanceof IntegerKey ? (Object) ((IntegerKey) key)
+				.getKey() : ((StringKey) key).getKey();
+	}
+
+	/*
+	 * the entries of key, found by a scan of [key, key]
+	 */
+	private static Set<Long> lookup(BTreeFile file, int key) throws Exception {
+		Set<Long> found = new TreeSet<Long>();
+		BTFileScan scan = file.new_scan(new IntegerKey(key), new IntegerKey(key));
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null)
+			found.add(entry(((IntegerKey) entry.key).getKey().intValue(),
+					((LeafData) entry.data).getData().slotNo));
+		scan.DestroyBTreeFileScan();
+		return found;
+	}
+
+	/*
+	 * the entry for key and slot, sorting by key first
+	 */
+	private static long entry(int key, int slot) {
+		return ((long) key << 32) | (slot & 0xffffffffL);
+	}
+
+	private void report(int test, boolean status) {
+		System.out.println("  Test " + test
+				+ (status == OK ? " completed successfully." : " failed."));
+	}
+}
+
+public class SearchTest {
+
+	public static void main(String[] argvs) {
+		boolean status;
+		try {
+			status = new SearchDriver().runTests();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = TestDriver.FAIL;
+		}
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during search tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
@@ -0,0 +1,659 @@
+package tests;
+
+import java.io.IOException;
+import java.util.*;
+
+import global.*;
+import bufmgr.*;
+import diskmgr.*;
+import btree.*;
+
+/**
+ * StorageTest checks the layers an index's pages and changes pass through
+ * on their way to disk. Whatever each holds back or keeps elsewhere, the
+ * index must give back the entries a model of it holds.
+ */
+class StorageDriver extends TestDriver implements GlobalConst {
+
+	private static final int N = 2000;
+	private static final int FRAMES = 30;
+
+	public StorageDriver() {
+		super("storagetest");
+	}
+
+	protected boolean runAllTests() {
+		// TestDriver.runTests removes dbpath in the background, and the
+		// tests reopen the database by name: use a file of its own
+		new SystemDefs(dbpath + ".storage", 20000, FRAMES, "Clock");
+		boolean status = super.runAllTests();
+		try {
+			SystemDefs.JavabaseDB.DBDestroy();
+		} catch (IOException e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		return status;
+	}
+
+	protected String testName() {
+		return "Storage";
+	}
+
+	/*
+	 * OffHeapDB: with an arena smaller than the index, random changes agree
+	 * with the model, and the file reads back the same through a plain DB
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: off-heap page pool\n");
+		boolean status = OK;
+		try {
+			BTreeMetrics.install("Clock");
+			OffHeapDB.install(60L * MINIBASE_PAGESIZE);
+			BTreeMetrics metrics = BTreeMetrics.get();
+			metrics.reset();
+			BTreeFile file = new BTreeFile("OFFHEAP", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			TreeSet<Long> model = new TreeSet<Long>();
+			if (!change(file, model, new Random(40), 20 * N)
+					|| !sameLookups(file, model))
+				status = FAIL;
+			file.close();
+			if (metrics.getOffHeapHits() == 0) {
+				System.err.println("*** no page was found in the arena");
+				status = FAIL;
+			}
+
+			// a buffer pool and DB that have seen none of it
+			SystemDefs.JavabaseBM.flushAllPages();
+			String name = SystemDefs.JavabaseDB.db_name();
+			SystemDefs.JavabaseDB.closeDB();
+			SystemDefs.JavabaseBM = new BufMgr(FRAMES, "Clock");
+			SystemDefs.JavabaseDB = new DB();
+			SystemDefs.JavabaseDB.openDB(name);
+			file = new BTreeFile("OFFHEAP");
+			if (!sameLookups(file, model)) {
+				System.err.println("*** the file read back differs");
+				status = FAIL;
+			}
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(1, status);
+		return status;
+	}
+
+	/*
+	 * Database: indexes in two databases with pools of their own and one in
+	 * SystemDefs, changed from three threads, each agree with their model,
+	 * leave SystemDefs as it was, estimate through their own pools and read
+	 * back from their files reopened
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: databases with their own pools\n");
+		boolean status = OK;
+		final String[] paths = { dbpath + ".a", dbpath + ".b" };
+		try {
+			BufMgr bufmgr = SystemDefs.JavabaseBM;
+			DB db = SystemDefs.JavabaseDB;
+			Database[] databases = { new Database(paths[0], 5000, 20, "Clock"),
+					new Database(paths[1], 5000, 50, "LRU") };
+			// the same file name, and so the same page numbers, in each
+			final BTreeFile[] files = {
+					new BTreeFile(databases[0], "SHARED", AttrType.attrInteger, 4,
+							DeleteFashion.NAIVE_DELETE, 0),
+					new BTreeFile(databases[1], "SHARED", AttrType.attrInteger, 4,
+							DeleteFashion.NAIVE_DELETE, 0),
+					new BTreeFile("SHARED", AttrType.attrInteger, 4,
+							DeleteFashion.NAIVE_DELETE) };
+			final List<TreeSet<Long>> models = new ArrayList<TreeSet<Long>>();
+			final boolean[] agreed = new boolean[files.length];
+			Thread[] threads = new Thread[files.length];
+			for (int i = 0; i < files.length; i++) {
+				models.add(new TreeSet<Long>());
+				final int f = i;
+				threads[i] = new Thread() {
+					public void run() {
+						try {
+							agreed[f] = change(files[f], models.get(f), new Random(
+									42 + f), 5 * N)
+									&& sameLookups(files[f], models.get(f));
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+					}
+				};
+				threads[i].start();
+			}
+			for (int i = 0; i < threads.length; i++) {
+				threads[i].join();
+				if (!agreed[i]) {
+					System.err.println("*** the index in "
+							+ (i < 2 ? paths[i] : "SystemDefs")
+							+ " disagrees with its model");
+					status = FAIL;
+				}
+			}
+			if (SystemDefs.JavabaseBM != bufmgr || SystemDefs.JavabaseDB != db) {
+				System.err.println("*** SystemDefs was left changed");
+				status = FAIL;
+			}
+
+			// an estimate on a database's index pins through that database's
+			// pool, and so needs none in SystemDefs
+			SystemDefs.JavabaseBM = null;
+			try {
+				for (int i = 0; i < databases.length; i++) {
+					double all = files[i].estimateSelectivity(null, null);
+					double none = files[i].estimateSelectivity(new IntegerKey(
+							N), null);
+					if (all != 1.0 || none != 0.0) {
+						System.err.println("*** the index in " + paths[i]
+								+ " estimates " + all + " and " + none);
+						status = FAIL;
+					}
+				}
+			} finally {
+				SystemDefs.JavabaseBM = bufmgr;
+			}
+
+			for (int i = 0; i < files.length; i++)
+				files[i].close();
+			for (int i = 0; i < databases.length; i++) {
+				databases[i].close();
+				try {
+					new BTreeFile(databases[i], "SHARED");
+					System.err.println("*** an index opened in a closed database");
+					status = FAIL;
+				} catch (IllegalStateException e) {
+				}
+			}
+			for (int i = 0; i < databases.length; i++) {
+				Database database = new Database(paths[i], 0, 20, "Clock");
+				BTreeFile file = new BTreeFile(database, "SHARED");
+				if (!sameLookups(file, models.get(i))) {
+					System.err.println("*** " + paths[i] + " read back differs");
+					status = FAIL;
+				}
+				file.close();
+				database.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		for (int i = 0; i < paths.length; i++)
+			new java.io.File(paths[i]).delete();
+		report(2, status);
+		return status;
+	}
+
+	/*
+	 * PartitionedBTree: shards split, into a second Database, while other
+	 * threads insert; no entry is lost or doubled, random changes after
+	 * agree with the model, and the index reopens with the same shards
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: partitioned index\n");
+		boolean status = OK;
+		String shardpath = dbpath + ".shards";
+		try {
+			Database shards = new Database(shardpath, 20000, FRAMES, "Clock");
+			Database[] databases = { null, shards };
+			final PartitionedBTree index = new PartitionedBTree(databases,
+					"PARTITIONED", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE, 0, new KeyClass[] {
+						new IntegerKey(N / 2) });
+			final TreeSet<Long> model = new TreeSet<Long>();
+			for (int i = 0; i < N; i++) {
+				index.insert(new IntegerKey(i), new RID(new PageId(i), 0));
+				model.add(entry(i, 0));
+			}
+
+			final List<Exception> failures = Collections
+					.synchronizedList(new ArrayList<Exception>());
+			Thread[] inserters = new Thread[3];
+			for (int t = 0; t < inserters.length; t++) {
+				final int slot = t + 1;
+				inserters[t] = new Thread() {
+					public void run() {
+						Random random = new Random(slot);
+						try {
+							for (int i = 0; i < N; i++) {
+								int key = random.nextInt(N);
+								synchronized (model) {
+									if (!model.add(entry(key, slot)))
+										continue;
+								}
+								index.insert(new IntegerKey(key), new RID(
+										new PageId(key), slot));
+							}
+						} catch (Exception e) {
+							failures.add(e);
+						}
+					}
+				};
+				inserters[t].start();
+			}
+			int splits = 0;
+			for (int i = 0; i < 4; i++)
+				if (index.splitHottest(i % 2))
+					splits++;
+			if (index.split(0, 1))
+				splits++;
+			for (int t = 0; t < inserters.length; t++)
+				inserters[t].join();
+			for (int i = 0; i < failures.size(); i++) {
+				failures.get(i).printStackTrace();
+				status = FAIL;
+			}
+			if (splits == 0 || index.getShardCount() != 2 + splits) {
+				System.err.println("*** " + splits + " splits left "
+						+ index.getShardCount() + " shards");
+				status = FAIL;
+			}
+			if (!sameScan(index, model)
+					|| !change(index, model, new Random(43), 5 * N)
+					|| !sameScan(index, model))
+				status = FAIL;
+			int shardCount = index.getShardCount();
+			index.close();
+
+			PartitionedBTree reopened = new PartitionedBTree(databases,
+					"PARTITIONED");
+			if (reopened.getShardCount() != shardCount
+					|| !sameScan(reopened, model)) {
+				System.err.println("*** the index reopened with "
+						+ reopened.getShardCount() + " of " + shardCount
+						+ " shards");
+				status = FAIL;
+			}
+			reopened.destroyFile();
+			shards.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		new java.io.File(shardpath).delete();
+		report(3, status);
+		return status;
+	}
+
+	/*
+	 * DeltaBTree: scans see pending changes through to the tree, before and
+	 * after flushes, a flush waits for open scans, and the tree holds the
+	 * model once the delta is closed; keys a flush would fail on are
+	 * refused on insert
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: delta index\n");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("DELTA", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			DeltaBTree delta = new DeltaBTree(file, 2 * N);
+			TreeSet<Long> model = new TreeSet<Long>();
+			Random random = new Random(44);
+			for (int round = 0; round < 6; round++) {
+				// every other round starts on a flushed tree
+				if (round % 2 == 1 && !delta.flush()) {
+					System.err.println("*** flush put off with no scans open");
+					status = FAIL;
+				}
+				if (!change(delta, model, random, N))
+					status = FAIL;
+				DeltaFileScan scan = delta.new_scan(null, null);
+				if (!sameEntries(scan, model))
+					status = FAIL;
+				scan.DestroyBTreeFileScan();
+				int lo = random.nextInt(N), hi = lo + N / 10;
+				scan = delta.new_scan(new IntegerKey(lo), new IntegerKey(hi));
+				if (!sameEntries(scan, model.subSet(entry(lo, 0), entry(hi + 1,
+						0))))
+					status = FAIL;
+				scan.DestroyBTreeFileScan();
+			}
+
+			// an insert and a delete of the same entry cancel out
+			int pending = delta.getPendingCount();
+			RID rid = new RID(new PageId(N + 1), 0);
+			delta.insert(new IntegerKey(N + 1), rid);
+			delta.Delete(new IntegerKey(N + 1), rid);
+			DeltaFileScan open = delta.new_scan(null, null);
+			if (delta.getPendingCount() != pending || delta.flush()) {
+				System.err.println("*** " + delta.getPendingCount() + " of "
+						+ pending + " changes pending, or a flush ran under"
+						+ " an open scan");
+				status = FAIL;
+			}
+			open.DestroyBTreeFileScan();
+
+			delta.close();
+			if (!sameLookups(file, model))
+				status = FAIL;
+			file.close();
+
+			if (!refusesBadKeys(false))
+				status = FAIL;
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(4, status);
+		return status;
+	}
+
+	/*
+	 * BufferedBTree: while the tree grows and its index pages split, scans
+	 * and lookups see the messages still buffered on the way down, batches
+	 * reach the leaves, and the tree holds the model once it is closed;
+	 * keys a push or flush would fail on are refused on insert
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: buffered index\n");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("BUFFERED", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			BufferedBTree buffered = new BufferedBTree(file, 64);
+			TreeSet<Long> model = new TreeSet<Long>();
+			Random random = new Random(45);
+			int buffers = 0;
+			for (int round = 0; round < 6; round++) {
+				if (round % 2 == 1 && !buffered.flush()) {
+					System.err.println("*** flush put off with no scans open");
+					status = FAIL;
+				}
+				if (!change(buffered, model, random, 2 * N))
+					status = FAIL;
+				buffers = Math.max(buffers, buffered.getBufferCount());
+				DeltaFileScan scan = buffered.new_scan(null, null);
+				if (!sameEntries(scan, model))
+					status = FAIL;
+				scan.DestroyBTreeFileScan();
+				int lo = random.nextInt(N), hi = lo + N / 10;
+				scan = buffered.new_scan(new IntegerKey(lo), new IntegerKey(hi));
+				if (!sameEntries(scan, model.subSet(entry(lo, 0), entry(hi + 1,
+						0))))
+					status = FAIL;
+				scan.DestroyBTreeFileScan();
+
+				for (int key = -1; key <= N; key++) {
+					List<RID> rids = buffered.lookup(new IntegerKey(key));
+					Set<Long> found = new TreeSet<Long>();
+					for (int i = 0; i < rids.size(); i++)
+						found.add(entry(key, rids.get(i).slotNo));
+					if (found.size() != rids.size()
+							|| !found.equals(model.subSet(entry(key, 0), entry(
+									key + 1, 0)))) {
+						System.err.println("*** lookup of " + key + " found "
+								+ rids.size() + " rids");
+						status = FAIL;
+						break;
+					}
+				}
+			}
+			long batches = buffered.getLeafBatches();
+			if (buffers < 2 || batches == 0
+					|| buffered.getLeafMessages() <= batches) {
+				System.err.println("*** " + buffers + " buffers, "
+						+ buffered.getLeafMessages() + " messages in "
+						+ batches + " leaf batches");
+				status = FAIL;
+			}
+
+			buffered.close();
+			if (!sameLookups(file, model))
+				status = FAIL;
+			file.close();
+
+			if (!refusesBadKeys(true))
+				status = FAIL;
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(5, status);
+		return status;
+	}
+
+	/*
+	 * PartitionedBTree, unique: while a split moves entries, deletes of
+	 * entries the index holds find them in either shard, inserts of keys it
+	 * holds are refused, and no entry is lost or doubled
+	 */
+	protected boolean test6() {
+		System.out.println("\n  Test 6: partitioned index changes during a split\n");
+		boolean status = OK;
+		try {
+			final PartitionedBTree index = new PartitionedBTree(
+					new Database[] { null }, "MOVING", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE, IndexFlags.UNIQUE,
+					new KeyClass[0]);
+			final TreeSet<Long> model = new TreeSet<Long>();
+			for (int i = 0; i < 4 * N; i++) {
+				index.insert(new IntegerKey(i), new RID(new PageId(i), 0));
+				model.add(entry(i, 0));
+			}
+
+			final List<String> failures = Collections
+					.synchronizedList(new ArrayList<String>());
+			Thread changer = new Thread() {
+				public void run() {
+					Random random = new Random(46);
+					for (int i = 0; i < 4 * N; i++) {
+						int key = 2 * N + random.nextInt(2 * N);
+						RID rid = new RID(new PageId(key), 0);
+						if (!model.contains(entry(key, 0)))
+							continue;
+						try {
+							if (i % 2 == 0) {
+								if (index.Delete(new IntegerKey(key), rid))
+									model.remove(entry(key, 0));
+								else
+									failures.add("delete of " + key
+											+ " found nothing");
+							} else {
+								try {
+									index.insert(new IntegerKey(key), rid);
+									failures.add("a second " + key
+											+ " was inserted");
+								} catch (InsertException e) {
+								}
+							}
+						} catch (Exception e) {
+							failures.add(key + ": " + e);
+						}
+					}
+				}
+			};
+			changer.start();
+			if (!index.split(0, 0))
+				failures.add("the shard did not split");
+			changer.join();
+			for (int i = 0; i < failures.size(); i++) {
+				System.err.println("*** " + failures.get(i));
+				status = FAIL;
+			}
+			if (!sameScan(index, model))
+				status = FAIL;
+			index.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		report(6, status);
+		return status;
+	}
+
+	/*
+	 * true if a merge scan of the whole index returns the entries of model,
+	 * in key order
+	 */
+	private static boolean sameScan(PartitionedBTree index,
+			TreeSet<Long> model) throws Exception {
+		MergeFileScan scan = index.new_scan(null, null);
+		boolean same = sameEntries(scan, model);
+		scan.DestroyBTreeFileScan();
+		return same;
+	}
+
+	/*
+	 * true if scan returns the entries of model, in key order
+	 */
+	private static boolean sameEntries(IndexFileScan scan, Set<Long> model)
+			throws Exception {
+		Set<Long> found = new TreeSet<Long>();
+		int count = 0, last = Integer.MIN_VALUE;
+		boolean ordered = true;
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			int key = ((IntegerKey) entry.key).getKey().intValue();
+			ordered &= key >= last;
+			last = key;
+			found.add(entry(key, ((LeafData) entry.data).getData().slotNo));
+			count++;
+		}
+		if (!ordered || count != found.size() || !found.equals(model)) {
+			System.err.println("*** the scan returned " + count + " entries"
+					+ (ordered ? "" : " out of order") + ", " + found.size()
+					+ " different, of " + model.size());
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * true if DeltaBTree.insert, or BufferedBTree.insert if buffered, refuses
+	 * the keys a flush would fail on: a FixedBytesKey of the wrong width, a
+	 * key too long for a leaf to hold two, and on a unique index a key the
+	 * index holds or has pending
+	 */
+	private static boolean refusesBadKeys(boolean buffered) throws Exception {
+		BTreeFile[] files = {
+				new BTreeFile("REFUSE0", KeyType.attrFixedBytes, 4,
+						DeleteFashion.NAIVE_DELETE),
+				new BTreeFile("REFUSE1", AttrType.attrString, 1000,
+						DeleteFashion.NAIVE_DELETE),
+				new BTreeFile("REFUSE2", AttrType.attrInteger, 4,
+						DeleteFashion.NAIVE_DELETE, IndexFlags.UNIQUE) };
+		files[2].insert(new IntegerKey(1), new RID(new PageId(1), 0));
+		IndexFile[] deltas = new IndexFile[files.length];
+		for (int i = 0; i < files.length; i++)
+			deltas[i] = buffered ? new BufferedBTree(files[i])
+					: (IndexFile) new DeltaBTree(files[i]);
+		deltas[2].insert(new IntegerKey(2), new RID(new PageId(2), 0));
+		char[] chars = new char[MINIBASE_PAGESIZE / 2];
+		Arrays.fill(chars, 'k');
+
+		boolean refused = refuses(deltas[0], new FixedBytesKey(new byte[5]),
+				KeyNotMatchException.class)
+				&& refuses(deltas[1], new StringKey(new String(chars)),
+						KeyTooLongException.class)
+				&& refuses(deltas[2], new IntegerKey(1), InsertException.class)
+				&& refuses(deltas[2], new IntegerKey(2), InsertException.class);
+		// a key that got in would fail the flush here
+		for (int i = 0; i < files.length; i++) {
+			if (buffered)
+				((BufferedBTree) deltas[i]).close();
+			else
+				((DeltaBTree) deltas[i]).close();
+			files[i].destroyFile();
+		}
+		return refused;
+	}
+
+	/*
+	 * true if index refuses key with an exception of type
+	 */
+	private static boolean refuses(IndexFile index, KeyClass key,
+			Class<? extends Exception> type) {
+		try {
+			index.insert(key, new RID(new PageId(0), 0));
+		} catch (Exception e) {
+			if (type.isInstance(e))
+				return true;
+			e.printStackTrace();
+		}
+		System.err.println("*** " + key + " was not refused");
+		return false;
+	}
+
+	/*
+	 * count random inserts and deletes on index, made in model too; false if
+	 * a delete disagreed with the model
+	 */
+	private static boolean change(IndexFile index, TreeSet<Long> model,
+			Random random, int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			int key = random.nextInt(N);
+			int slot = random.nextInt(4);
+			RID rid = new RID(new PageId(key), slot);
+			if (!model.contains(entry(key, slot))) {
+				index.insert(new IntegerKey(key), rid);
+				model.add(entry(key, slot));
+			} else if (index.Delete(new IntegerKey(key), rid)) {
+				model.remove(entry(key, slot));
+			} else {
+				System.err.println("*** delete of " + key + " slot " + slot
+						+ " found nothing");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * true if a scan of each key from below the first to past the last
+	 * returns the entries of model
+	 */
+	private static boolean sameLookups(BTreeFile file, TreeSet<Long> model)
+			throws Exception {
+		for (int key = -1; key <= N; key++) {
+			Set<Long> found = new TreeSet<Long>();
+			BTFileScan scan = file.new_scan(new IntegerKey(key), new IntegerKey(
+					key));
+			KeyDataEntry entry;
+			while ((entry = scan.get_next()) != null)
+				found.add(entry(key, ((LeafData) entry.data).getData().slotNo));
+			scan.DestroyBTreeFileScan();
+			if (!found.equals(model.subSet(entry(key, 0), entry(key + 1, 0)))) {
+				System.err.println("*** lookup of " + key
+						+ " disagrees with the model");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * the entry for key and slot, sorting by key first
+	 */
+	private static long entry(int key, int slot) {
+		return ((long) key << 32) | (slot & 0xffffffffL);
+	}
+
+	private void report(int test, boolean status) {
+		System.out.println("  Test " + test
+				+ (status == OK ? " completed successfully." : " failed."));
+	}
+}
+
+public class StorageTest {
+
+	public static void main(String[] argvs) {
+		boolean status;
+		try {
+			status = new StorageDriver().runTests();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = TestDriver.FAIL;
+		}
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during storage tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}